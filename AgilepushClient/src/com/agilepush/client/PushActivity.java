@@ -87,19 +87,25 @@ public class PushActivity extends Activity {
 				boolean cleanSession = ((CheckBox) findViewById(R.id.cleanSessionCheckBox))
 						.isChecked();
 
-				mServerIP = server;
+				// the server field takes a comma separated list of brokers,
+				// the first one is the primary
+				String[] brokers = server.split(",");
+				mServerIP = brokers[0].trim();
 				mServerPort = port;
 				Log.e("lxs", "server info " + mServerIP + ":" + mServerPort);
 				editor.putString(SkyMqttService.PREF_DEVICE_ID, mDeviceID);
 				Log.e("lxs", "device id " + mDeviceID);
 				editor.putString(SkyMqttService.PREF_SERVER_IP, mServerIP);
 				editor.putString(SkyMqttService.PREF_SERVER_PORT, mServerPort);
+				editor.putString(SkyMqttService.PREF_SERVER_URIS, server);
 				editor.putString(SkyMqttService.PREF_USER_NAME, username);
 				editor.putString(SkyMqttService.PREF_PASSWD, password);
 
 				editor.putInt(SkyMqttService.PREF_TIMEOUT, timeout);
-				editor.putInt(SkyMqttService.PREF_KEEPALIVE, timeout);
+				editor.putInt(SkyMqttService.PREF_KEEPALIVE, keepalive);
 				editor.putBoolean(SkyMqttService.PREF_CLEAN_SESSION, cleanSession);
+				editor.putBoolean(SkyMqttService.PREF_SSL, ssl);
+				editor.putString(SkyMqttService.PREF_SSL_KEY, sslkey);
 				
 
 				editor.commit();
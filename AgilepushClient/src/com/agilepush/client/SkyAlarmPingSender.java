@@ -0,0 +1,188 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Default ping sender implementation on Android. It is based on AlarmManager.
+ * <p>
+ * The {@link org.eclipse.paho.client.mqttv3.TimerPingSender} of the core
+ * library stops firing while the CPU sleeps, so the broker drops idle
+ * devices. This sender wakes the device with an alarm, holds a partial wake
+ * lock only until the ping has been answered and lines the alarm up with the
+ * other wakeups of the client through {@link SkyWakeupBatcher}.
+ * </p>
+ *
+ * @see MqttPingSender
+ */
+class SkyAlarmPingSender implements MqttPingSender {
+
+	private static final String TAG = "SkyAlarmPingSender";
+
+	// Upper bound for the wake lock, in case the ping is never answered
+	private static final long PING_WAKELOCK_TIMEOUT = 1000 * 30;
+
+	// The broker waits one and a half keepalives for a packet, a ping may be
+	// a quarter of a keepalive late and still arrive well in time
+	private static final int PING_SLACK_DIVISOR = 4;
+
+	private ClientComms comms;
+	private final Context context;
+	private final String clientId;
+	private final SkyKeepAliveTuner keepAliveTuner;
+	private BroadcastReceiver alarmReceiver;
+	private PendingIntent pendingIntent;
+	private volatile boolean hasStarted = false;
+
+	/**
+	 * @param context
+	 *            the context used to register the alarm
+	 * @param clientId
+	 *            the client id, used to keep the alarms of several clients
+	 *            apart
+	 * @param keepAliveTuner
+	 *            told about every answered ping, may be <code>null</code>
+	 */
+	SkyAlarmPingSender(Context context, String clientId,
+			SkyKeepAliveTuner keepAliveTuner) {
+		this.context = context;
+		this.clientId = clientId;
+		this.keepAliveTuner = keepAliveTuner;
+	}
+
+	@Override
+	public void init(ClientComms comms) {
+		this.comms = comms;
+		this.alarmReceiver = new AlarmReceiver();
+	}
+
+	@Override
+	public void start() {
+		String action = SkyMqttConstants.PING_SENDER + clientId;
+		Log.d(TAG, "Register alarmreceiver to MqttService" + action);
+		context.registerReceiver(alarmReceiver, new IntentFilter(action));
+
+		pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(
+				action), PendingIntent.FLAG_UPDATE_CURRENT);
+
+		schedule(comms.getKeepAlive());
+		hasStarted = true;
+	}
+
+	@Override
+	public void stop() {
+		// Cancel Alarm.
+		AlarmManager alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.cancel(pendingIntent);
+
+		Log.d(TAG, "Unregister alarmreceiver to MqttService" + clientId);
+		if (hasStarted) {
+			hasStarted = false;
+			try {
+				context.unregisterReceiver(alarmReceiver);
+			} catch (IllegalArgumentException e) {
+				// Ignore unregister errors.
+			}
+		}
+	}
+
+	@Override
+	public void schedule(long delayInMilliseconds) {
+		long now = SystemClock.elapsedRealtime();
+		long nextAlarmInMilliseconds = now + delayInMilliseconds;
+		Log.d(TAG, "Schedule next alarm at " + nextAlarmInMilliseconds);
+		AlarmManager alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		// Paho only sends a ping once the keepalive is due, an earlier alarm
+		// would just check and wake the device again when it is
+		long slack = Math.min(comms.getKeepAlive() / PING_SLACK_DIVISOR,
+				SkyWakeupBatcher.BATCH_INTERVAL);
+		SkyWakeupBatcher.setWithin(alarmManager, nextAlarmInMilliseconds,
+				slack, pendingIntent);
+	}
+
+	/*
+	 * This class sends PingReq packet to MQTT broker
+	 */
+	class AlarmReceiver extends BroadcastReceiver {
+		private WakeLock wakelock;
+		private final String wakeLockTag = SkyMqttConstants.PING_WAKELOCK
+				+ clientId;
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			// According to the docs, "Alarm Manager holds a CPU wake lock as
+			// long as the alarm receiver's onReceive() method is executing.
+			// This guarantees that the phone will not sleep until you have
+			// finished handling the broadcast.", but this class still get
+			// a wake lock to wait for ping finished.
+			Log.d(TAG, "Sending Ping at:" + SystemClock.elapsedRealtime());
+
+			if (wakelock == null) {
+				PowerManager pm = (PowerManager) context
+						.getSystemService(Context.POWER_SERVICE);
+				wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+						wakeLockTag);
+				wakelock.setReferenceCounted(false);
+			}
+			wakelock.acquire(PING_WAKELOCK_TIMEOUT);
+
+			// Assign new callback to token to execute code after PingResq
+			// arrives. Get another wakelock even receiver already has one,
+			// release it until ping response returns.
+			MqttToken token = comms.checkForActivity();
+
+			// No ping has been sent.
+			if (token == null) {
+				releaseWakeLock();
+				return;
+			}
+			if (keepAliveTuner != null) {
+				keepAliveTuner.onPingSent(SkyNetworkIdentity
+						.fingerprint(context));
+			}
+
+			token.setActionCallback(new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					Log.d(TAG, "Success. Release lock(" + wakeLockTag + "):"
+							+ SystemClock.elapsedRealtime());
+					if (keepAliveTuner != null) {
+						keepAliveTuner.onPingSuccess();
+					}
+					releaseWakeLock();
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken,
+						Throwable exception) {
+					Log.d(TAG, "Failure. Release lock(" + wakeLockTag + "):"
+							+ SystemClock.elapsedRealtime());
+					releaseWakeLock();
+				}
+			});
+		}
+
+		private void releaseWakeLock() {
+			if (wakelock.isHeld()) {
+				wakelock.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A message delivered in {@link SkyMqttAndroidClient.Ack#MANUAL_ACK} mode.
+ * The application passes its id to
+ * {@link SkyMqttAndroidClient#acknowledgeMessage(String)} once the message
+ * has been processed.
+ */
+public class SkyArrivedMessage extends MqttMessage {
+
+	private final String messageId;
+	private final String topic;
+
+	SkyArrivedMessage(String messageId, String topic, MqttMessage original) {
+		this(messageId, topic, original, original.isDuplicate());
+	}
+
+	SkyArrivedMessage(String messageId, String topic, MqttMessage original,
+			boolean duplicate) {
+		super(original.getPayload());
+		this.messageId = messageId;
+		this.topic = topic;
+		setQos(original.getQos());
+		setRetained(original.isRetained());
+		setDuplicate(duplicate);
+	}
+
+	/**
+	 * @return the id to acknowledge the message with
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return the topic the message arrived on
+	 */
+	public String getTopic() {
+		return topic;
+	}
+}
@@ -0,0 +1,147 @@
+package com.agilepush.client;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Orders the configured brokers so that the fastest healthy one is tried
+ * first.
+ * <p>
+ * Paho tries the server URIs of {@link org.eclipse.paho.client.mqttv3.MqttConnectOptions}
+ * one after another. For every broker the ranker keeps a moving average of
+ * the time from connect to CONNACK and the number of connects that failed in
+ * a row. Each failure adds {@link #FAILURE_PENALTY} to the score, so a broker
+ * which is down drops behind the healthy ones until it has answered again.
+ * The scores are stored in the service preferences and survive a restart.
+ * </p>
+ */
+class SkyBrokerRanker {
+
+	private static final String TAG = "SkyBrokerRanker";
+
+	// Preference keys, the server URI is appended
+	private static final String PREF_RTT = "broker.rtt.";
+	private static final String PREF_FAILURES = "broker.failures.";
+
+	/** Weight of a new sample in the moving average of the RTT **/
+	static final float RTT_WEIGHT = 0.3f;
+	/** Score of a broker which has not been measured yet, in milliseconds **/
+	static final long UNKNOWN_RTT = 1000;
+	/** Score added for every failed connect in a row, in milliseconds **/
+	static final long FAILURE_PENALTY = 1000 * 30;
+	/** Failures in a row beyond which the penalty does not grow **/
+	static final int MAX_FAILURES = 8;
+	/** Connect timeout is this many times the slowest healthy RTT **/
+	static final int TIMEOUT_FACTOR = 5;
+	/** Shortest connect timeout used while another broker can be tried, in seconds **/
+	static final int MIN_CONNECT_TIMEOUT = 10;
+
+	private final SharedPreferences prefs;
+	private final String[] brokers;
+
+	/**
+	 * @param prefs
+	 *            the preferences the scores are kept in
+	 * @param brokers
+	 *            the server URIs in their configured order, which also breaks
+	 *            ties
+	 */
+	SkyBrokerRanker(SharedPreferences prefs, String[] brokers) {
+		this.prefs = prefs;
+		this.brokers = brokers.clone();
+	}
+
+	/**
+	 * @return the server URIs, best first
+	 */
+	synchronized String[] rank() {
+		String[] ranked = brokers.clone();
+		// Arrays.sort is stable, equal scores keep the configured order
+		Arrays.sort(ranked, new Comparator<String>() {
+			@Override
+			public int compare(String lhs, String rhs) {
+				long l = score(lhs);
+				long r = score(rhs);
+				return (l < r) ? -1 : ((l == r) ? 0 : 1);
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * Pick the connect timeout for the next attempt. While there is another
+	 * broker to fail over to, an unresponsive broker should not hold up the
+	 * connect for the whole configured timeout.
+	 *
+	 * @param configured
+	 *            the configured timeout in seconds
+	 * @return the timeout in seconds
+	 */
+	synchronized int connectionTimeout(int configured) {
+		if (brokers.length < 2 || configured <= 0) {
+			return configured;
+		}
+		long slowest = 0;
+		for (String broker : brokers) {
+			if (prefs.getInt(PREF_FAILURES + broker, 0) == 0) {
+				slowest = Math.max(slowest, prefs.getLong(PREF_RTT + broker, 0));
+			}
+		}
+		if (slowest == 0) {
+			return configured;
+		}
+		int timeout = (int) ((slowest * TIMEOUT_FACTOR + 999) / 1000);
+		return Math.min(configured, Math.max(MIN_CONNECT_TIMEOUT, timeout));
+	}
+
+	/**
+	 * A connect has succeeded
+	 *
+	 * @param broker
+	 *            the server URI of the broker which accepted the connect
+	 * @param rtt
+	 *            the time from connect to CONNACK in milliseconds
+	 */
+	synchronized void onConnected(String broker, long rtt) {
+		if (!broker.equals(rank()[0])) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.BROKER_FAILOVERS);
+		}
+		long average = prefs.getLong(PREF_RTT + broker, 0);
+		average = (average == 0) ? rtt
+				: (long) (RTT_WEIGHT * rtt + (1 - RTT_WEIGHT) * average);
+		Log.d(TAG, broker + ": rtt " + rtt + "ms, average " + average + "ms");
+		SkyPreferences.apply(prefs.edit().putLong(PREF_RTT + broker, average)
+				.remove(PREF_FAILURES + broker));
+	}
+
+	/**
+	 * A connect has failed on the brokers that were tried
+	 *
+	 * @param tried
+	 *            the server URIs that failed
+	 */
+	synchronized void onConnectFailed(String[] tried) {
+		SharedPreferences.Editor editor = prefs.edit();
+		for (String broker : tried) {
+			fail(editor, broker);
+		}
+		SkyPreferences.apply(editor);
+	}
+
+	private void fail(SharedPreferences.Editor editor, String broker) {
+		int failures = Math.min(MAX_FAILURES,
+				prefs.getInt(PREF_FAILURES + broker, 0) + 1);
+		Log.d(TAG, broker + ": " + failures + " failures in a row");
+		editor.putInt(PREF_FAILURES + broker, failures);
+		SkyMqttMetrics.increment(SkyMqttMetrics.BROKER_FAILURES);
+	}
+
+	private long score(String broker) {
+		long rtt = prefs.getLong(PREF_RTT + broker, 0);
+		return ((rtt == 0) ? UNKNOWN_RTT : rtt)
+				+ prefs.getInt(PREF_FAILURES + broker, 0) * FAILURE_PENALTY;
+	}
+}
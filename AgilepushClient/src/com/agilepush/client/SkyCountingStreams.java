@@ -0,0 +1,105 @@
+package com.agilepush.client;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams which count the bytes passing through a socket, for the socket
+ * itself and for the totals in {@link SkyMqttMetrics}
+ */
+final class SkyCountingStreams {
+
+	private SkyCountingStreams() {
+	}
+
+	/**
+	 * Count the bytes read from a stream
+	 *
+	 * @param in
+	 *            the stream
+	 * @param counter
+	 *            the counter of the socket
+	 * @return the counting stream
+	 */
+	static InputStream counting(InputStream in, AtomicLong counter) {
+		return new CountingInputStream(in, counter);
+	}
+
+	/**
+	 * Count the bytes written to a stream
+	 *
+	 * @param out
+	 *            the stream
+	 * @param counter
+	 *            the counter of the socket
+	 * @return the counting stream
+	 */
+	static OutputStream counting(OutputStream out, AtomicLong counter) {
+		return new CountingOutputStream(out, counter);
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private final AtomicLong counter;
+
+		CountingInputStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			int read = in.read(buffer, offset, count);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		private void count(int bytes) {
+			counter.addAndGet(bytes);
+			SkyMqttMetrics.add(SkyMqttMetrics.SOCKET_BYTES_RECEIVED, bytes);
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private final AtomicLong counter;
+
+		CountingOutputStream(OutputStream out, AtomicLong counter) {
+			super(out);
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count(1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			// FilterOutputStream would write byte by byte
+			out.write(buffer, offset, count);
+			count(count);
+		}
+
+		private void count(int bytes) {
+			counter.addAndGet(bytes);
+			SkyMqttMetrics.add(SkyMqttMetrics.SOCKET_BYTES_SENT, bytes);
+		}
+	}
+}
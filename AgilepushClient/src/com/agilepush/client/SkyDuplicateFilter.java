@@ -0,0 +1,264 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
+
+/**
+ * Recognises QoS 1 and 2 messages which the broker delivers again, for
+ * example after a reconnect of a persistent session.
+ * <p>
+ * Only a message which the broker flags as a duplicate is ever dropped, and
+ * only if a message with the same packet id, topic and payload arrived
+ * recently. The id alone is not enough, as the broker reuses it once the
+ * first message is acknowledged, and a new message sent under a reused id
+ * may carry the flag if its first delivery was lost; the content alone
+ * would drop distinct messages which happen to be equal.
+ * </p>
+ * <p>
+ * A message is identified by a 64-bit FNV-1a fingerprint of its id, topic
+ * and payload. The fingerprints of the last {@link #DEFAULT_LRU_SIZE}
+ * messages are kept exactly, in a ring and an open addressing table of
+ * primitive longs, so a check allocates nothing. Older ones are kept in two
+ * bloom filters of the same fixed size: new fingerprints go into the
+ * current filter, and once it holds its capacity it becomes the previous
+ * filter and the old previous one is cleared for reuse. A flagged message
+ * found only by a filter may be a false positive, so it is counted and
+ * delivered; the share of those and the theoretical false positive rate
+ * are kept in the metrics, so the exact set can be sized.
+ * </p>
+ * <p>
+ * QoS 0 messages are never delivered twice and are not checked, so a
+ * message that is sent again on purpose at QoS 0 always gets through.
+ * </p>
+ */
+class SkyDuplicateFilter {
+
+	/** Fingerprints each bloom filter holds by default **/
+	static final int DEFAULT_CAPACITY = 4096;
+	/** Fingerprints kept exactly **/
+	static final int DEFAULT_LRU_SIZE = 256;
+
+	// about 1% false positives at capacity
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASHES = 7;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int capacity;
+	private final int bits;
+	private long[] current;
+	private long[] previous;
+	private int currentCount;
+
+	// the recent fingerprints, oldest at ringNext once the ring is full
+	private final long[] ring;
+	private int ringNext;
+	private int ringSize;
+	// the same fingerprints, linear probing
+	private final long[] table;
+	private final boolean[] used;
+	private final int mask;
+
+	private long checks;
+	private long hits;
+	private long bloomHits;
+
+	/**
+	 * @param capacity
+	 *            fingerprints each bloom filter holds, the filter remembers
+	 *            between one and two times as many messages
+	 * @param lruSize
+	 *            fingerprints kept exactly
+	 */
+	SkyDuplicateFilter(int capacity, final int lruSize) {
+		this.capacity = capacity;
+		this.bits = Math.max(64, capacity * BITS_PER_ENTRY);
+		this.current = new long[(bits + 63) / 64];
+		this.previous = new long[current.length];
+		this.ring = new long[Math.max(1, lruSize)];
+		// at most half full
+		int tableSize = Integer.highestOneBit(ring.length * 2 - 1) << 1;
+		this.table = new long[tableSize];
+		this.used = new boolean[tableSize];
+		this.mask = tableSize - 1;
+	}
+
+	/**
+	 * Check a message and remember it
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message, as handed over by Paho
+	 * @return <code>true</code> if the message is flagged as a duplicate and
+	 *         has been seen recently
+	 */
+	synchronized boolean isDuplicate(String topic, MqttMessage message) {
+		if (message.getQos() == 0 || !(message instanceof MqttReceivedMessage)) {
+			return false;
+		}
+		long fingerprint = fingerprint(topic,
+				((MqttReceivedMessage) message).getMessageId(),
+				message.getPayload());
+		checks++;
+		SkyMqttMetrics.increment(SkyMqttMetrics.DEDUP_CHECKS);
+		boolean recent = indexOf(fingerprint) >= 0;
+		if (recent && message.isDuplicate()) {
+			hits++;
+			SkyMqttMetrics.increment(SkyMqttMetrics.DEDUP_HITS);
+			return true;
+		}
+		remember(fingerprint);
+		if (!recent && message.isDuplicate()
+				&& (contains(current, fingerprint) || contains(previous,
+						fingerprint))) {
+			// not among the recent ones, possibly a false positive
+			bloomHits++;
+			SkyMqttMetrics.increment(SkyMqttMetrics.DEDUP_BLOOM_HITS);
+		}
+		if (currentCount >= capacity) {
+			long[] cleared = previous;
+			for (int i = 0; i < cleared.length; i++) {
+				cleared[i] = 0;
+			}
+			previous = current;
+			current = cleared;
+			currentCount = 0;
+		}
+		add(current, fingerprint);
+		currentCount++;
+		if ((currentCount & 63) == 0) {
+			// counting the set bits walks the filters, not done every time
+			SkyMqttMetrics.set(SkyMqttMetrics.DEDUP_FALSE_POSITIVE_PPM,
+					(long) (falsePositiveRate() * 1000000));
+		}
+		return false;
+	}
+
+	/**
+	 * @return the share of the checked messages found to be duplicates
+	 */
+	synchronized double hitRate() {
+		return (checks == 0) ? 0 : (double) hits / checks;
+	}
+
+	/**
+	 * @return the share of the checked messages flagged as duplicates and
+	 *         found only by a bloom filter, which were delivered
+	 */
+	synchronized double bloomHitRate() {
+		return (checks == 0) ? 0 : (double) bloomHits / checks;
+	}
+
+	/**
+	 * @return the theoretical false positive rate of the filters in their
+	 *         current fill
+	 */
+	synchronized double falsePositiveRate() {
+		double pCurrent = Math.pow(fill(current), HASHES);
+		double pPrevious = Math.pow(fill(previous), HASHES);
+		return 1 - (1 - pCurrent) * (1 - pPrevious);
+	}
+
+	private double fill(long[] filter) {
+		int set = 0;
+		for (long word : filter) {
+			set += Long.bitCount(word);
+		}
+		return (double) set / bits;
+	}
+
+	/**
+	 * FNV-1a over the packet id, the topic, a separator and the payload
+	 */
+	static long fingerprint(String topic, int messageId, byte[] payload) {
+		long hash = FNV_OFFSET;
+		hash = (hash ^ (messageId & 0xff)) * FNV_PRIME;
+		hash = (hash ^ ((messageId >>> 8) & 0xff)) * FNV_PRIME;
+		for (int i = 0; i < topic.length(); i++) {
+			char c = topic.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		hash = (hash ^ 0xff) * FNV_PRIME;
+		for (byte b : payload) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Add a fingerprint to the recent ones, forgetting the oldest
+	 */
+	private void remember(long fingerprint) {
+		if (ringSize == ring.length) {
+			forget(ring[ringNext]);
+		} else {
+			ringSize++;
+		}
+		ring[ringNext] = fingerprint;
+		ringNext = (ringNext + 1) % ring.length;
+		int i = slot(fingerprint);
+		while (used[i]) {
+			i = (i + 1) & mask;
+		}
+		table[i] = fingerprint;
+		used[i] = true;
+	}
+
+	private int slot(long fingerprint) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	private int indexOf(long fingerprint) {
+		for (int i = slot(fingerprint); used[i]; i = (i + 1) & mask) {
+			if (table[i] == fingerprint) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Remove from the table, shifting back the entries probed past it
+	private void forget(long fingerprint) {
+		int i = indexOf(fingerprint);
+		if (i < 0) {
+			return;
+		}
+		used[i] = false;
+		for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+			int k = slot(table[j]);
+			// j stays if its home slot k lies cyclically in (i, j]
+			boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+			if (!stays) {
+				table[i] = table[j];
+				used[i] = true;
+				used[j] = false;
+				i = j;
+			}
+		}
+	}
+
+	// Double hashing, the two halves of the fingerprint give the probes
+	private boolean contains(long[] filter, long fingerprint) {
+		int h1 = (int) fingerprint;
+		int h2 = (int) (fingerprint >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(long[] filter, long fingerprint) {
+		int h1 = (int) fingerprint;
+		int h2 = (int) (fingerprint >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			filter[bit >>> 6] |= 1L << bit;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.agilepush.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * The publishes of a {@link SkyMqttAndroidClient} which have been handed to
+ * Paho and not completed yet.
+ * <p>
+ * Each publish gets one {@link Record}, which travels with the Paho token as
+ * its user context, so completing it needs no lookup and cannot race with
+ * the publish that created it. Records of QoS 1 and 2 publishes can also be
+ * found by their message id. The table holds at most its capacity of
+ * records; a publish beyond that waits up to {@link #ACQUIRE_TIMEOUT}
+ * milliseconds for a slot and then fails with
+ * {@link MqttException#REASON_CODE_MAX_INFLIGHT}, unless it takes a slot
+ * with {@link #tryAcquire(String, MqttMessage, SkyMqttTokenAndroid, long)},
+ * which never waits.
+ * </p>
+ */
+class SkyInflightTable {
+
+	/** Records held by default, the in-flight window of Paho **/
+	static final int DEFAULT_CAPACITY = 10;
+	/** Longest wait for a free slot, in milliseconds **/
+	static final long ACQUIRE_TIMEOUT = 1000 * 10;
+	/** Handle of a record whose token is not in the token registry **/
+	static final long NO_HANDLE = -1;
+
+	/**
+	 * One publish in flight
+	 */
+	static class Record {
+		final String topic;
+		final MqttMessage message;
+		final SkyMqttTokenAndroid token;
+		final long handle;
+		private volatile int messageId;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		Record(String topic, MqttMessage message, SkyMqttTokenAndroid token,
+				long handle) {
+			this.topic = topic;
+			this.message = message;
+			this.token = token;
+			this.handle = handle;
+		}
+
+		/**
+		 * @return the Paho message id, 0 for QoS 0 or before it is sent
+		 */
+		int getMessageId() {
+			return messageId;
+		}
+	}
+
+	private final int capacity;
+	private final Semaphore slots;
+	private final ConcurrentHashMap<Integer, Record> byMessageId = new ConcurrentHashMap<Integer, Record>();
+	// every record not completed yet, so lost ones can be freed
+	private final ConcurrentHashMap<Record, Boolean> live = new ConcurrentHashMap<Record, Boolean>();
+
+	/**
+	 * @param capacity
+	 *            the number of publishes which may be in flight
+	 */
+	SkyInflightTable(int capacity) {
+		this.capacity = capacity;
+		this.slots = new Semaphore(capacity, true);
+	}
+
+	/**
+	 * Take a slot for a publish, waiting while the table is full. Must not be
+	 * called on the Paho callback thread, which is the one that frees slots.
+	 *
+	 * @return the record of the publish
+	 * @throws MqttException
+	 *             if no slot became free in time
+	 */
+	Record acquire(String topic, MqttMessage message,
+			SkyMqttTokenAndroid token, long handle) throws MqttException {
+		boolean acquired;
+		try {
+			acquired = slots.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if (!acquired) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.INFLIGHT_REJECTED);
+			throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+		}
+		return track(new Record(topic, message, token, handle));
+	}
+
+	/**
+	 * Take a slot for a publish if one is free. Safe to call on the Paho
+	 * callback thread.
+	 *
+	 * @return the record of the publish, or <code>null</code> if the table is
+	 *         full
+	 */
+	Record tryAcquire(String topic, MqttMessage message,
+			SkyMqttTokenAndroid token, long handle) {
+		if (!slots.tryAcquire()) {
+			return null;
+		}
+		return track(new Record(topic, message, token, handle));
+	}
+
+	private Record track(Record record) {
+		live.put(record, Boolean.TRUE);
+		SkyMqttMetrics.set(SkyMqttMetrics.INFLIGHT_DEPTH, depth());
+		return record;
+	}
+
+	/**
+	 * Paho has accepted the publish of a record
+	 *
+	 * @param record
+	 *            the record
+	 * @param messageId
+	 *            the message id Paho assigned
+	 */
+	void sent(Record record, int messageId) {
+		if (messageId == 0) {
+			return;
+		}
+		record.messageId = messageId;
+		byMessageId.put(messageId, record);
+		if (record.done.get()) {
+			// completed before we got here
+			byMessageId.remove(messageId, record);
+		}
+	}
+
+	/**
+	 * Complete a record and free its slot. Safe to call more than once, for
+	 * example from both the action listener and deliveryComplete.
+	 *
+	 * @param record
+	 *            the record
+	 * @return <code>true</code> if this call completed the record
+	 */
+	boolean complete(Record record) {
+		if (!record.done.compareAndSet(false, true)) {
+			return false;
+		}
+		int messageId = record.messageId;
+		if (messageId != 0) {
+			byMessageId.remove(messageId, record);
+		}
+		live.remove(record);
+		slots.release();
+		SkyMqttMetrics.set(SkyMqttMetrics.INFLIGHT_DEPTH, depth());
+		return true;
+	}
+
+	/**
+	 * @param messageId
+	 *            a Paho message id
+	 * @return the record in flight with that id, or <code>null</code>
+	 */
+	Record get(int messageId) {
+		return byMessageId.get(messageId);
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of a token in the token registry
+	 * @return the record in flight with that handle, or <code>null</code>
+	 */
+	Record getByHandle(long handle) {
+		for (Record record : live.keySet()) {
+			if (record.handle == handle) {
+				return record;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the records not completed yet, for example to fail them once
+	 *         Paho has dropped them
+	 */
+	List<Record> records() {
+		return new ArrayList<Record>(live.keySet());
+	}
+
+	/**
+	 * @return the number of publishes in flight
+	 */
+	int depth() {
+		return capacity - slots.availablePermits();
+	}
+}
@@ -0,0 +1,180 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Learns the longest keepalive interval each network lets an idle connection
+ * survive.
+ * <p>
+ * Carrier NATs and Wi-Fi routers drop idle TCP flows after very different
+ * times. For every network the tuner remembers the longest interval which
+ * has been confirmed to work and the shortest interval which has been seen
+ * to fail. Every connect probes half way between the two (or twice the
+ * confirmed interval while no failure is known). A probe is confirmed after
+ * {@link #CONFIRM_PINGS} answered pings, and a ping failure at the probe
+ * interval lowers the ceiling so the next connect falls back.
+ * </p>
+ * <p>
+ * Only a loss while a ping is waiting for its answer, on the network the
+ * ping was sent on, is a ping failure. Losses at other times, or after the
+ * network has changed, say nothing about how long the network keeps an idle
+ * connection.
+ * </p>
+ * <p>
+ * The learned intervals are stored in the service preferences and so apply
+ * to the next connect, also after a restart.
+ * </p>
+ */
+class SkyKeepAliveTuner {
+
+	private static final String TAG = "SkyKeepAliveTuner";
+
+	// Preference keys, the network identity is appended
+	private static final String PREF_GOOD = "keepAlive.good.";
+	private static final String PREF_CEILING = "keepAlive.ceiling.";
+
+	/** Shortest interval the tuner will use, in seconds **/
+	static final int MIN_KEEPALIVE = 30;
+	/** Longest interval the tuner will probe, in seconds **/
+	static final int MAX_KEEPALIVE = 28 * 60;
+	/** Stop probing once the confirmed interval and the ceiling are this close **/
+	static final int PROBE_RESOLUTION = 30;
+	/** Answered pings needed before a probe interval is confirmed **/
+	static final int CONFIRM_PINGS = 2;
+
+	private final SharedPreferences prefs;
+	private final int baseKeepAlive;
+
+	// The probe in progress
+	private String network;
+	private int good;
+	private int probe;
+	private int answeredPings;
+	// network fingerprint the unanswered ping was sent on, null if none
+	private String pingFingerprint;
+
+	/**
+	 * @param prefs
+	 *            the preferences the learned intervals are stored in
+	 * @param baseKeepAlive
+	 *            the configured keepalive in seconds, used on networks
+	 *            nothing has been learned about yet
+	 */
+	SkyKeepAliveTuner(SharedPreferences prefs, int baseKeepAlive) {
+		this.prefs = prefs;
+		this.baseKeepAlive = Math.max(MIN_KEEPALIVE,
+				Math.min(baseKeepAlive, MAX_KEEPALIVE));
+	}
+
+	/**
+	 * Pick the keepalive interval for a connect and start probing it
+	 *
+	 * @param networkIdentity
+	 *            the network the connect is made on, see
+	 *            {@link SkyNetworkIdentity}, may be <code>null</code>
+	 * @return the keepalive interval in seconds
+	 */
+	synchronized int begin(String networkIdentity) {
+		network = networkIdentity;
+		answeredPings = 0;
+		pingFingerprint = null;
+		if (network == null) {
+			good = baseKeepAlive;
+			probe = baseKeepAlive;
+			return probe;
+		}
+		good = prefs.getInt(PREF_GOOD + network, baseKeepAlive);
+		int ceiling = prefs.getInt(PREF_CEILING + network, 0);
+		if (ceiling == 0) {
+			probe = Math.min(good * 2, MAX_KEEPALIVE);
+		} else if (ceiling - good > PROBE_RESOLUTION) {
+			probe = (good + ceiling) / 2;
+		} else {
+			probe = good;
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.KEEPALIVE_LEARNED, good);
+		Log.d(TAG, network + ": keepalive " + good + "s confirmed, probing "
+				+ probe + "s");
+		return probe;
+	}
+
+	/**
+	 * A keepalive ping has been sent
+	 *
+	 * @param fingerprint
+	 *            the network it was sent on, see
+	 *            {@link SkyNetworkIdentity#fingerprint(android.content.Context)}
+	 */
+	synchronized void onPingSent(String fingerprint) {
+		pingFingerprint = fingerprint;
+	}
+
+	/**
+	 * A keepalive ping has been answered by the broker
+	 */
+	synchronized void onPingSuccess() {
+		pingFingerprint = null;
+		if (network == null || probe == good) {
+			return;
+		}
+		if (++answeredPings >= CONFIRM_PINGS) {
+			Log.d(TAG, network + ": keepalive " + probe + "s confirmed");
+			good = probe;
+			SkyPreferences.apply(prefs.edit().putInt(PREF_GOOD + network,
+					good));
+			SkyMqttMetrics.set(SkyMqttMetrics.KEEPALIVE_LEARNED, good);
+		}
+	}
+
+	/**
+	 * The connection has been lost. A ping that timed out, or a connection
+	 * reset while a ping waited for its answer, counts against the interval
+	 * in use if the network is still the one the ping was sent on.
+	 *
+	 * @param cause
+	 *            the reason the connection was lost
+	 * @param fingerprint
+	 *            the network now, see
+	 *            {@link SkyNetworkIdentity#fingerprint(android.content.Context)}
+	 */
+	synchronized void onConnectionLost(Throwable cause, String fingerprint) {
+		String sentOn = pingFingerprint;
+		pingFingerprint = null;
+		if (network == null || sentOn == null || !sentOn.equals(fingerprint)
+				|| !isPingFailure(cause)) {
+			return;
+		}
+		SkyMqttMetrics.increment(SkyMqttMetrics.KEEPALIVE_PROBE_FAILURES);
+		SharedPreferences.Editor editor = prefs.edit();
+		if (probe > good) {
+			// the probe failed, fall back to the confirmed interval
+			editor.putInt(PREF_CEILING + network, probe);
+			Log.d(TAG, network + ": keepalive probe " + probe + "s failed");
+		} else {
+			// the confirmed interval failed, the network has changed its
+			// mind - halve it and search again
+			int lowered = Math.max(MIN_KEEPALIVE, good / 2);
+			editor.putInt(PREF_CEILING + network, good);
+			editor.putInt(PREF_GOOD + network, lowered);
+			Log.d(TAG, network + ": keepalive " + good + "s failed, back to "
+					+ lowered + "s");
+			good = lowered;
+			SkyMqttMetrics.set(SkyMqttMetrics.KEEPALIVE_LEARNED, good);
+		}
+		SkyPreferences.apply(editor);
+		// do not count the same probe twice
+		probe = good;
+	}
+
+	private static boolean isPingFailure(Throwable cause) {
+		if (!(cause instanceof MqttException)) {
+			return false;
+		}
+		int reason = ((MqttException) cause).getReasonCode();
+		return reason == MqttException.REASON_CODE_CLIENT_TIMEOUT
+				|| reason == MqttException.REASON_CODE_CONNECTION_LOST;
+	}
+}
@@ -0,0 +1,784 @@
+package com.agilepush.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Hands arrived messages from Paho's callback thread to consumer threads.
+ * <p>
+ * Paho calls {@link MqttCallback#messageArrived(String, MqttMessage)} on its
+ * single callback thread, and nothing else arrives or is acknowledged while
+ * the application handles a message. This callback only puts the message on
+ * a lock-free queue and returns; consumer threads take it from there and
+ * call the target callback. Connection losses and delivery completions are
+ * passed on at once.
+ * </p>
+ * <p>
+ * The messages are striped over lanes by the hash of a key, the topic unless
+ * a {@link KeyExtractor} is set. Each lane has its own queue and thread, so
+ * messages with the same key are handled strictly in order while a slow
+ * handler for one key does not hold up the other lanes.
+ * </p>
+ * <p>
+ * Each lane holds at most its share of the capacity, beyond that the
+ * {@link Overflow} policy applies. Spilled messages are appended to a file
+ * of the lane and read back, in order, as its queue empties; messages still
+ * queued when the dispatcher is closed, or arriving after, are spilled too
+ * and handled after the next start. A spilled QoS 1 or 2 message is in the
+ * file before Paho acknowledges it, so it survives the death of the
+ * process, and is forced to the disk in a batch at most
+ * {@link #SYNC_DELAY} milliseconds later. A QoS 0 message is neither
+ * written nor synced on its own. The depth of each lane and the time its
+ * messages wait are kept in the metrics.
+ * </p>
+ * <p>
+ * A {@link SkyArrivedMessage} is never spilled: the unacknowledged store of
+ * the client already keeps it and delivers it again after a restart, a
+ * spilled copy would be delivered twice. It is queued beyond the capacity
+ * of its lane instead, which the window of the store bounds, and released
+ * to the store if the dispatcher is closed.
+ * </p>
+ */
+class SkyMessageDispatcher implements MqttCallback {
+
+	private static final String TAG = "SkyMessageDispatcher";
+
+	// Preference keys
+	static final String PREF_CAPACITY = "dispatchCapacity";
+	static final String PREF_LANES = "dispatchLanes";
+	static final String PREF_OVERFLOW = "dispatchOverflow";
+
+	/** Messages queued by default, over all lanes **/
+	static final int DEFAULT_CAPACITY = 1000;
+	/** Most lanes used by default, one per core below that **/
+	static final int MAX_DEFAULT_LANES = 4;
+	/** Time spilled messages are collected before they are forced to the disk **/
+	static final long SYNC_DELAY = 100;
+
+	/**
+	 * What to do with a message when its lane is full
+	 */
+	enum Overflow {
+		/** Hold up Paho's callback thread until there is room **/
+		BLOCK,
+		/** Drop the oldest message of the lane **/
+		DROP_OLDEST,
+		/** Append the message to the spill file of the lane **/
+		SPILL
+	}
+
+	/**
+	 * Picks the key whose messages are kept in order
+	 */
+	interface KeyExtractor {
+		/**
+		 * @param topic
+		 *            the topic the message arrived on
+		 * @param message
+		 *            the message
+		 * @return the key, messages with equal keys share a lane
+		 */
+		String key(String topic, MqttMessage message);
+	}
+
+	/**
+	 * A queued message
+	 */
+	private static class Item {
+		final String topic;
+		final MqttMessage message;
+		// elapsed realtime it was queued at
+		final long queuedAt;
+
+		Item(String topic, MqttMessage message, long queuedAt) {
+			this.topic = topic;
+			this.message = message;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	/**
+	 * One queue and the thread which empties it
+	 */
+	private class Lane implements Runnable {
+		private final int capacity;
+		private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+		private final AtomicInteger depth = new AtomicInteger();
+		// one permit per queued message
+		private final Semaphore items = new Semaphore(0);
+		// one permit per free place, only used by BLOCK
+		private final Semaphore slots;
+		private final Spill spill;
+		private final Thread thread;
+		// names of the metrics of this lane
+		private final String depthMetric;
+		private final String dwellMetric;
+
+		Lane(int index, int capacity, File spillFile) {
+			this.capacity = capacity;
+			this.slots = new Semaphore(capacity);
+			this.spill = new Spill(spillFile);
+			this.thread = new Thread(this, TAG + "-" + index);
+			thread.setDaemon(true);
+			this.depthMetric = SkyMqttMetrics.DISPATCH_DEPTH + "." + index;
+			this.dwellMetric = SkyMqttMetrics.DISPATCH_DWELL + "." + index;
+		}
+
+		/**
+		 * Queue a message, on Paho's callback thread
+		 */
+		void offer(Item item) throws InterruptedException {
+			switch (overflow) {
+			case BLOCK:
+				if (!slots.tryAcquire()) {
+					SkyMqttMetrics.increment(SkyMqttMetrics.DISPATCH_BLOCKED);
+					slots.acquire();
+				}
+				enqueueOpen(item);
+				break;
+			case DROP_OLDEST:
+				if (depth.get() >= capacity && items.tryAcquire()) {
+					Item oldest = queue.poll();
+					SkyMqttMetrics.set(depthMetric, depth.decrementAndGet());
+					dropped(oldest);
+				}
+				enqueueOpen(item);
+				break;
+			case SPILL:
+				synchronized (spill) {
+					// once spilling, everything goes to the file to keep the
+					// order, and once closed the next start reads it back
+					if (closed) {
+						spillOrDrop(item);
+						spill.close();
+					} else if ((spill.isEmpty() && depth.get() < capacity)
+							|| isTracked(item)) {
+						enqueue(item);
+					} else {
+						spillOrDrop(item);
+					}
+				}
+				break;
+			}
+		}
+
+		// Queue unless closed, the queued messages are dropped then anyway
+		private void enqueueOpen(Item item) {
+			if (!closed) {
+				enqueue(item);
+				if (!closed || !queue.remove(item)) {
+					return;
+				}
+			}
+			dropped(item);
+		}
+
+		// Must hold the lock of the spill
+		private void spillOrDrop(Item item) {
+			if (!isTracked(item) && spill.append(item)) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.DISPATCH_SPILLED);
+				scheduleSync();
+			} else {
+				dropped(item);
+			}
+		}
+
+		// Must hold the lock of the spill
+		private void scheduleSync() {
+			if (!spill.isDirty() || spill.syncScheduled) {
+				return;
+			}
+			try {
+				syncer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (spill) {
+							spill.syncScheduled = false;
+							spill.sync();
+						}
+					}
+				}, SYNC_DELAY, TimeUnit.MILLISECONDS);
+				spill.syncScheduled = true;
+			} catch (RejectedExecutionException e) {
+				// closing, the spill is synced as it is closed
+			}
+		}
+
+		private void enqueue(Item item) {
+			queue.offer(item);
+			SkyMqttMetrics.set(depthMetric, depth.incrementAndGet());
+			items.release();
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					items.acquire();
+				} catch (InterruptedException e) {
+					break;
+				}
+				Item item = queue.poll();
+				if (item == null) {
+					continue;
+				}
+				SkyMqttMetrics.set(depthMetric, depth.decrementAndGet());
+				if (overflow == Overflow.BLOCK) {
+					slots.release();
+				} else if (overflow == Overflow.SPILL) {
+					refill();
+				}
+				long dwell = SystemClock.elapsedRealtime() - item.queuedAt;
+				SkyMqttMetrics.set(dwellMetric, dwell);
+				if (dwell > SkyMqttMetrics
+						.get(SkyMqttMetrics.DISPATCH_DWELL_MAX)) {
+					SkyMqttMetrics.set(SkyMqttMetrics.DISPATCH_DWELL_MAX, dwell);
+				}
+				try {
+					SkyMqttAndroidClient c = client;
+					if (c != null) {
+						c.route(item.topic, item.message, target);
+					} else {
+						target.messageArrived(item.topic, item.message);
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "messageArrived failed", e);
+				}
+			}
+		}
+
+		/**
+		 * Move spilled messages back into the queue once it is half empty
+		 */
+		void refill() {
+			if (spill.isEmpty()) {
+				return;
+			}
+			synchronized (spill) {
+				if (spill.isEmpty() || depth.get() > capacity / 2) {
+					return;
+				}
+				while (!spill.isEmpty() && depth.get() < capacity) {
+					Item item = spill.take();
+					if (item == null) {
+						break;
+					}
+					enqueue(item);
+				}
+			}
+		}
+
+		/**
+		 * Stop the thread, spill or drop what is still queued
+		 */
+		void close() {
+			thread.interrupt();
+			if (overflow != Overflow.SPILL) {
+				// wakes an offer waiting for room, it drops its message
+				slots.release(capacity);
+				for (Item item : drain()) {
+					dropped(item);
+				}
+				return;
+			}
+			// under the lock, so an offer either queued before or spills
+			synchronized (spill) {
+				// the queued messages are older than the spilled ones
+				List<Item> left = new ArrayList<Item>();
+				for (Item item : drain()) {
+					if (isTracked(item)) {
+						dropped(item);
+					} else {
+						left.add(item);
+					}
+				}
+				if (!spill.prepend(left)) {
+					for (Item item : left) {
+						dropped(item);
+					}
+				}
+				spill.close();
+			}
+		}
+
+		private List<Item> drain() {
+			List<Item> left = new ArrayList<Item>();
+			Item item;
+			while ((item = queue.poll()) != null) {
+				left.add(item);
+			}
+			depth.set(0);
+			SkyMqttMetrics.set(depthMetric, 0);
+			return left;
+		}
+	}
+
+	private final MqttCallback target;
+	private final Overflow overflow;
+	private final Lane[] lanes;
+	// Forces the spill files to the disk
+	private final ScheduledExecutorService syncer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + "-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private volatile KeyExtractor keyExtractor;
+	private volatile SkyMqttAndroidClient client;
+	private volatile boolean closed;
+
+	/**
+	 * @param target
+	 *            the callback which handles the messages
+	 * @param capacity
+	 *            the number of messages queued over all lanes
+	 * @param lanes
+	 *            the number of lanes
+	 * @param overflow
+	 *            what to do when a lane is full
+	 * @param spillFile
+	 *            the name the spill files of the lanes are derived from,
+	 *            spilled messages left over are read back
+	 */
+	SkyMessageDispatcher(MqttCallback target, int capacity, int lanes,
+			Overflow overflow, File spillFile) {
+		this.target = target;
+		this.overflow = overflow;
+		this.lanes = new Lane[lanes];
+		int laneCapacity = Math.max(1, (capacity + lanes - 1) / lanes);
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = new Lane(i, laneCapacity, laneFile(spillFile, i));
+		}
+		restoreSpilled(spillFile);
+		for (Lane lane : this.lanes) {
+			lane.refill();
+			lane.thread.start();
+		}
+	}
+
+	/**
+	 * Create the dispatcher configured in the preferences
+	 *
+	 * @param target
+	 *            the callback which handles the messages
+	 * @param prefs
+	 *            the service preferences
+	 * @param spillFile
+	 *            the name the spill files are derived from
+	 * @return the dispatcher
+	 */
+	static SkyMessageDispatcher fromPreferences(MqttCallback target,
+			SharedPreferences prefs, File spillFile) {
+		String overflow = prefs.getString(PREF_OVERFLOW, null);
+		Overflow policy = Overflow.SPILL;
+		if ("block".equals(overflow)) {
+			policy = Overflow.BLOCK;
+		} else if ("dropOldest".equals(overflow)) {
+			policy = Overflow.DROP_OLDEST;
+		}
+		int lanes = Math.min(MAX_DEFAULT_LANES, Runtime.getRuntime()
+				.availableProcessors());
+		return new SkyMessageDispatcher(target, prefs.getInt(PREF_CAPACITY,
+				DEFAULT_CAPACITY), Math.max(1, prefs.getInt(PREF_LANES, lanes)),
+				policy, spillFile);
+	}
+
+	/**
+	 * Set how the key of a message is picked, by default its topic
+	 *
+	 * @param keyExtractor
+	 *            the extractor, <code>null</code> for the topic
+	 */
+	void setKeyExtractor(KeyExtractor keyExtractor) {
+		this.keyExtractor = keyExtractor;
+	}
+
+	/**
+	 * Set the client whose messages are dispatched. The lanes route its
+	 * messages to its listeners before the target, and a message this
+	 * dispatcher drops is released from its unacknowledged window. Called by
+	 * {@link SkyMqttAndroidClient#setCallback(MqttCallback)}.
+	 *
+	 * @param client
+	 *            the client
+	 */
+	void setClient(SkyMqttAndroidClient client) {
+		this.client = client;
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		target.connectionLost(cause);
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		target.deliveryComplete(token);
+	}
+
+	/**
+	 * Queue the message on its lane
+	 */
+	@Override
+	public void messageArrived(String topic, MqttMessage message)
+			throws Exception {
+		Item item = new Item(topic, message, SystemClock.elapsedRealtime());
+		laneOf(item).offer(item);
+	}
+
+	/**
+	 * A message will not reach the target. One waiting for its
+	 * acknowledgement is released, so it does not hold its place in the
+	 * window and is delivered again after a restart.
+	 */
+	private void dropped(Item item) {
+		SkyMqttMetrics.increment(SkyMqttMetrics.DISPATCH_DROPPED);
+		SkyMqttAndroidClient c = client;
+		if (c != null && item.message instanceof SkyArrivedMessage) {
+			c.releaseMessage(((SkyArrivedMessage) item.message).getMessageId());
+		}
+	}
+
+	// Kept by the unacknowledged store of the client
+	private static boolean isTracked(Item item) {
+		return item.message instanceof SkyArrivedMessage;
+	}
+
+	private Lane laneOf(Item item) {
+		KeyExtractor extractor = keyExtractor;
+		String key = (extractor == null) ? item.topic : extractor.key(
+				item.topic, item.message);
+		// spread the hash, String.hashCode differs little in the low bits
+		int h = (key == null) ? 0 : key.hashCode();
+		h ^= (h >>> 16);
+		return lanes[(h & Integer.MAX_VALUE) % lanes.length];
+	}
+
+	/**
+	 * Stop the lanes. Messages still queued are spilled if the policy is
+	 * SPILL, otherwise they are dropped.
+	 */
+	void close() {
+		closed = true;
+		for (Lane lane : lanes) {
+			lane.close();
+		}
+		syncer.shutdown();
+	}
+
+	private static File laneFile(File spillFile, int lane) {
+		return new File(spillFile.getPath() + "." + lane);
+	}
+
+	/**
+	 * Move the messages spilled by a run with fewer lanes, or more, to the
+	 * lanes they belong to now
+	 */
+	private void restoreSpilled(File spillFile) {
+		List<File> orphans = new ArrayList<File>();
+		orphans.add(spillFile);
+		for (int i = lanes.length; laneFile(spillFile, i).exists(); i++) {
+			orphans.add(laneFile(spillFile, i));
+		}
+		for (File file : orphans) {
+			if (!file.exists()) {
+				continue;
+			}
+			int moved = 0;
+			try {
+				DataInputStream in = Spill.open(file);
+				try {
+					Item item;
+					while ((item = Spill.read(in)) != null) {
+						Spill spill = laneOf(item).spill;
+						synchronized (spill) {
+							if (spill.append(item)) {
+								moved++;
+							} else {
+								dropped(item);
+							}
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot read " + file, e);
+			}
+			// on the disk in the files of the lanes before the old one goes
+			for (Lane lane : lanes) {
+				synchronized (lane.spill) {
+					lane.spill.sync();
+				}
+			}
+			file.delete();
+			Log.d(TAG, moved + " spilled messages moved from " + file);
+		}
+	}
+
+	/**
+	 * The spill file, a queue of messages on the disk. Callers hold its lock.
+	 */
+	private static class Spill {
+		private final File file;
+		private FileOutputStream fileOut;
+		private DataOutputStream out;
+		private DataInputStream in;
+		// read without the lock by the consumers
+		private volatile int size;
+		// QoS 1 or 2 messages appended since the last sync
+		private boolean dirty;
+		boolean syncScheduled;
+
+		Spill(File file) {
+			this.file = file;
+			if (file.exists()) {
+				// count the messages left over
+				try {
+					DataInputStream counter = open(file);
+					try {
+						while (read(counter) != null) {
+							size++;
+						}
+					} finally {
+						counter.close();
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Cannot read " + file, e);
+				}
+				if (size == 0) {
+					file.delete();
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		boolean isDirty() {
+			return dirty;
+		}
+
+		/**
+		 * Write a message to the end of the file. Paho acknowledges a QoS 1
+		 * or 2 message once messageArrived returns, so it is in the file
+		 * before this returns and {@link #sync()} forces it to the disk.
+		 *
+		 * @return <code>false</code> if it could not be written
+		 */
+		boolean append(Item item) {
+			try {
+				if (out == null) {
+					fileOut = new FileOutputStream(file, true);
+					out = new DataOutputStream(new BufferedOutputStream(fileOut));
+				}
+				write(out, item);
+				size++;
+				// a QoS 0 message may be lost anyway, it goes with the next
+				// one that needs to be kept
+				if (item.message.getQos() > 0) {
+					out.flush();
+					dirty = true;
+				}
+				return true;
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot spill a message", e);
+				return false;
+			}
+		}
+
+		/**
+		 * Force the messages appended since the last sync to the disk
+		 */
+		void sync() {
+			if (!dirty || out == null) {
+				return;
+			}
+			dirty = false;
+			try {
+				out.flush();
+				fileOut.getFD().sync();
+				SkyMqttMetrics.increment(SkyMqttMetrics.DISPATCH_SYNCS);
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot sync " + file, e);
+			}
+		}
+
+		Item take() {
+			try {
+				// the reader sees what has been appended since it was opened
+				if (out != null) {
+					out.flush();
+				}
+				if (in == null) {
+					in = open(file);
+				}
+				Item item = read(in);
+				if (item != null) {
+					size--;
+				}
+				if (item == null || size == 0) {
+					reset();
+				}
+				return item;
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot read a spilled message", e);
+				reset();
+				return null;
+			}
+		}
+
+		/**
+		 * Write the given messages in front of the ones spilled already. The
+		 * file is rewritten aside and renamed, so the spilled messages stay
+		 * on the disk throughout.
+		 *
+		 * @return <code>false</code> if the given messages could not be
+		 *         written, the spilled ones are kept then
+		 */
+		boolean prepend(List<Item> items) {
+			if (items.isEmpty()) {
+				return true;
+			}
+			List<Item> all = new ArrayList<Item>(items);
+			File rewritten = new File(file.getPath() + ".tmp");
+			try {
+				if (out != null) {
+					out.flush();
+				}
+				if (!isEmpty()) {
+					if (in == null) {
+						in = open(file);
+					}
+					Item item;
+					while ((item = read(in)) != null) {
+						all.add(item);
+					}
+				}
+				FileOutputStream fos = new FileOutputStream(rewritten);
+				DataOutputStream tmp = new DataOutputStream(
+						new BufferedOutputStream(fos));
+				try {
+					for (Item i : all) {
+						write(tmp, i);
+					}
+					tmp.flush();
+					fos.getFD().sync();
+				} finally {
+					tmp.close();
+				}
+				// everything is in the new file
+				dirty = false;
+				close();
+				if (!rewritten.renameTo(file)) {
+					throw new IOException("Cannot rename " + rewritten);
+				}
+				size = all.size();
+				return true;
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot spill the queued messages", e);
+				rewritten.delete();
+				return false;
+			}
+		}
+
+		void close() {
+			sync();
+			try {
+				if (out != null) {
+					out.close();
+				}
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot close " + file, e);
+			}
+			fileOut = null;
+			out = null;
+			in = null;
+		}
+
+		// Everything has been read, start a new file
+		private void reset() {
+			dirty = false;
+			close();
+			size = 0;
+			file.delete();
+		}
+
+		private static DataInputStream open(File file) throws IOException {
+			return new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+		}
+
+		private static void write(DataOutputStream out, Item item)
+				throws IOException {
+			out.writeUTF(item.topic);
+			// once the id of a message waiting for its acknowledgement, those
+			// are no longer spilled
+			out.writeUTF("");
+			out.writeByte(item.message.getQos());
+			out.writeBoolean(item.message.isRetained());
+			byte[] payload = item.message.getPayload();
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+
+		// null at the end of the file or of the part written completely
+		private static Item read(DataInputStream in) throws IOException {
+			try {
+				while (true) {
+					String topic = in.readUTF();
+					String messageId = in.readUTF();
+					int qos = in.readByte();
+					boolean retained = in.readBoolean();
+					byte[] payload = new byte[in.readInt()];
+					in.readFully(payload);
+					if (messageId.length() > 0) {
+						// spilled by an earlier version, the unacknowledged
+						// store delivers it again
+						continue;
+					}
+					MqttMessage message = new MqttMessage(payload);
+					message.setQos(qos);
+					message.setRetained(retained);
+					// the time spent on the disk is not counted as dwell
+					return new Item(topic, message,
+							SystemClock.elapsedRealtime());
+				}
+			} catch (EOFException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Receives the messages arriving on the topics of one subscription, see
+ * {@link SkyMqttAndroidClient#subscribe(String, int, SkyMessageListener)}.
+ */
+public interface SkyMessageListener {
+
+	/**
+	 * A message has arrived on a topic matching the filter the listener was
+	 * registered with. Called on a lane of the client's
+	 * {@link SkyMessageDispatcher} if it has one, otherwise on Paho's
+	 * callback thread, where it should return quickly.
+	 * <p>
+	 * In {@link SkyMqttAndroidClient.Ack#MANUAL_ACK} mode the message is a
+	 * {@link SkyArrivedMessage} and stays unacknowledged after the listener
+	 * returns. Pass its id to
+	 * {@link SkyMqttAndroidClient#acknowledgeMessage(String)} once it has been
+	 * processed; until then it is delivered again after a restart. One
+	 * acknowledgement settles it for every matching listener. If one throws,
+	 * it is released and delivered again, to all of them, after a restart.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message, shared with the other matching listeners
+	 * @throws Exception
+	 *             logged and otherwise ignored
+	 */
+	void messageArrived(String topic, MqttMessage message) throws Exception;
+}
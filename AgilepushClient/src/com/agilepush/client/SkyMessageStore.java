@@ -0,0 +1,431 @@
+package com.agilepush.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * History of the messages which have arrived, kept in a SQLite database.
+ * <p>
+ * {@link #add(String, String, MqttMessage)} only queues a message, so the
+ * Paho callback thread is never held up by the disk. A writer thread inserts
+ * the queued messages in batches of up to {@link #MAX_BATCH}, one transaction
+ * per batch. A full queue drops the message rather than block, except for a
+ * message which is acknowledged once written, see
+ * {@link #add(String, String, MqttMessage, Runnable)}. After a batch
+ * the history is pruned, at most every {@link #RETENTION_INTERVAL}
+ * milliseconds, to the count, age and bytes configured in the preferences.
+ * </p>
+ * <p>
+ * Messages are numbered in order of arrival and are read back in pages keyed
+ * by that number, see {@link #after(String, long, int)} and
+ * {@link #before(String, long, int)}. A page only holds messages which have
+ * been written already.
+ * </p>
+ */
+class SkyMessageStore {
+
+	private static final String TAG = "SkyMessageStore";
+
+	// Preference keys
+	static final String PREF_MAX_COUNT = "historyMaxCount";
+	static final String PREF_MAX_AGE = "historyMaxAge";
+	static final String PREF_MAX_BYTES = "historyMaxBytes";
+
+	/** Messages kept by default **/
+	static final int DEFAULT_MAX_COUNT = 1000;
+	/** Age in seconds after which messages are dropped by default **/
+	static final int DEFAULT_MAX_AGE = 60 * 60 * 24 * 7;
+	/** Payload bytes kept by default **/
+	static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	/** Messages waiting to be written before arrivals are dropped **/
+	static final int QUEUE_CAPACITY = 10000;
+	/** Most messages written in one transaction **/
+	static final int MAX_BATCH = 500;
+	/** Smallest time between two prunings **/
+	static final long RETENTION_INTERVAL = 1000 * 5;
+
+	private static final String DATABASE_NAME = "history.db";
+	private static final int DATABASE_VERSION = 1;
+	private static final String TABLE = "arrivedMessages";
+	// MESSAGE_ID is the arrival sequence
+	private static final String ARRIVED_AT = "arrivedAt";
+	private static final String SIZE = "size";
+
+	private static final String[] COLUMNS = { SkyMqttConstants.MESSAGE_ID,
+			SkyMqttConstants.CLIENT_HANDLE, SkyMqttConstants.DESTINATION_NAME,
+			SkyMqttConstants.PAYLOAD, SkyMqttConstants.QOS,
+			SkyMqttConstants.RETAINED, SkyMqttConstants.DUPLICATE, ARRIVED_AT };
+
+	private static SkyMessageStore instance;
+
+	/**
+	 * A message read back from the history
+	 */
+	static class StoredMessage {
+		/** Arrival sequence **/
+		final long seq;
+		final String clientHandle;
+		final String topic;
+		final MqttMessage message;
+		final boolean duplicate;
+		/** Wall clock time of arrival **/
+		final long arrivedAt;
+
+		StoredMessage(long seq, String clientHandle, String topic,
+				MqttMessage message, boolean duplicate, long arrivedAt) {
+			this.seq = seq;
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.message = message;
+			this.duplicate = duplicate;
+			this.arrivedAt = arrivedAt;
+		}
+	}
+
+	/**
+	 * A message waiting to be written
+	 */
+	private static class Arrival {
+		final String clientHandle;
+		final String topic;
+		final MqttMessage message;
+		final long arrivedAt;
+		// run once the message has been committed, may be null
+		final Runnable written;
+
+		Arrival(String clientHandle, String topic, MqttMessage message,
+				long arrivedAt, Runnable written) {
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.message = message;
+			this.arrivedAt = arrivedAt;
+			this.written = written;
+		}
+	}
+
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+
+		DatabaseHelper(Context context) {
+			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE + " ("
+					+ SkyMqttConstants.MESSAGE_ID
+					+ " INTEGER PRIMARY KEY AUTOINCREMENT, "
+					+ SkyMqttConstants.CLIENT_HANDLE + " TEXT, "
+					+ SkyMqttConstants.DESTINATION_NAME + " TEXT, "
+					+ SkyMqttConstants.PAYLOAD + " BLOB, "
+					+ SkyMqttConstants.QOS + " INTEGER, "
+					+ SkyMqttConstants.RETAINED + " INTEGER, "
+					+ SkyMqttConstants.DUPLICATE + " INTEGER, " + ARRIVED_AT
+					+ " INTEGER, " + SIZE + " INTEGER)");
+			db.execSQL("CREATE INDEX " + TABLE + "_client ON " + TABLE + " ("
+					+ SkyMqttConstants.CLIENT_HANDLE + ", "
+					+ SkyMqttConstants.MESSAGE_ID + ")");
+			db.execSQL("CREATE INDEX " + TABLE + "_arrived ON " + TABLE
+					+ " (" + ARRIVED_AT + ")");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+			onCreate(db);
+		}
+	}
+
+	private final DatabaseHelper helper;
+	private final int maxCount;
+	private final long maxAge;
+	private final long maxBytes;
+
+	private final BlockingQueue<Arrival> queue = new ArrayBlockingQueue<Arrival>(
+			QUEUE_CAPACITY);
+	private long lastPruned;
+
+	/**
+	 * @param context
+	 *            the application context
+	 * @param maxCount
+	 *            messages kept, 0 for no limit
+	 * @param maxAge
+	 *            seconds after which messages are dropped, 0 for no limit
+	 * @param maxBytes
+	 *            payload bytes kept, 0 for no limit
+	 */
+	SkyMessageStore(Context context, int maxCount, int maxAge, int maxBytes) {
+		this.helper = new DatabaseHelper(context);
+		this.maxCount = maxCount;
+		this.maxAge = maxAge * 1000L;
+		this.maxBytes = maxBytes;
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, TAG);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param context
+	 *            any context of the application
+	 * @return the store of the application, configured from the service
+	 *         preferences
+	 */
+	static synchronized SkyMessageStore getInstance(Context context) {
+		if (instance == null) {
+			SharedPreferences prefs = context.getSharedPreferences(
+					SkyMqttService.TAG, Context.MODE_PRIVATE);
+			instance = new SkyMessageStore(context.getApplicationContext(),
+					prefs.getInt(PREF_MAX_COUNT, DEFAULT_MAX_COUNT),
+					prefs.getInt(PREF_MAX_AGE, DEFAULT_MAX_AGE),
+					prefs.getInt(PREF_MAX_BYTES, DEFAULT_MAX_BYTES));
+		}
+		return instance;
+	}
+
+	/**
+	 * Queue an arrived message to be written. Never blocks.
+	 *
+	 * @param clientHandle
+	 *            the client the message arrived on
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @return <code>false</code> if the queue was full and the message was
+	 *         dropped
+	 */
+	boolean add(String clientHandle, String topic, MqttMessage message) {
+		if (!queue.offer(new Arrival(clientHandle, topic, message, System
+				.currentTimeMillis(), null))) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.HISTORY_DROPPED);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Queue an arrived message to be written and tell when it has been
+	 * committed. Waits while the queue is full rather than drop the message.
+	 *
+	 * @param clientHandle
+	 *            the client the message arrived on
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @param written
+	 *            run on the writer thread once the message is on the disk,
+	 *            not run if writing it fails
+	 */
+	void add(String clientHandle, String topic, MqttMessage message,
+			Runnable written) throws InterruptedException {
+		queue.put(new Arrival(clientHandle, topic, message, System
+				.currentTimeMillis(), written));
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	int pending() {
+		return queue.size();
+	}
+
+	/**
+	 * Read the messages which arrived after a given one, oldest first
+	 *
+	 * @param clientHandle
+	 *            the client
+	 * @param afterSeq
+	 *            the sequence of the last message already read, 0 to start
+	 *            at the oldest
+	 * @param limit
+	 *            the size of the page
+	 * @return the page
+	 */
+	List<StoredMessage> after(String clientHandle, long afterSeq, int limit) {
+		return page(clientHandle, SkyMqttConstants.MESSAGE_ID + " > ?",
+				afterSeq, "ASC", limit);
+	}
+
+	/**
+	 * Read the messages which arrived before a given one, newest first
+	 *
+	 * @param clientHandle
+	 *            the client
+	 * @param beforeSeq
+	 *            the sequence of the oldest message already read,
+	 *            {@link Long#MAX_VALUE} to start at the newest
+	 * @param limit
+	 *            the size of the page
+	 * @return the page
+	 */
+	List<StoredMessage> before(String clientHandle, long beforeSeq, int limit) {
+		return page(clientHandle, SkyMqttConstants.MESSAGE_ID + " < ?",
+				beforeSeq, "DESC", limit);
+	}
+
+	private List<StoredMessage> page(String clientHandle, String condition,
+			long seq, String order, int limit) {
+		List<StoredMessage> page = new ArrayList<StoredMessage>();
+		Cursor c = helper.getReadableDatabase().query(TABLE, COLUMNS,
+				SkyMqttConstants.CLIENT_HANDLE + " = ? AND " + condition,
+				new String[] { clientHandle, Long.toString(seq) }, null, null,
+				SkyMqttConstants.MESSAGE_ID + " " + order,
+				Integer.toString(limit));
+		try {
+			while (c.moveToNext()) {
+				MqttMessage message = new MqttMessage(c.getBlob(3));
+				message.setQos(c.getInt(4));
+				message.setRetained(c.getInt(5) != 0);
+				page.add(new StoredMessage(c.getLong(0), c.getString(1), c
+						.getString(2), message, c.getInt(6) != 0, c
+						.getLong(7)));
+			}
+		} finally {
+			c.close();
+		}
+		return page;
+	}
+
+	/**
+	 * The writer thread, one transaction per batch of queued messages
+	 */
+	private void write() {
+		List<Arrival> batch = new ArrayList<Arrival>(MAX_BATCH);
+		SQLiteStatement insert = null;
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			try {
+				SQLiteDatabase db = helper.getWritableDatabase();
+				if (insert == null) {
+					insert = db.compileStatement("INSERT INTO " + TABLE + " ("
+							+ SkyMqttConstants.CLIENT_HANDLE + ", "
+							+ SkyMqttConstants.DESTINATION_NAME + ", "
+							+ SkyMqttConstants.PAYLOAD + ", "
+							+ SkyMqttConstants.QOS + ", "
+							+ SkyMqttConstants.RETAINED + ", "
+							+ SkyMqttConstants.DUPLICATE + ", " + ARRIVED_AT
+							+ ", " + SIZE + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+				}
+				db.beginTransaction();
+				try {
+					for (Arrival a : batch) {
+						byte[] payload = a.message.getPayload();
+						insert.bindString(1, a.clientHandle);
+						insert.bindString(2, a.topic);
+						insert.bindBlob(3, payload);
+						insert.bindLong(4, a.message.getQos());
+						insert.bindLong(5, a.message.isRetained() ? 1 : 0);
+						insert.bindLong(6, a.message.isDuplicate() ? 1 : 0);
+						insert.bindLong(7, a.arrivedAt);
+						insert.bindLong(8, payload.length);
+						insert.executeInsert();
+					}
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+				SkyMqttMetrics.add(SkyMqttMetrics.HISTORY_STORED, batch.size());
+				SkyMqttMetrics.set(SkyMqttMetrics.HISTORY_BATCH_SIZE,
+						batch.size());
+			} catch (RuntimeException e) {
+				// SQLiteException mostly, nothing may stop the only writer
+				Log.e(TAG, "Cannot write " + batch.size() + " messages", e);
+				SkyMqttMetrics.add(SkyMqttMetrics.HISTORY_DROPPED,
+						batch.size());
+				batch.clear();
+				continue;
+			}
+			for (Arrival a : batch) {
+				if (a.written != null) {
+					try {
+						a.written.run();
+					} catch (RuntimeException e) {
+						Log.e(TAG, "written callback failed", e);
+					}
+				}
+			}
+			try {
+				prune(helper.getWritableDatabase());
+			} catch (RuntimeException e) {
+				// the batch is written, it is only kept longer
+				Log.e(TAG, "Cannot prune the history", e);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Drop the messages beyond the configured count, age and bytes
+	 */
+	private void prune(SQLiteDatabase db) {
+		long now = System.currentTimeMillis();
+		if (now - lastPruned < RETENTION_INTERVAL && now >= lastPruned) {
+			return;
+		}
+		lastPruned = now;
+		String id = SkyMqttConstants.MESSAGE_ID;
+		db.beginTransaction();
+		try {
+			if (maxCount > 0) {
+				db.execSQL("DELETE FROM " + TABLE + " WHERE " + id
+						+ " <= (SELECT " + id + " FROM " + TABLE
+						+ " ORDER BY " + id + " DESC LIMIT 1 OFFSET ?)",
+						new Object[] { maxCount });
+			}
+			if (maxAge > 0) {
+				db.execSQL("DELETE FROM " + TABLE + " WHERE " + ARRIVED_AT
+						+ " < ?", new Object[] { now - maxAge });
+			}
+			if (maxBytes > 0) {
+				// keep the newest messages whose payloads fit
+				Cursor c = db.rawQuery("SELECT " + id + ", " + SIZE + " FROM "
+						+ TABLE + " ORDER BY " + id + " DESC", null);
+				long cutoff = -1;
+				try {
+					long bytes = 0;
+					while (c.moveToNext()) {
+						bytes += c.getLong(1);
+						if (bytes > maxBytes) {
+							cutoff = c.getLong(0);
+							break;
+						}
+					}
+				} finally {
+					c.close();
+				}
+				if (cutoff >= 0) {
+					db.execSQL("DELETE FROM " + TABLE + " WHERE " + id
+							+ " <= ?", new Object[] { cutoff });
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		SkyMqttMetrics.increment(SkyMqttMetrics.HISTORY_PRUNES);
+	}
+}
@@ -12,27 +12,18 @@
  */
 package com.agilepush.client;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStream;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.util.HashMap;
-import java.util.Map;
-
-import javax.net.ssl.SSLContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
@@ -41,12 +32,15 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import com.agilepush.client.SkyMqttConnectionState.State;
 
 import android.content.Context;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
 /**
  * Enables an android application to communicate with an MQTT server using
@@ -91,6 +85,30 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		MANUAL_ACK
 	}
 
+	/**
+	 * What
+	 * {@link SkyMqttAndroidClient#publishAll(String[], MqttMessage[], Backpressure, Object, IMqttActionListener)}
+	 * does with a message while the in-flight window is full
+	 */
+	public enum Backpressure {
+		/**
+		 * The caller waits for a free slot, failing the rest of the batch if
+		 * none comes free in time. On Paho's callback thread, which frees the
+		 * slots, the batch is queued instead, as with {@link #QUEUE}.
+		 */
+		BLOCK,
+		/**
+		 * The rest of the batch fails at once with
+		 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}
+		 */
+		FAIL,
+		/**
+		 * The call returns at once and the rest of the batch is sent as slots
+		 * come free, the token tells when all messages have completed
+		 */
+		QUEUE
+	}
+
 	// private static final String SERVICE_NAME =
 	// "com.skypush.demo.MqttService";
 	//
@@ -100,30 +118,40 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 	private static final String TAG = "SkyMqttAndroidClient";
 
-	private volatile boolean disconnected = true;
+	// IDLE, CONNECTING, CONNECTED, ... see SkyMqttConnectionState
+	private final SkyMqttConnectionState connectionState = new SkyMqttConnectionState();
 	// store connect ActivityToken for reconnect
-	private String reconnectActivityToken = null;
+	private long reconnectActivityToken = -1;
+	// Paho's callback thread of the current connection, last seen in one of
+	// its callbacks. It frees the in-flight slots, so it must never wait for
+	// one.
+	private volatile Thread callbackThread;
 
 	private WakeLock wakelock = null;
-	// Saved sent messages and their corresponding Topics, activityTokens and
-	// invocationContexts, so we can handle "deliveryComplete" callbacks
-	// from the mqttClient
-	private Map<IMqttDeliveryToken, String /* Topic */> savedTopics = new HashMap<IMqttDeliveryToken, String>();
-	private Map<IMqttDeliveryToken, MqttMessage> savedSentMessages = new HashMap<IMqttDeliveryToken, MqttMessage>();
-	private Map<IMqttDeliveryToken, String> savedActivityTokens = new HashMap<IMqttDeliveryToken, String>();
-	private Map<IMqttDeliveryToken, String> savedInvocationContexts = new HashMap<IMqttDeliveryToken, String>();
+	// Sent messages with their topics and tokens, so we can handle
+	// "deliveryComplete" callbacks from the mqttClient
+	private volatile SkyInflightTable inflight = new SkyInflightTable(
+			SkyInflightTable.DEFAULT_CAPACITY);
+	// Publishes waiting for a connection, null to fail them instead
+	private volatile SkyOutbox outbox;
+	// Batches waiting for a free slot, in the order of their publishAll
+	private final ConcurrentLinkedQueue<SkyPublishBatch> queuedBatches = new ConcurrentLinkedQueue<SkyPublishBatch>();
+	// Drops messages the broker delivers again, null to pass them all
+	private volatile SkyDuplicateFilter duplicateFilter;
+	// Messages the application has not acknowledged, MANUAL_ACK only
+	private SkyUnackedMessages unacked;
+	private int maxUnacked = SkyUnackedMessages.DEFAULT_WINDOW;
 
 	// The Android Service which will process our mqtt calls
 	private SkyMqttService mqttService;
 	// our client object - instantiated on connect
-	private MqttAsyncClient myClient = null;
+	private SkyMqttAsyncClient myClient = null;
 
 	Context myContext;
 
 	// We hold the various tokens in a collection and pass identifiers for them
 	// to the service
-	private SparseArray<IMqttToken> tokenMap = new SparseArray<IMqttToken>();
-	private int tokenNumber = 0;
+	private final SkyTokenRegistry tokenRegistry = new SkyTokenRegistry();
 
 	// Connection data
 	private String serverURI;
@@ -131,12 +159,38 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	private MqttClientPersistence persistence = null;
 	private MqttConnectOptions connectOptions;
 	private IMqttToken connectToken;
-	// Indicate this connection is connecting or not.
-	// This variable uses to avoid reconnect multiple times.
-	private volatile boolean isConnecting = false;
+	// Elapsed realtime of the last connect request, used to measure the time
+	// to CONNACK and to the first message
+	private volatile long connectStartTime;
+	private volatile boolean awaitingFirstMessage = false;
 
 	// The MqttCallback provided by the application
 	private MqttCallback callback;
+	// Listeners of single subscriptions, by topic filter
+	private final SkyTopicTrie<SkyMessageListener> listeners = new SkyTopicTrie<SkyMessageListener>();
+
+	/**
+	 * Collects the listeners matching a topic, reused by each delivering
+	 * thread
+	 */
+	private static class Matches implements
+			SkyTopicTrie.Visitor<SkyMessageListener> {
+		final List<SkyMessageListener> matched = new ArrayList<SkyMessageListener>(
+				2);
+		boolean busy;
+
+		@Override
+		public void visit(SkyMessageListener value) {
+			matched.add(value);
+		}
+	}
+
+	private final ThreadLocal<Matches> matches = new ThreadLocal<Matches>() {
+		@Override
+		protected Matches initialValue() {
+			return new Matches();
+		}
+	};
 
 	// The acknowledgment that a message has been processed by the application
 	private Ack messageAck;
@@ -145,6 +199,11 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 	private String wakeLockTag = null;
 
+	// Learns the keepalive interval of the network, may be null
+	private SkyKeepAliveTuner keepAliveTuner;
+	// Ranks the brokers by their connect times, may be null
+	private SkyBrokerRanker brokerRanker;
+
 	/**
 	 * Constructor - create an MqttAndroidClient that can be used to communicate
 	 * with an MQTT server on android
@@ -237,6 +296,18 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		buff.append("on host ");
 		buff.append(serverURI);
 		wakeLockTag = buff.toString();
+		// a publish whose token expired is not coming back, free its slot
+		tokenRegistry
+				.setEvictionListener(new SkyTokenRegistry.EvictionListener() {
+					@Override
+					public void evicted(long handle, IMqttToken token) {
+						SkyInflightTable.Record record = inflight
+								.getByHandle(handle);
+						if (record != null) {
+							completeDelivery(record);
+						}
+					}
+				});
 	}
 
 	/**
@@ -290,6 +361,15 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	@Override
 	public void close() {
 		Log.d(TAG, "close()");
+		State previous = connectionState.close();
+		abortAckWaits();
+		// a pending disconnect closes the client when it completes
+		if (previous != State.DISCONNECTING && previous != State.CLOSED) {
+			closeClient();
+		}
+	}
+
+	private void closeClient() {
 		try {
 			if (myClient != null) {
 				myClient.close();
@@ -297,7 +377,200 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		} catch (MqttException e) {
 			Log.e(TAG, "ANSY MQTT close exception");
 		}
+		SkyOutbox box = outbox;
+		if (box != null) {
+			box.close();
+		}
+		if (unacked != null) {
+			unacked.close();
+		}
+	}
+
+	/**
+	 * @return the connection state of this client, listeners registered on it
+	 *         receive every transition
+	 */
+	SkyMqttConnectionState getConnectionState() {
+		return connectionState;
+	}
 
+	/**
+	 * Set the tuner which is told about answered pings and lost connections.
+	 * Must be called before the first connect.
+	 * 
+	 * @param keepAliveTuner
+	 *            the tuner
+	 */
+	void setKeepAliveTuner(SkyKeepAliveTuner keepAliveTuner) {
+		this.keepAliveTuner = keepAliveTuner;
+	}
+
+	/**
+	 * Set the number of publishes which may be in flight at once. Further
+	 * publishes wait for a slot. Must be called before the first publish.
+	 * 
+	 * @param capacity
+	 *            the number of publishes
+	 */
+	void setMaxInflight(int capacity) {
+		inflight = new SkyInflightTable(capacity);
+	}
+
+	/**
+	 * Free the slot of a publish and forget its token
+	 * 
+	 * @param record
+	 *            the publish
+	 */
+	private void completeDelivery(SkyInflightTable.Record record) {
+		if (inflight.complete(record)) {
+			removeMqttToken(record.handle);
+			// a slot is free, queued publishes may go on
+			drainOutbox();
+			drainBatches();
+		}
+	}
+
+	/**
+	 * Fail every publish in flight and free its slot, for publishes Paho
+	 * drops without telling anyone, as it does with a clean session
+	 * 
+	 * @param why
+	 *            the failure reported to the tokens
+	 */
+	private void failInflight(Throwable why) {
+		for (SkyInflightTable.Record record : inflight.records()) {
+			if (inflight.complete(record)) {
+				removeMqttToken(record.handle);
+				if (record.token instanceof SkyPublishBatch) {
+					((SkyPublishBatch) record.token).done(why);
+				} else {
+					record.token.notifyFailure(why);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the outbox which holds publishes while the client is not connected.
+	 * Without one such publishes fail at once. The outbox is closed with the
+	 * client.
+	 * 
+	 * @param outbox
+	 *            the outbox
+	 */
+	void setOutbox(SkyOutbox outbox) {
+		this.outbox = outbox;
+	}
+
+	/**
+	 * Set the number of messages which may be unacknowledged in
+	 * {@link Ack#MANUAL_ACK} mode. Further messages are held back until the
+	 * application acknowledges one. Must be called before the first connect.
+	 * 
+	 * @param maxUnacked
+	 *            the number of messages
+	 */
+	void setMaxUnacked(int maxUnacked) {
+		this.maxUnacked = maxUnacked;
+	}
+
+	/**
+	 * Acknowledge a message delivered in {@link Ack#MANUAL_ACK} mode, once the
+	 * application has processed it. Until then the message is delivered again
+	 * after a restart.
+	 * 
+	 * @param messageId
+	 *            the id of the message, see
+	 *            {@link SkyArrivedMessage#getMessageId()}
+	 * @return <code>true</code> if the message was waiting for its
+	 *         acknowledgement
+	 */
+	public boolean acknowledgeMessage(String messageId) {
+		SkyUnackedMessages messages = unacked;
+		return messages != null && messages.acknowledge(messageId);
+	}
+
+	/**
+	 * Give up a message delivered in {@link Ack#MANUAL_ACK} mode which the
+	 * application will not process in this run. Its place in the window is
+	 * freed and it is delivered again after a restart.
+	 * 
+	 * @param messageId
+	 *            the id of the message
+	 * @return <code>true</code> if the message was waiting for its
+	 *         acknowledgement
+	 */
+	boolean releaseMessage(String messageId) {
+		SkyUnackedMessages messages = unacked;
+		return messages != null && messages.release(messageId);
+	}
+
+	/**
+	 * Set the filter which keeps messages the broker delivers again from the
+	 * callback
+	 * 
+	 * @param duplicateFilter
+	 *            the filter
+	 */
+	void setDuplicateFilter(SkyDuplicateFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	/**
+	 * Send the publishes of the outbox, on its own thread
+	 */
+	private void drainOutbox() {
+		SkyOutbox box = outbox;
+		if (box != null && isConnected()) {
+			box.drain(outboxSender);
+		}
+	}
+
+	// Sends the publishes of the outbox while the client stays connected
+	private final SkyOutbox.Sender outboxSender = new SkyOutbox.Sender() {
+		@Override
+		public boolean send(SkyOutbox.Entry entry) {
+			if (!isConnected()) {
+				return false;
+			}
+			// publishes restored from the journal have lost their token
+			SkyMqttDeliveryTokenAndroid token = (entry.token != null) ? entry.token
+					: new SkyMqttDeliveryTokenAndroid(
+							SkyMqttAndroidClient.this, null, null,
+							entry.message);
+			try {
+				sendNow(entry.topic, entry.message, token, true);
+			} catch (MqttException e) {
+				if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT
+						|| !isConnected()) {
+					// keep it, the next free slot or connect drains again
+					return false;
+				}
+				token.notifyFailure(e);
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Set the ranker which is told which brokers accepted or refused a
+	 * connect, and how fast.
+	 * 
+	 * @param brokerRanker
+	 *            the ranker
+	 */
+	void setBrokerRanker(SkyBrokerRanker brokerRanker) {
+		this.brokerRanker = brokerRanker;
+	}
+
+	/**
+	 * Mark this client as waiting for a scheduled reconnect
+	 * 
+	 * @return <code>true</code> if the client was idle
+	 */
+	boolean backOff() {
+		return connectionState.transition(State.BACKING_OFF, State.IDLE);
 	}
 
 	@Override
@@ -351,12 +624,18 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	@Override
 	public IMqttToken connect(MqttConnectOptions options, Object userContext,
 			IMqttActionListener callback) throws MqttException {
+		if (connectionState.is(State.CLOSED)) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+		}
 
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback);
 
 		connectOptions = options;
 		connectToken = token;
-		final String activityToken = storeToken(connectToken);
+		connectStartTime = SystemClock.elapsedRealtime();
+		// a connect is retried by reconnect(), its token never expires
+		final long activityToken = tokenRegistry.register(connectToken,
+				SkyTokenRegistry.NO_DEADLINE);
 		reconnectActivityToken = activityToken;
 		try {
 			Log.e("lxs", "begin to new connect listener");
@@ -365,42 +644,54 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
-					doAfterConnectSuccess(activityToken);
+					reportBrokers(true);
+					doAfterConnectSuccess(activityToken, asyncActionToken);
 				}
 
 				@Override
 				public void onFailure(IMqttToken asyncActionToken,
 						Throwable exception) {
+					reportBrokers(false);
 					doAfterConnectFail(activityToken, exception);
 
 				}
 			};
 
-			if (myClient != null) {
-				if (isConnecting) {
-					Log.d(TAG,
-							"myClient != null and the client is connecting. Connect return directly.");
-					return token;
-				} else if (!disconnected) {
-					Log.d(TAG,
-							"myClient != null and the client is connected and notify!");
-					doAfterConnectSuccess(activityToken);
-				} else {
-					Log.d(TAG,
-							"myClient != null and the client is not connected");
-					setConnectingState(true);
-					myClient.connect(connectOptions, null, listener);
+			if (connectionState.is(State.CONNECTED)) {
+				Log.d(TAG, "the client is connected and notify!");
+				doAfterConnectSuccess(activityToken, null);
+			} else if (!connectionState.transition(State.CONNECTING,
+					State.IDLE, State.BACKING_OFF)) {
+				Log.d(TAG, "the client is " + connectionState.get()
+						+ ". Connect return directly.");
+				return token;
+			} else {
+				// one MqttAsyncClient per client handle, it is reused by
+				// every connect until the client is closed
+				if (myClient == null) {
+					Log.e("lxs", "begin to new mqtt async client");
+					if (persistence == null) {
+						// the same default as MqttAsyncClient, kept in the
+						// application's private storage
+						persistence = new MqttDefaultFilePersistence(
+								mqttService.getFilesDir().getAbsolutePath());
+					}
+					// keepalive pings are driven by the AlarmManager, a
+					// Timer stops firing while the CPU sleeps
+					myClient = new SkyMqttAsyncClient(serverURI, clientId,
+							persistence, new SkyAlarmPingSender(mqttService,
+									clientId, keepAliveTuner));
+					myClient.setCallback(this);
+				}
+				// opened before the first connect, messages arrive as soon
+				// as it completes; tried again if it failed to open
+				if (messageAck == Ack.MANUAL_ACK && unacked == null) {
+					unacked = new SkyUnackedMessages(
+							mqttService.getFilesDir(), clientId, serverURI,
+							maxUnacked);
 				}
-			}
-
-			// if myClient is null, then create a new connection
-			else {
-				Log.e("lxs", "begin to new mqtt async client");
-				myClient = new MqttAsyncClient(serverURI, clientId, persistence);
-				myClient.setCallback(this);
 
 				Log.e(TAG, "Do Real connect! " + connectOptions.getServerURIs());
-				setConnectingState(true);
 				myClient.connect(connectOptions, null, listener);
 				Log.e(TAG, "connect over " + listener);
 			}
@@ -417,29 +708,57 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	 * as synchronized to avoid multiple calls to this method to send connect
 	 * multiple times
 	 */
-	synchronized void reconnect() {
-		if (isConnecting) {
-			Log.d(TAG, "The client is connecting. Reconnect return directly.");
+	void reconnect() {
+		SkyMqttAsyncClient client = myClient;
+		if (client == null || connectOptions == null) {
+			// closed, or the first connect never got as far as a client
+			Log.d(TAG, "No client to reconnect");
 			return;
 		}
-
-		if (disconnected) {
+		if (connectionState.transition(State.CONNECTING, State.IDLE,
+				State.BACKING_OFF)) {
 			// use the activityToke the same with action connect
 			Log.d(TAG, "Do Real Reconnect!");
 
+			boolean sent = false;
 			try {
 
+				// complete through the same path as connect, so the connect
+				// listener chains the subscriptions behind this CONNACK too
+				final long activityToken = reconnectActivityToken;
 				IMqttActionListener listener = new MqttConnectionListener(
-						reconnectActivityToken);
+						activityToken) {
 
-				myClient.connect(connectOptions, null, listener);
-				setConnectingState(true);
+					@Override
+					public void onSuccess(IMqttToken asyncActionToken) {
+						reportBrokers(true);
+						doAfterConnectSuccess(activityToken, asyncActionToken);
+					}
+
+					@Override
+					public void onFailure(IMqttToken asyncActionToken,
+							Throwable exception) {
+						reportBrokers(false);
+						doAfterConnectFail(activityToken, exception);
+					}
+				};
+				connectStartTime = SystemClock.elapsedRealtime();
+
+				client.connect(connectOptions, null, listener);
+				sent = true;
 			} catch (MqttException e) {
 				Log.e(TAG,
 						"Cannot reconnect to remote server." + e.getMessage());
-				setConnectingState(false);
 				// handleException(resultBundle, e);
+			} finally {
+				if (!sent) {
+					// also on a RuntimeException, which goes on to the caller
+					connectionState.transition(State.IDLE, State.CONNECTING);
+				}
 			}
+		} else {
+			Log.d(TAG, "The client is " + connectionState.get()
+					+ ". Reconnect return directly.");
 		}
 	}
 
@@ -457,31 +776,106 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 	}
 
-	private void doAfterConnectSuccess(final String activityToken) {
+	/**
+	 * @param response
+	 *            Paho's token of the connect, which holds the CONNACK, or
+	 *            <code>null</code> if the client was connected already
+	 */
+	private void doAfterConnectSuccess(final long activityToken,
+			IMqttToken response) {
 		// since the device's cpu can go to sleep, acquire a wakelock and drop
 		// it later.
 		acquireWakeLock();
 
+		if (response != null) {
+			// called from the connect listener, the connection's callbacks
+			// come on this thread from now on
+			callbackThread = Thread.currentThread();
+		}
 		IMqttToken token = connectToken;
 		removeMqttToken(activityToken);
 		Log.e(SkyMqttService.TAG, "connect success " + activityToken);
+		if (connectOptions.isCleanSession()) {
+			// whatever was in flight on the old session is gone
+			failInflight(new MqttException(
+					MqttException.REASON_CODE_CONNECTION_LOST));
+		}
+		if (!connectionState.transition(State.CONNECTED, State.CONNECTING,
+				State.CONNECTED)) {
+			// the connect was cancelled by a disconnect or close while it
+			// was in flight, do not keep a second session open
+			Log.d(TAG, "connect completed in state " + connectionState.get());
+			disconnectQuietly();
+			releaseWakeLock();
+			return;
+		}
+		SkyMqttMetrics.increment(SkyMqttMetrics.CONNECT_COUNT);
+		SkyMqttMetrics.set(SkyMqttMetrics.TIME_TO_CONNACK,
+				SystemClock.elapsedRealtime() - connectStartTime);
+		awaitingFirstMessage = true;
 		if (token != null) {
+			if (response != null) {
+				// so the application can read the session present flag
+				((SkyMqttTokenAndroid) token).setDelegate(response);
+			}
 			((SkyMqttTokenAndroid) token).notifyComplete();
 
 		} else {
 			Log.e(SkyMqttService.TAG, "simpleAction : token is null");
 		}
+		redeliverUnacked();
+		drainOutbox();
+		drainBatches();
 
-		setConnectingState(false);
-		disconnected = false;
 		releaseWakeLock();
 	}
 
-	private void doAfterConnectFail(final String activityToken,
+	/**
+	 * Tell the broker ranker the outcome of a connect
+	 * 
+	 * @param connected
+	 *            <code>true</code> if a broker accepted the connect
+	 */
+	private void reportBrokers(boolean connected) {
+		if (brokerRanker == null || connectOptions == null) {
+			return;
+		}
+		String[] tried = connectOptions.getServerURIs();
+		if (tried == null) {
+			tried = new String[] { serverURI };
+		}
+		if (!connected) {
+			brokerRanker.onConnectFailed(tried);
+			return;
+		}
+		// every server URI Paho tried before this one has failed
+		int index = Math.min(myClient.getServerURIIndex(), tried.length - 1);
+		String[] failed = new String[index];
+		System.arraycopy(tried, 0, failed, 0, index);
+		brokerRanker.onConnectFailed(failed);
+
+		// a racing socket may have connected to another broker
+		String broker = tried[index];
+		SocketFactory factory = connectOptions.getSocketFactory();
+		if (factory instanceof SkyTlsSocketFactory) {
+			factory = ((SkyTlsSocketFactory) factory).getTransport();
+		}
+		if (factory instanceof SkySocketFactory) {
+			String server = ((SkySocketFactory) factory).getConnectedServer();
+			for (String uri : tried) {
+				if (server != null && uri.endsWith("://" + server)) {
+					broker = uri;
+				}
+			}
+		}
+		brokerRanker.onConnected(broker,
+				SystemClock.elapsedRealtime() - connectStartTime);
+	}
+
+	private void doAfterConnectFail(final long activityToken,
 			Throwable exception) {
 		acquireWakeLock();
-		disconnected = true;
-		setConnectingState(false);
+		connectionState.transition(State.IDLE, State.CONNECTING);
 		IMqttToken token = connectToken;
 		removeMqttToken(activityToken);
 		if (token != null) {
@@ -492,7 +886,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		releaseWakeLock();
 	}
 
-	private void handleException(final String activityToken, Throwable exception) {
+	private void handleException(final long activityToken, Throwable exception) {
 		IMqttToken token = connectToken;
 		removeMqttToken(activityToken);
 		if (token != null) {
@@ -511,9 +905,9 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	 */
 	private class MqttConnectionListener implements IMqttActionListener {
 
-		private final String activityToken;
+		private final long activityToken;
 
-		private MqttConnectionListener(String activityToken) {
+		private MqttConnectionListener(long activityToken) {
 			this.activityToken = activityToken;
 		}
 
@@ -523,6 +917,8 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 			IMqttToken token =	removeMqttToken(activityToken);
 			if (token != null) {
+				// answers such as the granted QoS are read from Paho's token
+				((SkyMqttTokenAndroid) token).setDelegate(asyncActionToken);
 				((SkyMqttTokenAndroid) token).notifyComplete();
 
 			} else {
@@ -545,7 +941,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 	void offline() {
 
-		if (!disconnected) {
+		if (connectionState.is(State.CONNECTED)) {
 			Exception e = new Exception("Android offline");
 			connectionLost(e);
 		}
@@ -555,15 +951,18 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken disconnect() throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, null,
 				(IMqttActionListener) null);
-		final String activityToken = storeToken(token);
+		final long activityToken = storeToken(token);
 
-		if ((myClient != null) && (myClient.isConnected())) {
+		if ((myClient != null) && (myClient.isConnected())
+				&& connectionState.transition(State.DISCONNECTING,
+						State.CONNECTED, State.CONNECTING)) {
 			IMqttActionListener listener = new MqttConnectionListener(
 					activityToken) {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
 					Log.d(TAG, "mqtt action on success");
+					disconnectComplete();
 
 					IMqttToken token = connectToken;
 					removeMqttToken(activityToken);
@@ -583,6 +982,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 				public void onFailure(IMqttToken asyncActionToken,
 						Throwable exception) {
 					Log.d(TAG, "mqtt action on failure");
+					disconnectComplete();
 					IMqttToken token = removeMqttToken(activityToken);
 					if (token != null) {
 						((SkyMqttTokenAndroid) token).notifyFailure(exception);
@@ -591,13 +991,17 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 					}
 				}
 			};
+			abortAckWaits();
 			try {
 				myClient.disconnect(null, listener);
 			} catch (Exception e) {
+				disconnectComplete();
 				handleException(activityToken, e);
 			}
 		} else {
 			Log.e(TAG, "NOT_CONNECTED for action disconnect");
+			connectionState.transition(State.IDLE, State.CONNECTING,
+					State.BACKING_OFF);
 		}
 
 		if (connectOptions.isCleanSession()) {
@@ -613,15 +1017,18 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken disconnect(long quiesceTimeout) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, null,
 				(IMqttActionListener) null);
-		final String activityToken = storeToken(token);
+		final long activityToken = storeToken(token);
 
-		if ((myClient != null) && (myClient.isConnected())) {
+		if ((myClient != null) && (myClient.isConnected())
+				&& connectionState.transition(State.DISCONNECTING,
+						State.CONNECTED, State.CONNECTING)) {
 			IMqttActionListener listener = new MqttConnectionListener(
 					activityToken) {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
 					Log.d(TAG, "mqtt action on success");
+					disconnectComplete();
 
 					IMqttToken token = connectToken;
 					removeMqttToken(activityToken);
@@ -641,6 +1048,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 				public void onFailure(IMqttToken asyncActionToken,
 						Throwable exception) {
 					Log.d(TAG, "mqtt action on failure");
+					disconnectComplete();
 					IMqttToken token = connectToken;
 					removeMqttToken(activityToken);
 					if (token != null) {
@@ -650,13 +1058,17 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 					}
 				}
 			};
+			abortAckWaits();
 			try {
 				myClient.disconnect(null, listener);
 			} catch (Exception e) {
+				disconnectComplete();
 				handleException(activityToken, e);
 			}
 		} else {
 			Log.e(TAG, "NOT_CONNECTED for action disconnect");
+			connectionState.transition(State.IDLE, State.CONNECTING,
+					State.BACKING_OFF);
 		}
 
 		if (connectOptions.isCleanSession()) {
@@ -694,17 +1106,19 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken disconnect(Object userContext,
 			IMqttActionListener callback) throws MqttException {
 		Log.d(TAG, "disconnect()");
-		disconnected = true;
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback);
-		final String activityToken = storeToken(token);
+		final long activityToken = storeToken(token);
 
-		if ((myClient != null) && (myClient.isConnected())) {
+		if ((myClient != null) && (myClient.isConnected())
+				&& connectionState.transition(State.DISCONNECTING,
+						State.CONNECTED, State.CONNECTING)) {
 			IMqttActionListener listener = new MqttConnectionListener(
 					activityToken) {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
 					Log.d(TAG, "mqtt action on success");
+					disconnectComplete();
 
 					IMqttToken token = connectToken;
 					removeMqttToken(activityToken);
@@ -724,6 +1138,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 				public void onFailure(IMqttToken asyncActionToken,
 						Throwable exception) {
 					Log.d(TAG, "mqtt action on failure");
+					disconnectComplete();
 					IMqttToken token = connectToken;
 					removeMqttToken(activityToken);
 					if (token != null) {
@@ -733,13 +1148,17 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 					}
 				}
 			};
+			abortAckWaits();
 			try {
 				myClient.disconnect(null, listener);
 			} catch (Exception e) {
+				disconnectComplete();
 				handleException(activityToken, e);
 			}
 		} else {
 			Log.e(TAG, "NOT_CONNECTED for action disconnect");
+			connectionState.transition(State.IDLE, State.CONNECTING,
+					State.BACKING_OFF);
 		}
 
 		if (connectOptions.isCleanSession()) {
@@ -799,18 +1218,38 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken disconnect(long quiesceTimeout, Object userContext,
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback);
-		String activityToken = storeToken(token);
+		long activityToken = storeToken(token);
 
-		if ((myClient != null) && (myClient.isConnected())) {
+		if ((myClient != null) && (myClient.isConnected())
+				&& connectionState.transition(State.DISCONNECTING,
+						State.CONNECTED, State.CONNECTING)) {
 			IMqttActionListener listener = new MqttConnectionListener(
-					activityToken);
+					activityToken) {
+
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					disconnectComplete();
+					super.onSuccess(asyncActionToken);
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken,
+						Throwable exception) {
+					disconnectComplete();
+					super.onFailure(asyncActionToken, exception);
+				}
+			};
+			abortAckWaits();
 			try {
 				myClient.disconnect(null, listener);
 			} catch (Exception e) {
+				disconnectComplete();
 				handleException(activityToken, e);
 			}
 		} else {
 			Log.e(TAG, "NOT_CONNECTED for action disconnect");
+			connectionState.transition(State.IDLE, State.CONNECTING,
+					State.BACKING_OFF);
 		}
 
 		if (connectOptions.isCleanSession()) {
@@ -869,71 +1308,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		MqttMessage message = new MqttMessage(payload);
 		message.setQos(qos);
 		message.setRetained(retained);
-		SkyMqttTokenAndroid token = new SkyMqttTokenAndroid(this, userContext,
-				callback, message);
-
-		final String activityToken = storeToken(token);
-
-		IMqttDeliveryToken sendToken = null;
-
-		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
-					activityToken) {
-				@Override
-				public void onSuccess(IMqttToken asyncActionToken) {
-					Log.d(TAG, "mqtt action on success");
-
-					IMqttToken token = connectToken;
-					// removeMqttToken(activityToken);
-					if (token != null) {
-						((SkyMqttTokenAndroid) token).notifyComplete();
-
-					} else {
-						Log.e(SkyMqttService.TAG,
-								"simpleAction : token is null");
-					}
-				}
-
-				@Override
-				public void onFailure(IMqttToken asyncActionToken,
-						Throwable exception) {
-					Log.d(TAG, "mqtt action on failure");
-					IMqttToken token = connectToken;
-					// remove on delivery
-					// removeMqttToken(activityToken);
-					if (token != null) {
-						((SkyMqttTokenAndroid) token).notifyFailure(exception);
-					} else {
-						Log.e(TAG, "simpleAction : token is null");
-					}
-				}
-			};
-			try {
-
-				sendToken = myClient.publish(topic, payload, qos, retained,
-						null, listener);
-				storeSendDetails(topic, message, sendToken, null, activityToken);
-			} catch (Exception e) {
-				handleException(activityToken, e);
-			}
-		} else {
-
-			Log.e(TAG, "NOT_CONNECTED");
-
-		}
-
-		token.setDelegate(sendToken);
-
-		return sendToken;
-	}
-
-	private void storeSendDetails(final String topic, final MqttMessage msg,
-			final IMqttDeliveryToken messageToken,
-			final String invocationContext, final String activityToken) {
-		savedTopics.put(messageToken, topic);
-		savedSentMessages.put(messageToken, msg);
-		savedActivityTokens.put(messageToken, activityToken);
-		savedInvocationContexts.put(messageToken, invocationContext);
+		return publish(topic, message, userContext, callback);
 	}
 
 	/**
@@ -1025,61 +1400,275 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 			Object userContext, IMqttActionListener callback)
 			throws MqttException, MqttPersistenceException {
 
-		SkyMqttTokenAndroid token = new SkyMqttTokenAndroid(this, userContext,
-				callback, message);
+		SkyMqttDeliveryTokenAndroid token = new SkyMqttDeliveryTokenAndroid(
+				this, userContext, callback, message);
 
-		final String activityToken = storeToken(token);
+		SkyOutbox box = outbox;
+		// while the outbox holds messages new ones queue behind them, so the
+		// broker receives them in order
+		if (box != null && (!isConnected() || !box.isEmpty())) {
+			box.add(topic, message, token);
+			drainOutbox();
+			return token;
+		}
+		if (!isConnected()) {
+			Log.e(TAG, "NOT_CONNECTED");
+			token.notifyFailure(new MqttException(
+					MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+			return token;
+		}
+		boolean block = Thread.currentThread() != callbackThread;
+		try {
+			sendNow(topic, message, token, block);
+		} catch (MqttException e) {
+			if (!block && box != null
+					&& e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+				// sent from the outbox once a slot is free
+				box.add(topic, message, token);
+				drainOutbox();
+				return token;
+			}
+			token.notifyFailure(e);
+		}
+		return token;
+	}
 
-		IMqttDeliveryToken sendToken = null;
+	/**
+	 * Hand a publish to Paho, waiting while the in-flight table is full
+	 * 
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @param token
+	 *            the token of the publish
+	 * @param block
+	 *            wait for a free slot, must not be set on the Paho callback
+	 *            thread
+	 * @throws MqttException
+	 *             if no slot became free or Paho refused the publish
+	 */
+	private void sendNow(String topic, MqttMessage message,
+			SkyMqttDeliveryTokenAndroid token, boolean block)
+			throws MqttException {
+		final long activityToken = storeToken(token);
+		SkyInflightTable.Record record;
+		try {
+			if (block) {
+				record = inflight.acquire(topic, message, token, activityToken);
+			} else {
+				record = inflight.tryAcquire(topic, message, token,
+						activityToken);
+				if (record == null) {
+					SkyMqttMetrics.increment(SkyMqttMetrics.INFLIGHT_REJECTED);
+					throw new MqttException(
+							MqttException.REASON_CODE_MAX_INFLIGHT);
+				}
+			}
+		} catch (MqttException e) {
+			removeMqttToken(activityToken);
+			throw e;
+		}
+		try {
+			// the record rides along as the user context, deliveryComplete
+			// and the listener find it on the token
+			IMqttDeliveryToken sendToken = myClient.publish(topic, message,
+					record, publishListener);
+			token.setDelegate(sendToken);
+			inflight.sent(record, sendToken.getMessageId());
+		} catch (MqttException e) {
+			completeDelivery(record);
+			throw e;
+		} catch (RuntimeException e) {
+			completeDelivery(record);
+			throw e;
+		}
+	}
 
-		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
-					activityToken) {
-				@Override
-				public void onSuccess(IMqttToken asyncActionToken) {
-					Log.d(TAG, "mqtt action on success");
+	// Completes the record which rides along as the user context of a publish
+	private final IMqttActionListener publishListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			callbackThread = Thread.currentThread();
+			SkyInflightTable.Record record = (SkyInflightTable.Record) asyncActionToken
+					.getUserContext();
+			completeDelivery(record);
+			if (record.token instanceof SkyPublishBatch) {
+				((SkyPublishBatch) record.token).done(null);
+			} else {
+				record.token.notifyComplete();
+			}
+		}
 
-					IMqttToken token = connectToken;
-					// removeMqttToken(activityToken);
-					if (token != null) {
-						((SkyMqttTokenAndroid) token).notifyComplete();
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			callbackThread = Thread.currentThread();
+			Log.d(TAG, "mqtt action on failure");
+			SkyInflightTable.Record record = (SkyInflightTable.Record) asyncActionToken
+					.getUserContext();
+			completeDelivery(record);
+			if (record.token instanceof SkyPublishBatch) {
+				((SkyPublishBatch) record.token).done(exception);
+			} else {
+				record.token.notifyFailure(exception);
+			}
+		}
+	};
 
-					} else {
-						Log.e(SkyMqttService.TAG,
-								"simpleAction : token is null");
-					}
+	/**
+	 * Publish many messages, pipelined up to the in-flight window, with one
+	 * token for all of them.
+	 * <p>
+	 * The messages are sent in order. They share the token, the listener and
+	 * the registry entry, so a message costs only its slot in the in-flight
+	 * window. While the window is full the backpressure decides what happens
+	 * to the rest of the batch. While the client is not connected, or the
+	 * outbox holds messages, the batch is queued in the outbox behind them.
+	 * </p>
+	 * 
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages
+	 * @param backpressure
+	 *            what to do while the in-flight window is full
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use null
+	 *            if not required.
+	 * @param callback
+	 *            optional listener notified once every message has completed,
+	 *            of a failure if any message failed
+	 * @return token which completes once every message has completed
+	 */
+	public IMqttToken publishAll(String[] topics, MqttMessage[] messages,
+			Backpressure backpressure, Object userContext,
+			IMqttActionListener callback) {
+		if (topics.length != messages.length) {
+			throw new IllegalArgumentException("one topic per message");
+		}
+		SkyPublishBatch batch = new SkyPublishBatch(this, userContext,
+				callback, topics, messages);
+		SkyMqttMetrics.increment(SkyMqttMetrics.BATCH_COUNT);
+		SkyMqttMetrics.add(SkyMqttMetrics.BATCH_MESSAGES, messages.length);
+		if (messages.length == 0) {
+			batch.notifyComplete();
+			return batch;
+		}
+
+		SkyOutbox box = outbox;
+		if (box != null && (!isConnected() || !box.isEmpty())) {
+			// the outbox needs a token per message, they report to the batch
+			for (int i = 0; i < messages.length; i++) {
+				box.add(topics[i], messages[i],
+						new SkyMqttDeliveryTokenAndroid(this, null,
+								batch.messageListener, messages[i]));
+			}
+			drainOutbox();
+			return batch;
+		}
+		if (!isConnected()) {
+			synchronized (batch) {
+				batch.failRemaining(new MqttException(
+						MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+			}
+			return batch;
+		}
+		if (backpressure == Backpressure.BLOCK
+				&& Thread.currentThread() == callbackThread) {
+			// waiting here would hold up the acks which free the slots
+			backpressure = Backpressure.QUEUE;
+		}
+		switch (backpressure) {
+		case QUEUE:
+			// behind the batches waiting already
+			queuedBatches.add(batch);
+			if (queuedBatches.peek() != batch || !sendBatch(batch, false)) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.BATCH_QUEUED);
+			}
+			drainBatches();
+			break;
+		case FAIL:
+			if (!sendBatch(batch, false)) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.INFLIGHT_REJECTED);
+				synchronized (batch) {
+					batch.failRemaining(new MqttException(
+							MqttException.REASON_CODE_MAX_INFLIGHT));
 				}
+			}
+			break;
+		default:
+			sendBatch(batch, true);
+			break;
+		}
+		return batch;
+	}
 
-				@Override
-				public void onFailure(IMqttToken asyncActionToken,
-						Throwable exception) {
-					Log.d(TAG, "mqtt action on failure");
-					IMqttToken token = connectToken;
-					// remove on delivery
-					// removeMqttToken(activityToken);
-					if (token != null) {
-						((SkyMqttTokenAndroid) token).notifyFailure(exception);
-					} else {
-						Log.e(TAG, "simpleAction : token is null");
+	/**
+	 * Hand the unsent messages of a batch to Paho while slots are free
+	 * 
+	 * @param batch
+	 *            the batch
+	 * @param block
+	 *            wait for free slots, must not be set on the Paho callback
+	 *            thread
+	 * @return <code>false</code> if messages are left because no slot was
+	 *         free
+	 */
+	private boolean sendBatch(SkyPublishBatch batch, boolean block) {
+		synchronized (batch) {
+			while (batch.hasNext()) {
+				int i = batch.next();
+				SkyInflightTable.Record record;
+				if (block) {
+					try {
+						record = inflight.acquire(batch.topics[i],
+								batch.messages[i], batch,
+								SkyInflightTable.NO_HANDLE);
+					} catch (MqttException e) {
+						batch.failRemaining(e);
+						return true;
+					}
+				} else {
+					record = inflight.tryAcquire(batch.topics[i],
+							batch.messages[i], batch,
+							SkyInflightTable.NO_HANDLE);
+					if (record == null) {
+						return false;
 					}
 				}
-			};
-			try {
-
-				sendToken = myClient.publish(topic, message, null, listener);
-				storeSendDetails(topic, message, sendToken, null, activityToken);
-			} catch (Exception e) {
-				handleException(activityToken, e);
+				batch.advance();
+				try {
+					IMqttDeliveryToken sendToken = myClient.publish(
+							batch.topics[i], batch.messages[i], record,
+							publishListener);
+					inflight.sent(record, sendToken.getMessageId());
+				} catch (Exception e) {
+					// the slot goes to the next message of this batch, no
+					// drain, which would come back here once per message
+					inflight.complete(record);
+					batch.done(e);
+				}
 			}
-		} else {
-
-			Log.e(TAG, "NOT_CONNECTED");
-
+			return true;
 		}
+	}
 
-		token.setDelegate(sendToken);
-
-		return sendToken;
+	/**
+	 * Send the queued batches, oldest first, while connected and slots are
+	 * free
+	 */
+	private void drainBatches() {
+		if (!isConnected()) {
+			// they wait for the next connect instead of failing
+			return;
+		}
+		SkyPublishBatch batch;
+		while ((batch = queuedBatches.peek()) != null) {
+			if (!sendBatch(batch, false)) {
+				return;
+			}
+			queuedBatches.remove(batch);
+		}
 	}
 
 	@Override
@@ -1099,7 +1688,7 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback,
 				new String[] { topic });
-		final String activityToken = storeToken(token);
+		final long activityToken = storeToken(token);
 
 		Log.e("lxs",
 				"myClient " + myClient + " subscribe is connectted: "
@@ -1121,12 +1710,86 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 		return token;
 	}
 
+	/**
+	 * Subscribe to a topic filter and hand the messages arriving on it to a
+	 * listener of its own. A message matched by any listener does not go to
+	 * the {@link MqttCallback}. The listener is removed when the filter is
+	 * unsubscribed from.
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, may hold the wildcards <code>+</code> and
+	 *            <code>#</code>
+	 * @param qos
+	 *            the maximum quality of service
+	 * @param messageListener
+	 *            receives the messages matching the filter
+	 * @return token used to track and wait for the subscribe to complete
+	 * @throws MqttException
+	 *             if there was an error registering the subscription
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos,
+			SkyMessageListener messageListener) throws MqttException {
+		return subscribe(topicFilter, qos, null, null, messageListener);
+	}
+
+	/**
+	 * Subscribe to a topic filter and hand the messages arriving on it to a
+	 * listener of its own, see
+	 * {@link #subscribe(String, int, SkyMessageListener)}
+	 * 
+	 * @param topicFilter
+	 *            the topic filter
+	 * @param qos
+	 *            the maximum quality of service
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use null
+	 *            if not required.
+	 * @param callback
+	 *            optional listener that will be notified when the subscribe
+	 *            completes. Use null if not required.
+	 * @param messageListener
+	 *            receives the messages matching the filter
+	 * @return token used to track and wait for the subscribe to complete
+	 * @throws MqttException
+	 *             if there was an error registering the subscription
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos,
+			Object userContext, IMqttActionListener callback,
+			SkyMessageListener messageListener) throws MqttException {
+		try {
+			listeners.add(topicFilter, messageListener);
+		} catch (IllegalArgumentException e) {
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+					e);
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.ROUTE_LISTENERS, listeners.size());
+		return subscribe(topicFilter, qos, userContext, callback);
+	}
+
+	/**
+	 * Stop handing the messages of a filter to a listener, without
+	 * unsubscribing from it
+	 * 
+	 * @param topicFilter
+	 *            the filter the listener was registered with
+	 * @param messageListener
+	 *            the listener
+	 * @return <code>false</code> if the listener was not registered with the
+	 *         filter
+	 */
+	public boolean removeMessageListener(String topicFilter,
+			SkyMessageListener messageListener) {
+		boolean removed = listeners.remove(topicFilter, messageListener);
+		SkyMqttMetrics.set(SkyMqttMetrics.ROUTE_LISTENERS, listeners.size());
+		return removed;
+	}
+
 	@Override
 	public IMqttToken subscribe(String[] topic, int[] qos, Object userContext,
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback,
 				topic);
-		String activityToken = storeToken(token);
+		long activityToken = storeToken(token);
 
 		if ((myClient != null) && (myClient.isConnected())) {
 			IMqttActionListener listener = new MqttConnectionListener(
@@ -1157,7 +1820,9 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken unsubscribe(String topic, Object userContext,
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback);
-		String activityToken = storeToken(token);
+		long activityToken = storeToken(token);
+		listeners.removeAll(topic);
+		SkyMqttMetrics.set(SkyMqttMetrics.ROUTE_LISTENERS, listeners.size());
 
 		if ((myClient != null) && (myClient.isConnected())) {
 			IMqttActionListener listener = new MqttConnectionListener(
@@ -1177,7 +1842,11 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	public IMqttToken unsubscribe(String[] topic, Object userContext,
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new SkyMqttTokenAndroid(this, userContext, callback);
-		String activityToken = storeToken(token);
+		long activityToken = storeToken(token);
+		for (String filter : topic) {
+			listeners.removeAll(filter);
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.ROUTE_LISTENERS, listeners.size());
 		if ((myClient != null) && (myClient.isConnected())) {
 			IMqttActionListener listener = new MqttConnectionListener(
 					activityToken);
@@ -1218,20 +1887,17 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	@Override
 	public void setCallback(MqttCallback callback) {
 		this.callback = callback;
-
+		if (callback instanceof SkyMessageDispatcher) {
+			// its lanes route the messages to the listeners
+			((SkyMessageDispatcher) callback).setClient(this);
+		}
 	}
 
 	public MqttCallback getCallback() {
 		return this.callback;
 	}
 
-	/**
-	 * 
-	 * @param isConnecting
-	 */
-	synchronized void setConnectingState(boolean isConnecting) {
-		this.isConnecting = isConnecting;
-	}
+
 
 	/**
 	 * @param token
@@ -1239,28 +1905,20 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	 * @return an identifier for the token which can be passed to the Android
 	 *         Service
 	 */
-	public synchronized String storeToken(IMqttToken token) {
-		tokenMap.put(tokenNumber, token);
-		return Integer.toString(tokenNumber++);
+	public long storeToken(IMqttToken token) {
+		return tokenRegistry.register(token);
 	}
 
 	/**
-	 * Get a token identified by a string, and remove it from our map
+	 * Get a token identified by its handle, and remove it from our map
 	 * 
-	 * @param data
-	 * @return the token
+	 * @param activityToken
+	 *            the handle returned by {@link #storeToken(IMqttToken)}
+	 * @return the token, or <code>null</code> if it has been removed or
+	 *         evicted
 	 */
-	private synchronized IMqttToken removeMqttToken(String activityToken) {
-		// private synchronized IMqttToken removeMqttToken(Bundle data) {
-		// String activityToken =
-		// data.getString(SkyMqttServiceConstants.CALLBACK_ACTIVITY_TOKEN);
-		if (activityToken != null) {
-			int tokenNumber = Integer.parseInt(activityToken);
-			IMqttToken token = tokenMap.get(tokenNumber);
-			tokenMap.delete(tokenNumber);
-			return token;
-		}
-		return null;
+	private IMqttToken removeMqttToken(long activityToken) {
+		return tokenRegistry.remove(activityToken);
 	}
 
 	/**
@@ -1283,34 +1941,9 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	 */
 	public SSLSocketFactory getSSLSocketFactory(InputStream keyStore,
 			String password) throws MqttSecurityException {
-		try {
-			SSLContext ctx = null;
-			SSLSocketFactory sslSockFactory = null;
-			KeyStore ts;
-			ts = KeyStore.getInstance("BKS");
-			ts.load(keyStore, password.toCharArray());
-			TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
-			tmf.init(ts);
-			TrustManager[] tm = tmf.getTrustManagers();
-			ctx = SSLContext.getInstance("SSL");
-			ctx.init(null, tm, null);
-
-			sslSockFactory = ctx.getSocketFactory();
-			return sslSockFactory;
-
-		} catch (KeyStoreException e) {
-			throw new MqttSecurityException(e);
-		} catch (CertificateException e) {
-			throw new MqttSecurityException(e);
-		} catch (FileNotFoundException e) {
-			throw new MqttSecurityException(e);
-		} catch (IOException e) {
-			throw new MqttSecurityException(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new MqttSecurityException(e);
-		} catch (KeyManagementException e) {
-			throw new MqttSecurityException(e);
-		}
+		// the context is built once per trust store, so reconnects can
+		// resume the TLS session
+		return SkyTlsSocketFactory.getSSLSocketFactory(keyStore, password);
 	}
 
 	@Override
@@ -1337,31 +1970,79 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 
 	@Override
 	public void connectionLost(Throwable why) {
+		callbackThread = Thread.currentThread();
 		Log.d(TAG, "connectionLost(" + why.getMessage() + ")");
-		disconnected = true;
+		abortAckWaits();
+		if (!connectionState.transition(State.IDLE, State.CONNECTED)) {
+			// a disconnect or close is already taking care of the client
+			releaseWakeLock();
+			return;
+		}
+		disconnectQuietly();
+		if (connectOptions != null && connectOptions.isCleanSession()) {
+			// a clean session forgets the publishes in flight
+			failInflight(why);
+		}
+
+		if (keepAliveTuner != null) {
+			keepAliveTuner.onConnectionLost(why,
+					SkyNetworkIdentity.fingerprint(mqttService));
+		}
+		if (callback != null) {
+			callback.connectionLost(why);
+		}
+		// client has lost connection no need for wake lock
+		releaseWakeLock();
+	}
+
+	/**
+	 * Send Paho's callback thread away if it waits for room in the window of
+	 * unacknowledged messages: shutting a connection down joins that thread.
+	 * A connection Paho drops itself, on a ping timeout for example, only
+	 * reaches {@link #connectionLost(Throwable)} after the join, so there the
+	 * wait ends at {@link SkyUnackedMessages#WAIT_TIMEOUT}.
+	 */
+	private void abortAckWaits() {
+		SkyUnackedMessages messages = unacked;
+		if (messages != null) {
+			messages.abortWaits();
+		}
+	}
+
+	/**
+	 * Disconnect the underlying client without reporting the result, used to
+	 * drop a session which is no longer wanted
+	 */
+	private void disconnectQuietly() {
+		abortAckWaits();
 		try {
 			myClient.disconnect(null, new IMqttActionListener() {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
-					// No action
+					disconnectComplete();
 				}
 
 				@Override
 				public void onFailure(IMqttToken asyncActionToken,
 						Throwable exception) {
-					// No action
+					disconnectComplete();
 				}
 			});
 		} catch (Exception e) {
 			// ignore it - we've done our best
 		}
+	}
 
-		if (callback != null) {
-			callback.connectionLost(why);
+	/**
+	 * A disconnect of the underlying client has completed, successfully or
+	 * not. Closes the client if {@link #close()} was called meanwhile.
+	 */
+	private void disconnectComplete() {
+		if (!connectionState.transition(State.IDLE, State.DISCONNECTING)
+				&& connectionState.is(State.CLOSED)) {
+			closeClient();
 		}
-		// client has lost connection no need for wake lock
-		releaseWakeLock();
 	}
 
 	/**
@@ -1373,21 +2054,16 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	 */
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken messageToken) {
+		callbackThread = Thread.currentThread();
 
 		Log.d(TAG, "deliveryComplete(" + messageToken + ")");
 
-		MqttMessage message = savedSentMessages.remove(messageToken);
-		if (message != null) { // If I don't know about the message, it's
-			// irrelevant
-			// String topic = savedTopics.remove(messageToken);
-			String activityToken = savedActivityTokens.remove(messageToken);
-			// String invocationContext = savedInvocationContexts
-			// .remove(messageToken);
-			IMqttToken token = removeMqttToken(activityToken);
-			if (token != null) {
-				if (callback != null) {
-					callback.deliveryComplete((IMqttDeliveryToken) token);
-				}
+		Object context = messageToken.getUserContext();
+		if (context instanceof SkyInflightTable.Record) { // If I don't know
+			// about the message, it's irrelevant
+			completeDelivery((SkyInflightTable.Record) context);
+			if (callback != null) {
+				callback.deliveryComplete(messageToken);
 			}
 		}
 
@@ -1406,26 +2082,144 @@ public class SkyMqttAndroidClient implements IMqttAsyncClient, MqttCallback {
 	@Override
 	public void messageArrived(String topic, MqttMessage message)
 			throws Exception {
+		callbackThread = Thread.currentThread();
 
-		Log.d(TAG, "messageArrived(" + topic + ",{" + message.toString() + "})");
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, "messageArrived(" + topic + ",{" + message + "})");
+		}
+
+		if (awaitingFirstMessage) {
+			awaitingFirstMessage = false;
+			SkyMqttMetrics.set(SkyMqttMetrics.TIME_TO_FIRST_MESSAGE,
+					SystemClock.elapsedRealtime() - connectStartTime);
+		}
 
 		// String messageId = java.util.UUID.randomUUID().toString();
 
-		if (callback != null) {
+		SkyDuplicateFilter filter = duplicateFilter;
+		if (filter != null && filter.isDuplicate(topic, message)) {
+			Log.d(TAG, "duplicate message on " + topic + " dropped");
+			return;
+		}
+
+		if (callback != null || listeners.size() > 0) {
+			if (unacked != null) {
+				// kept until the application acknowledges it, a failure to
+				// store it or to get into the window is thrown to Paho,
+				// which then does not ack it
+				message = unacked.add(topic, message);
+			}
+			deliver(topic, message);
+		}
+	}
+
+	/**
+	 * Hand an arrived message on. A {@link SkyMessageDispatcher} callback
+	 * queues it and its lanes route it with
+	 * {@link #route(String, MqttMessage, MqttCallback)}, so listeners never
+	 * run on Paho's callback thread; otherwise it is routed here.
+	 */
+	private void deliver(String topic, MqttMessage message) {
+		MqttCallback target = callback;
+		try {
+			if (target instanceof SkyMessageDispatcher) {
+				target.messageArrived(topic, message);
+			} else {
+				route(topic, message, target);
+			}
+		} catch (Exception e) {
+			// Swallow the exception
+		}
+	}
+
+	/**
+	 * Hand a message to the listeners whose filters match its topic, or to
+	 * the target if there are none.
+	 * <p>
+	 * In {@link Ack#MANUAL_ACK} mode a message taken by listeners or the
+	 * target stays unacknowledged until the application passes its id to
+	 * {@link #acknowledgeMessage(String)}. If a listener throws, the message
+	 * is released instead, to be delivered again after a restart. A message
+	 * nobody takes, with no listener matching and no target, is acknowledged
+	 * at once: nobody holds its id, so it would only take up a place in the
+	 * window and come back to nobody after every restart.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message
+	 * @param target
+	 *            the callback of the messages no listener matches, may be
+	 *            <code>null</code>
+	 * @throws Exception
+	 *             thrown by the target
+	 */
+	void route(String topic, MqttMessage message, MqttCallback target)
+			throws Exception {
+		if (listeners.size() > 0) {
+			Matches m = matches.get();
+			if (m.busy) {
+				// a listener delivering in turn
+				m = new Matches();
+			}
+			m.busy = true;
 			try {
-				if (messageAck == Ack.AUTO_ACK) {
-					callback.messageArrived(topic, message);
-					// mqttService.acknowledgeMessageArrival(clientHandle,
-					// messageId);
-				} else {
-					// message.messageId = messageId;
-					callback.messageArrived(topic, message);
+				// collected first, so the listeners run outside the lock of
+				// the trie and may subscribe themselves
+				listeners.match(topic, m);
+				List<SkyMessageListener> matched = m.matched;
+				if (!matched.isEmpty()) {
+					SkyMqttMetrics.add(SkyMqttMetrics.ROUTE_DELIVERIES,
+							matched.size());
+					boolean failed = false;
+					for (int i = 0; i < matched.size(); i++) {
+						try {
+							matched.get(i).messageArrived(topic, message);
+						} catch (Exception e) {
+							Log.e(TAG, "listener failed on " + topic, e);
+							failed = true;
+						}
+					}
+					if (failed) {
+						settle(message, false);
+					}
+					return;
 				}
-
-				// let the service discard the saved message details
-			} catch (Exception e) {
-				// Swallow the exception
+			} finally {
+				m.matched.clear();
+				m.busy = false;
 			}
 		}
+		if (target != null) {
+			target.messageArrived(topic, message);
+		} else {
+			settle(message, true);
+		}
+	}
+
+	// Acknowledge or release a message waiting for its acknowledgement
+	private void settle(MqttMessage message, boolean processed) {
+		if (!(message instanceof SkyArrivedMessage)) {
+			return;
+		}
+		String messageId = ((SkyArrivedMessage) message).getMessageId();
+		if (processed) {
+			acknowledgeMessage(messageId);
+		} else {
+			releaseMessage(messageId);
+		}
+	}
+
+	/**
+	 * Deliver the messages left unacknowledged by the last run
+	 */
+	private void redeliverUnacked() {
+		if (unacked == null) {
+			return;
+		}
+		for (SkyArrivedMessage message : unacked.takeRestored()) {
+			deliver(message.getTopic(), message);
+		}
 	}
 }
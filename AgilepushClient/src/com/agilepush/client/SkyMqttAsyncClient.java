@@ -0,0 +1,27 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+
+/**
+ * The Paho client used by {@link SkyMqttAndroidClient}. It exposes which of
+ * the server URIs of the connect options the connection was made to.
+ */
+class SkyMqttAsyncClient extends MqttAsyncClient {
+
+	SkyMqttAsyncClient(String serverURI, String clientId,
+			MqttClientPersistence persistence, MqttPingSender pingSender)
+			throws MqttException {
+		super(serverURI, clientId, persistence, pingSender);
+	}
+
+	/**
+	 * @return the index into the server URIs of the connect options of the
+	 *         broker in use, or of the last broker tried if the connect failed
+	 */
+	int getServerURIIndex() {
+		return comms.getNetworkModuleIndex();
+	}
+}
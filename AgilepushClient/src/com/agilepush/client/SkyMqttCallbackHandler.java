@@ -12,20 +12,15 @@
  */
 package com.agilepush.client;
 
-import java.util.Calendar;
-
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import com.skypush.demo.R;
 
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.support.v4.app.NotificationCompat.Builder;
 
 /**
  * Handles call backs from the MQTT Client
@@ -33,6 +28,9 @@ import android.support.v4.app.NotificationCompat.Builder;
  */
 public class SkyMqttCallbackHandler implements MqttCallback {
 
+	/** Preference selecting the notification grouping, "topic" or "client" **/
+	static final String PREF_NOTIFY_GROUPING = "notifyGrouping";
+
 	/**
 	 * {@link Context} for the application used to format and import external
 	 * strings
@@ -55,8 +53,15 @@ public class SkyMqttCallbackHandler implements MqttCallback {
 	 **/
 	private String host = null;
 	/** The port on the server this client is connecting to **/
-	/** Message ID Counter **/
-	private static int MessageID = 0;
+	/** Folds the notifications of this handler per group **/
+	private final SkyNotificationAggregator notifications;
+	/** Group message notifications per client instead of per topic **/
+	private final boolean groupByClient;
+
+	/** History of the arrived messages **/
+	private final SkyMessageStore messageStore;
+	/** The client whose messages this handler acknowledges **/
+	private volatile SkyMqttAndroidClient client;
 
 	/**
 	 * Creates an <code>MqttCallbackHandler</code> object
@@ -72,56 +77,41 @@ public class SkyMqttCallbackHandler implements MqttCallback {
 		this.clientHandle = clientHandle;
 		this.clientId = clientId;
 		this.host = server;
+		this.messageStore = SkyMessageStore.getInstance(context);
+		// one intent for every notification of this client
+		Intent intent = new Intent();
+		intent.setClassName(context, "com.skypush.demo.PushActivity");
+		intent.putExtra("handle", clientHandle);
+		Intent cleared = new Intent(context, SkyMqttService.class);
+		cleared.setAction(SkyMqttService.ACTION_NOTIFICATION_CLEARED);
+		this.notifications = new SkyNotificationAggregator(context, clientId,
+				PendingIntent.getActivity(context,
+						SkyMqttConstants.showHistory, intent, 0), cleared);
+		this.groupByClient = "client".equals(context.getSharedPreferences(
+				SkyMqttService.TAG, Context.MODE_PRIVATE).getString(
+				PREF_NOTIFY_GROUPING, null));
 	}
 
 	/**
-	 * Displays a notification in the notification area of the UI
+	 * Set the client whose messages are acknowledged once they are in the
+	 * history, for a client in {@link SkyMqttAndroidClient.Ack#MANUAL_ACK}
+	 * mode
 	 * 
-	 * @param context
-	 *            Context from which to create the notification
-	 * @param messageString
-	 *            The string to display to the user as a message
-	 * @param intent
-	 *            The intent which will start the activity when the user clicks
-	 *            the notification
-	 * @param notificationTitle
-	 *            The resource reference to the notification title
+	 * @param client
+	 *            the client
 	 */
-	private void notifcation(String messageString, Intent intent,
-			int notificationTitle) {
-
-		// Get the notification manage which we will use to display the
-		// notification
-		String ns = Context.NOTIFICATION_SERVICE;
-		NotificationManager mNotificationManager = (NotificationManager) context
-				.getSystemService(ns);
-
-		Calendar.getInstance().getTime().toString();
-
-		long when = System.currentTimeMillis();
-
-		// get the notification title from the application's strings.xml file
-		CharSequence contentTitle = context.getString(notificationTitle);
-
-		// the message that will be displayed as the ticker
-		String ticker = contentTitle + " " + messageString;
-
-		// build the pending intent that will start the appropriate activity
-		PendingIntent pendingIntent = PendingIntent.getActivity(context,
-				SkyMqttConstants.showHistory, intent, 0);
-
-		// build the notification
-		Builder notificationCompat = new Builder(context);
-		notificationCompat.setAutoCancel(true).setContentTitle(contentTitle)
-				.setContentIntent(pendingIntent).setContentText(messageString)
-				.setTicker(ticker).setWhen(when)
-				.setSmallIcon(R.drawable.ic_launcher);
-
-		Notification notification = notificationCompat.build();
-		// display the notification
-		mNotificationManager.notify(MessageID, notification);
-		MessageID++;
+	void setClient(SkyMqttAndroidClient client) {
+		this.client = client;
+	}
 
+	/**
+	 * The user has cleared one of the notifications of this client
+	 * 
+	 * @param id
+	 *            the id of the notification
+	 */
+	void notificationCleared(int id) {
+		notifications.cleared(id);
 	}
 
 	/**
@@ -138,14 +128,9 @@ public class SkyMqttCallbackHandler implements MqttCallback {
 
 			String message = context.getString(R.string.connection_lost, args);
 
-			// build intent
-			Intent intent = new Intent();
-			intent.setClassName(context,
-					"com.skypush.demo.PushActivity");
-			intent.putExtra("handle", clientHandle);
-
 			// notify the user
-			notifcation(message, intent, R.string.notifyTitle_connectionLost);
+			notifications.post(SkyNotificationAggregator.CONNECTION_GROUP,
+					R.string.notifyTitle_connectionLost, message);
 		}
 	}
 
@@ -157,31 +142,28 @@ public class SkyMqttCallbackHandler implements MqttCallback {
 	public void messageArrived(String topic, MqttMessage message)
 			throws Exception {
 
-		// create arguments to format message arrived notifcation string
-		String[] args = new String[2];
-		args[0] = new String(message.getPayload());
-		args[1] = topic + ";qos:" + message.getQos() + ";retained:"
-				+ message.isRetained();
-
-		// get the string from strings.xml and format
-		// String messageString = context.getString(R.string.messageRecieved,
-		// (Object[]) args);
-
-		// create intent to start activity
-		Intent intent = new Intent();
-		intent.setClassName(context,
-				"com.skypush.demo.PushActivity");
-		intent.putExtra("handle", clientHandle);
-
-		// format string args
-		Object[] notifyArgs = new String[3];
-		notifyArgs[0] = clientId;
-		notifyArgs[1] = new String(message.getPayload());
-		notifyArgs[2] = topic;
+		if (message instanceof SkyArrivedMessage) {
+			// processed once it is in the history, acknowledged from there
+			final String messageId = ((SkyArrivedMessage) message)
+					.getMessageId();
+			messageStore.add(clientHandle, topic, message, new Runnable() {
+				@Override
+				public void run() {
+					SkyMqttAndroidClient c = client;
+					if (c != null) {
+						c.acknowledgeMessage(messageId);
+					}
+				}
+			});
+		} else {
+			// queued, written to the history by the store's own thread
+			messageStore.add(clientHandle, topic, message);
+		}
 
-		// notify the user
-		notifcation(context.getString(R.string.notification, notifyArgs), intent,
-				R.string.notifyTitle);
+		// notify the user, the text is only formatted when the summary of
+		// the group is shown
+		notifications.postMessage(groupByClient ? clientHandle : topic,
+				topic, message.getPayload());
 
 		// update client history
 		// c.addAction(messageString);
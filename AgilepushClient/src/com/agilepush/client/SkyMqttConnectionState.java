@@ -0,0 +1,141 @@
+package com.agilepush.client;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+/**
+ * The connection state of a {@link SkyMqttAndroidClient}.
+ * <p>
+ * Every change goes through {@link #transition(State, State...)}, which only
+ * succeeds when the current state is one of the expected states. Two threads
+ * can therefore never both start a connect on the same client. Each
+ * successful transition is reported to the registered {@link Listener}s.
+ * </p>
+ */
+class SkyMqttConnectionState {
+
+	private static final String TAG = "SkyMqttConnectionState";
+
+	/**
+	 * The states of a client connection
+	 */
+	enum State {
+		/** Not connected and nothing scheduled **/
+		IDLE,
+		/** A connect has been sent and the CONNACK is outstanding **/
+		CONNECTING,
+		/** The CONNACK has been received **/
+		CONNECTED,
+		/** Not connected and a reconnect has been scheduled **/
+		BACKING_OFF,
+		/** A disconnect has been sent and has not completed yet **/
+		DISCONNECTING,
+		/** The client has been closed and cannot be used any more **/
+		CLOSED
+	}
+
+	/**
+	 * Receives the transitions of a {@link SkyMqttConnectionState}
+	 */
+	interface Listener {
+		/**
+		 * A transition has taken place
+		 *
+		 * @param from
+		 *            the previous state
+		 * @param to
+		 *            the new state
+		 */
+		void onStateChanged(State from, State to);
+	}
+
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.IDLE);
+
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * @return the current state
+	 */
+	State get() {
+		return state.get();
+	}
+
+	/**
+	 * Checks the current state
+	 *
+	 * @param states
+	 *            the states to check for
+	 * @return <code>true</code> if the current state is one of the states
+	 */
+	boolean is(State... states) {
+		State current = state.get();
+		for (State s : states) {
+			if (current == s) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Atomically moves to a new state
+	 *
+	 * @param to
+	 *            the new state
+	 * @param expected
+	 *            the states from which the transition is allowed
+	 * @return <code>true</code> if the transition took place,
+	 *         <code>false</code> if the current state was not one of the
+	 *         expected states
+	 */
+	boolean transition(State to, State... expected) {
+		while (true) {
+			State current = state.get();
+			boolean allowed = false;
+			for (State s : expected) {
+				if (current == s) {
+					allowed = true;
+					break;
+				}
+			}
+			if (!allowed) {
+				return false;
+			}
+			if (state.compareAndSet(current, to)) {
+				fireStateChanged(current, to);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Moves to {@link State#CLOSED} from any state
+	 *
+	 * @return the state before the client was closed
+	 */
+	State close() {
+		State previous = state.getAndSet(State.CLOSED);
+		if (previous != State.CLOSED) {
+			fireStateChanged(previous, State.CLOSED);
+		}
+		return previous;
+	}
+
+	void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireStateChanged(State from, State to) {
+		Log.d(TAG, from + " -> " + to);
+		for (Listener listener : listeners) {
+			listener.onStateChanged(from, to);
+		}
+	}
+}
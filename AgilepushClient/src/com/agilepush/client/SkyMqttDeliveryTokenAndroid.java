@@ -0,0 +1,38 @@
+package com.agilepush.client;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * <p>
+ * Implementation of the IMqttDeliveryToken interface for use from within the
+ * MqttAndroidClient implementation. A publish gets this token at once, also
+ * while it waits in the outbox for a connection.
+ */
+class SkyMqttDeliveryTokenAndroid extends SkyMqttTokenAndroid implements
+		IMqttDeliveryToken {
+
+	// The message which is being tracked by this token
+	private MqttMessage message;
+
+	SkyMqttDeliveryTokenAndroid(SkyMqttAndroidClient client,
+			Object userContext, IMqttActionListener listener,
+			MqttMessage message) {
+		super(client, userContext, listener, message);
+		this.message = message;
+	}
+
+	/**
+	 * @see org.eclipse.paho.client.mqttv3.IMqttDeliveryToken#getMessage()
+	 */
+	@Override
+	public MqttMessage getMessage() throws MqttException {
+		return message;
+	}
+
+	void setMessage(MqttMessage message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,203 @@
+package com.agilepush.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Process wide counters and gauges for the push client.
+ * <p>
+ * Values are only kept in memory; {@link #dump()} writes the current snapshot
+ * to the log so it can be collected together with the rest of the trace.
+ * </p>
+ */
+final class SkyMqttMetrics {
+
+	private static final String TAG = "SkyMqttMetrics";
+
+	/* Startup pipeline */
+	static final String CONNECT_COUNT = "connect.count";
+	static final String TIME_TO_CONNACK = "connect.timeToConnack";
+	static final String TIME_TO_SUBACK = "connect.timeToSuback";
+	static final String TIME_TO_FIRST_MESSAGE = "connect.timeToFirstMessage";
+
+	/* Adaptive keepalive */
+	static final String KEEPALIVE_LEARNED = "keepalive.learned";
+	static final String KEEPALIVE_PROBE_FAILURES = "keepalive.probeFailures";
+
+	/* Reconnect backoff */
+	static final String RECONNECT_ATTEMPTS = "reconnect.attempts";
+	static final String RECONNECT_ATTEMPTS_TO_SUCCESS = "reconnect.attemptsToSuccess";
+
+	/* Broker failover */
+	static final String BROKER_FAILOVERS = "broker.failovers";
+	static final String BROKER_FAILURES = "broker.failures";
+
+	/* Connect racing */
+	static final String CONNECT_RACE_ATTEMPTS = "connectRace.attempts";
+	static final String CONNECT_RACE_WINNER = "connectRace.winnerIndex";
+
+	/* Publishes in flight */
+	static final String INFLIGHT_DEPTH = "inflight.depth";
+	static final String INFLIGHT_REJECTED = "inflight.rejected";
+
+	/* Bulk publish, batches, their messages and the batches queued for a slot */
+	static final String BATCH_COUNT = "batch.count";
+	static final String BATCH_MESSAGES = "batch.messages";
+	static final String BATCH_QUEUED = "batch.queued";
+
+	/* Offline outbox */
+	static final String OUTBOX_DEPTH = "outbox.depth";
+	static final String OUTBOX_DROPPED = "outbox.dropped";
+	static final String OUTBOX_EXPIRED = "outbox.expired";
+	static final String OUTBOX_DRAINED = "outbox.drained";
+	static final String OUTBOX_FLUSHES = "outbox.flushes";
+
+	/* Segment log persistence */
+	static final String PERSIST_SEGMENTS = "persist.segments";
+	static final String PERSIST_SYNCS = "persist.syncs";
+	static final String PERSIST_COMPACTIONS = "persist.compactions";
+	static final String PERSIST_RECOVERY_TIME = "persist.recoveryTime";
+
+	/* Message history */
+	static final String HISTORY_STORED = "history.stored";
+	static final String HISTORY_DROPPED = "history.dropped";
+	static final String HISTORY_BATCH_SIZE = "history.batchSize";
+	static final String HISTORY_PRUNES = "history.prunes";
+
+	/* Duplicate suppression */
+	static final String DEDUP_CHECKS = "dedup.checks";
+	static final String DEDUP_HITS = "dedup.hits";
+	static final String DEDUP_BLOOM_HITS = "dedup.bloomHits";
+	static final String DEDUP_FALSE_POSITIVE_PPM = "dedup.falsePositivePpm";
+
+	/*
+	 * Inbound dispatch, dwell is the time a message waited in its lane. Depth
+	 * and dwell are kept per lane, the name is followed by "." and the lane.
+	 */
+	static final String DISPATCH_DEPTH = "dispatch.depth";
+	static final String DISPATCH_DWELL = "dispatch.dwell";
+	static final String DISPATCH_DWELL_MAX = "dispatch.dwellMax";
+	static final String DISPATCH_BLOCKED = "dispatch.blocked";
+	static final String DISPATCH_DROPPED = "dispatch.dropped";
+	static final String DISPATCH_SPILLED = "dispatch.spilled";
+	static final String DISPATCH_SYNCS = "dispatch.syncs";
+
+	/* Notifications, calls are the binder calls to the NotificationManager */
+	static final String NOTIFY_CALLS = "notify.calls";
+	static final String NOTIFY_COALESCED = "notify.coalesced";
+	static final String NOTIFY_THROTTLED = "notify.throttled";
+
+	/* Manual acknowledgement, latency from delivery to acknowledgement */
+	static final String ACK_OUTSTANDING = "ack.outstanding";
+	static final String ACK_LATENCY = "ack.latency";
+	static final String ACK_WAITS = "ack.waits";
+	static final String ACK_RELEASED = "ack.released";
+	static final String ACK_REFUSED = "ack.refused";
+
+	/* Topic routing, listeners registered and messages handed to them */
+	static final String ROUTE_LISTENERS = "route.listeners";
+	static final String ROUTE_DELIVERIES = "route.deliveries";
+
+	/* Subscriptions, packets sent and topics kept by a resumed session */
+	static final String SUBSCRIBE_PACKETS = "subscribe.packets";
+	static final String UNSUBSCRIBE_PACKETS = "subscribe.unsubscribePackets";
+	static final String SUBSCRIBE_RESUMED = "subscribe.resumed";
+
+	/* Token registry */
+	static final String TOKENS_LIVE = "tokens.live";
+	static final String TOKENS_EVICTED = "tokens.evicted";
+
+	/* Socket traffic, payload bytes above TLS */
+	static final String SOCKET_BYTES_SENT = "socket.bytesSent";
+	static final String SOCKET_BYTES_RECEIVED = "socket.bytesReceived";
+
+	/* TLS */
+	static final String TLS_HANDSHAKES = "tls.handshakes";
+	static final String TLS_RESUMED = "tls.resumed";
+	static final String TLS_HANDSHAKE_TIME = "tls.handshakeTime";
+	static final String TLS_HOSTNAME_MISMATCHES = "tls.hostnameMismatches";
+
+	/* Connectivity broadcasts */
+	static final String NETWORK_EVENTS = "network.events";
+	static final String NETWORK_CHANGES = "network.changes";
+	static final String NETWORK_DUPLICATES = "network.duplicates";
+
+	private static final ConcurrentHashMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+
+	private SkyMqttMetrics() {
+	}
+
+	private static AtomicLong value(String name) {
+		AtomicLong value = values.get(name);
+		if (value == null) {
+			AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(name, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Increment a counter by one
+	 *
+	 * @param name
+	 *            the name of the counter
+	 * @return the new value
+	 */
+	static long increment(String name) {
+		return value(name).incrementAndGet();
+	}
+
+	/**
+	 * Add to a counter or gauge
+	 *
+	 * @param name
+	 *            the name of the counter
+	 * @param delta
+	 *            the amount to add, may be negative
+	 * @return the new value
+	 */
+	static long add(String name, long delta) {
+		return value(name).addAndGet(delta);
+	}
+
+	/**
+	 * Set a gauge to an absolute value
+	 *
+	 * @param name
+	 *            the name of the gauge
+	 * @param newValue
+	 *            the value to record
+	 */
+	static void set(String name, long newValue) {
+		value(name).set(newValue);
+	}
+
+	/**
+	 * @param name
+	 *            the name of the counter or gauge
+	 * @return the current value, 0 if nothing has been recorded
+	 */
+	static long get(String name) {
+		AtomicLong value = values.get(name);
+		return (value != null) ? value.get() : 0;
+	}
+
+	/**
+	 * Write all recorded values to the log
+	 */
+	static void dump() {
+		Iterator<Map.Entry<String, AtomicLong>> it = values.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, AtomicLong> entry = it.next();
+			Log.d(TAG, entry.getKey() + "=" + entry.getValue().get());
+		}
+	}
+}
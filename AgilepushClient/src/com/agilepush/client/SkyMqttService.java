@@ -1,9 +1,21 @@
 package com.agilepush.client;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+
+import com.agilepush.client.SkyMqttConnectionState.State;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -18,9 +30,15 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 /* 
@@ -47,16 +65,12 @@ public class SkyMqttService extends Service {
 	// + ".KEEP_ALIVE";
 	private static final String ACTION_RECONNECT = MQTT_CLIENT_ID
 			+ ".RECONNECT";
+	static final String ACTION_NOTIFICATION_CLEARED = MQTT_CLIENT_ID
+			+ ".NOTIFICATION_CLEARED";
 
 	// Connectivity manager to determining, when the phone loses connection
 	private ConnectivityManager mConnMan;
 
-	// Whether or not the service has been started.
-	private boolean mStarted = false;
-
-	// Retry intervals, when the connection is lost.
-	private static final long INITIAL_RETRY_INTERVAL = 1000 * 10;
-	private static final long MAXIMUM_RETRY_INTERVAL = 1000 * 60 * 30;
 
 	// Preferences instance
 	private SharedPreferences mPrefs;
@@ -68,6 +82,14 @@ public class SkyMqttService extends Service {
 	public static final String	PREF_SERVER_IP = "serverIP";
 
 	public static final String	PREF_SERVER_PORT = "serverPort";
+	// Comma separated brokers, host[:port] or full server URIs; the port
+	// defaults to PREF_SERVER_PORT
+	public static final String	PREF_SERVER_URIS = "serverURIs";
+	// TLS: whether to use ssl:// brokers, the BKS trust store file and its
+	// password
+	public static final String	PREF_SSL = "ssl";
+	public static final String	PREF_SSL_KEY = "sslKey";
+	public static final String	PREF_SSL_KEY_PASSWORD = "sslKeyPassword";
 	
 	public static final String	PREF_USER_NAME = "userName";
 	
@@ -78,12 +100,18 @@ public class SkyMqttService extends Service {
 	public static final String	PREF_KEEPALIVE = "keepAlive";
 	
 	public static final String	PREF_CLEAN_SESSION = "cleanSession";
+	// Publishes which may be in flight at once
+	public static final String	PREF_MAX_INFLIGHT = "maxInflight";
+	public static final String	PREF_DEDUP_CAPACITY = "dedupCapacity";
+	// Messages are acknowledged once they are in the history
+	public static final String	PREF_MANUAL_ACK = "manualAck";
+	// Messages which may wait for their acknowledgement at once
+	public static final String	PREF_MAX_UNACKED = "maxUnacked";
 	// We store the last retry interval
 	public static final String PREF_RETRY = "retryInterval";
 
 	private boolean cleanSession = false;
 
-	private long mStartTime;
 	// private MqttConnectOptions options;
 
 	private String serverURI = null;
@@ -94,6 +122,24 @@ public class SkyMqttService extends Service {
 	private String clientHandle;
 	private String mTopic = "/World";
 	private SkyMqttAndroidClient mClient = null;
+	// keepalive interval learned per network
+	private SkyKeepAliveTuner mKeepAliveTuner;
+	// hands arrived messages to the callback handler
+	private SkyMessageDispatcher mDispatcher;
+	// builds the notifications, read on the main thread
+	private volatile SkyMqttCallbackHandler mCallbackHandler;
+	// the topics we want, sent as deltas after each connect
+	private SkySubscriptionManager mSubscriptions;
+	// whether the broker kept our session at the last CONNACK
+	private volatile boolean mSessionPresent;
+	// brokers ordered by connect time
+	private SkyBrokerRanker mBrokerRanker;
+	// the configured connect timeout in seconds
+	private int mConnectionTimeout;
+	// races the connect across addresses and brokers
+	private SkySocketFactory mSocketFactory;
+	// backoff of the reconnect attempts
+	private SkyReconnectScheduler mReconnectScheduler;
 	MqttConnectOptions conOpt;
 	
 	private static Context mCtx;
@@ -104,6 +150,30 @@ public class SkyMqttService extends Service {
 	private BackgroundDataPreferenceReceiver backgroundDataPreferenceMonitor;
 	private volatile boolean backgroundDataEnabled = true;
 
+	// Commands executed in order on the command thread. The command thread is
+	// the only writer of the service and client state.
+	private static final int MSG_RESTORE = 1;
+	private static final int MSG_START = 2;
+	private static final int MSG_STOP = 3;
+	private static final int MSG_RECONNECT = 4;
+	private static final int MSG_NETWORK_CHANGED = 5;
+	private static final int MSG_BACKGROUND_DATA_CHANGED = 6;
+	private static final int MSG_SUBSCRIBE = 7;
+	private static final int MSG_DESTROY = 8;
+	private static final int MSG_CONNECTION_LOST = 9;
+	private static final int MSG_CONNECT_FAILED = 10;
+	private static final int MSG_CONNECTED = 11;
+
+	private HandlerThread mCommandThread;
+	private Handler mCommandHandler;
+	// keeps the cpu running while a connectivity change is queued
+	private WakeLock mCommandWakeLock;
+	// connectivity broadcasts within this window are handled once
+	private static final long NETWORK_DEBOUNCE_INTERVAL = 1500;
+	// the network the connection was made on, see
+	// SkyNetworkIdentity.fingerprint(), null while offline
+	private String mNetworkFingerprint;
+
 	// Static method to start the service
 	public static void actionStart(Context ctx) {
 		Intent i = new Intent(ctx, SkyMqttService.class);
@@ -125,19 +195,151 @@ public class SkyMqttService extends Service {
 		super.onCreate();
 
 		Log.d(TAG, "Creating service");
-		mStartTime = System.currentTimeMillis();
 
 		// Get instances of preferences, connectivity manager and notification
 		// manager
 		mPrefs = getSharedPreferences(TAG, MODE_PRIVATE);
 		mConnMan = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+		mReconnectScheduler = new SkyReconnectScheduler(mPrefs);
+
+		PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+		mCommandWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+				SkyMqttConstants.WAKELOCK_NETWORK_INTENT);
+		mCommandWakeLock.setReferenceCounted(false);
+
+		mCommandThread = new HandlerThread(TAG + ".command",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		mCommandThread.start();
+		mCommandHandler = new CommandHandler(mCommandThread.getLooper());
 
 		/*
 		 * If our process was reaped by the system for any reason we need to
 		 * restore our state with merely a call to onCreate. We record the last
 		 * "started" value and restore it here if necessary.
 		 */
-		handleCrashedService();
+		enqueue(MSG_RESTORE);
+	}
+
+	/**
+	 * Queue a command for the command thread. A command replaces any
+	 * identical command which is still waiting, and START and STOP replace
+	 * each other so only the last request of the user is executed.
+	 * 
+	 * @param what
+	 *            the command
+	 */
+	private void enqueue(int what) {
+		Handler handler = mCommandHandler;
+		if (handler == null) {
+			return;
+		}
+		handler.removeMessages(what);
+		if (what == MSG_START || what == MSG_STOP) {
+			handler.removeMessages(MSG_START);
+			handler.removeMessages(MSG_STOP);
+			handler.removeMessages(MSG_RECONNECT);
+		}
+		handler.sendEmptyMessage(what);
+	}
+
+	/**
+	 * Queue a command to run after a delay. Queuing it again before it ran
+	 * restarts the delay.
+	 * 
+	 * @param what
+	 *            the command
+	 * @param delay
+	 *            the delay in milliseconds
+	 */
+	private void enqueueDelayed(int what, long delay) {
+		Handler handler = mCommandHandler;
+		if (handler == null) {
+			return;
+		}
+		handler.removeMessages(what);
+		handler.sendEmptyMessageDelayed(what, delay);
+	}
+
+	/**
+	 * Queues a reconnect whenever the client drops back to idle
+	 */
+	private final SkyMqttConnectionState.Listener mStateListener = new SkyMqttConnectionState.Listener() {
+		@Override
+		public void onStateChanged(State from, State to) {
+			if (to == State.CONNECTED) {
+				enqueue(MSG_CONNECTED);
+			} else if (to == State.IDLE) {
+				enqueue((from == State.CONNECTED) ? MSG_CONNECTION_LOST
+						: MSG_CONNECT_FAILED);
+			}
+		}
+	};
+
+	/**
+	 * Runs the commands of the service one after the other
+	 */
+	private class CommandHandler extends Handler {
+
+		CommandHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case MSG_RESTORE:
+				handleCrashedService();
+				break;
+			case MSG_START:
+				start();
+				break;
+			case MSG_STOP:
+				stop();
+				stopSelf();
+				break;
+			case MSG_RECONNECT:
+				if (isNetworkAvailable()) {
+					reconnectIfNecessary();
+				}
+				break;
+			case MSG_NETWORK_CHANGED:
+				try {
+					handleNetworkChange();
+				} finally {
+					if (!hasMessages(MSG_NETWORK_CHANGED)) {
+						mCommandWakeLock.release();
+					}
+				}
+				break;
+			case MSG_BACKGROUND_DATA_CHANGED:
+				handleBackgroundDataChange();
+				break;
+			case MSG_SUBSCRIBE:
+				subscribe();
+				break;
+			case MSG_CONNECTION_LOST:
+			case MSG_CONNECT_FAILED:
+				// the connection was lost or could not be established
+				if (mSubscriptions != null) {
+					mSubscriptions.onDisconnected();
+				}
+				if (mClient != null && isNetworkAvailable() && mClient.backOff()) {
+					scheduleReconnect(msg.what == MSG_CONNECTION_LOST);
+				}
+				break;
+			case MSG_CONNECTED:
+				mReconnectScheduler.onConnected();
+				cancelReconnect();
+				break;
+			case MSG_DESTROY:
+				// Stop the services, if it has been started
+				if (mClient != null) {
+					stop();
+				}
+				getLooper().quit();
+				break;
+			}
+		}
 	}
 
 	// This method does any necessary clean-up need in case the server has been
@@ -153,7 +355,8 @@ public class SkyMqttService extends Service {
 	}
 
 	void reconnect() {
-		if (this.isOnline() && !cleanSession) {
+		if (this.isOnline() && !cleanSession && mClient != null) {
+			applyKeepAlive();
 			mClient.reconnect();
 		}
 	}
@@ -162,7 +365,7 @@ public class SkyMqttService extends Service {
 	 * Notify clients we're offline
 	 */
 	public void notifyClientsOffline() {
-		if (!cleanSession) {
+		if (!cleanSession && mClient != null) {
 			mClient.offline();
 		}
 	}
@@ -184,13 +387,14 @@ public class SkyMqttService extends Service {
 
 	@Override
 	public void onDestroy() {
-		Log.d(TAG, "Service destroyed (started=" + mStarted + ")");
+		Log.d(TAG, "Service destroyed");
 
-		// Stop the services, if it has been started
-		if (mStarted == true) {
-			stop();
-		}
 		unregisterBroadcastReceivers();
+		enqueue(MSG_DESTROY);
+		mCommandHandler = null;
+		if (mCommandWakeLock.isHeld()) {
+			mCommandWakeLock.release();
+		}
 	}
 
 	@Override
@@ -198,15 +402,21 @@ public class SkyMqttService extends Service {
 		super.onStart(intent, startId);
 		Log.d(TAG, "Service started with intent=" + intent);
 		registerBroadcastReceivers();
-		// Do an appropriate action based on the intent.
+		// Queue an appropriate command based on the intent.
 		if (intent.getAction().equals(ACTION_STOP) == true) {
-			stop();
-			stopSelf();
+			enqueue(MSG_STOP);
 		} else if (intent.getAction().equals(ACTION_START) == true) {
-			start();
+			enqueue(MSG_START);
 		} else if (intent.getAction().equals(ACTION_RECONNECT) == true) {
-			if (isNetworkAvailable()) {
-				reconnectIfNecessary();
+			enqueue(MSG_RECONNECT);
+		} else if (intent.getAction().equals(ACTION_NOTIFICATION_CLEARED)) {
+			SkyMqttCallbackHandler handler = mCallbackHandler;
+			if (handler != null) {
+				handler.notificationCleared(intent.getIntExtra(
+						SkyNotificationAggregator.EXTRA_NOTIFICATION_ID, 0));
+			} else if (!wasStarted()) {
+				// started only to hear of it
+				stopSelf(startId);
 			}
 		}
 	}
@@ -224,20 +434,20 @@ public class SkyMqttService extends Service {
 	// Sets whether or not the services has been started in the preferences.
 	private void setStarted(boolean started) {
 		mPrefs.edit().putBoolean(PREF_STARTED, started).commit();
-		mStarted = started;
 	}
 
-	private synchronized void start() {
+	private void start() {
 		Log.d(TAG, "Starting service...");
 
 		// Do nothing, if the service is already running.
-		if (mStarted == true) {
+		if (mClient != null) {
 			Log.w(TAG, "Attempt to start connection that is already active");
 			return;
 		}
 		String serverIP = mPrefs.getString(PREF_SERVER_IP, null);
 		String serverPort = mPrefs.getString(PREF_SERVER_PORT, null);
 		String deviceID = mPrefs.getString(PREF_DEVICE_ID,null);
+		boolean ssl = mPrefs.getBoolean(PREF_SSL, false);
 		// Create a new connection only if the device id is not NULL
 		Log.e("lxs","server ip " +serverIP);
 		if (serverIP == null || serverPort==null || deviceID==null) {
@@ -246,13 +456,20 @@ public class SkyMqttService extends Service {
 		} else
 		{
 			//String serverURI = "tcp://172.22.198.201:1883";
-			serverURI = "tcp://" + serverIP + ":" + serverPort;
+			String[] brokers = parseBrokers(
+					mPrefs.getString(PREF_SERVER_URIS, null), ssl ? "ssl"
+							: "tcp", serverIP, serverPort);
+			// the primary broker names the client, the connect options
+			// carry all of them
+			serverURI = brokers[0];
+			mBrokerRanker = new SkyBrokerRanker(mPrefs, brokers);
 			mClientID = deviceID;
 			clientHandle = serverURI + mClientID;
 		}
 		String username = mPrefs.getString(PREF_USER_NAME, "admin");
 		String password = mPrefs.getString(PREF_PASSWD, "admin123");
 		int timeout = mPrefs.getInt(PREF_TIMEOUT, 60);
+		mConnectionTimeout = timeout;
 		int keepalive = mPrefs.getInt(PREF_KEEPALIVE, 120);
 		cleanSession = mPrefs.getBoolean(PREF_CLEAN_SESSION, false);
 		
@@ -262,29 +479,73 @@ public class SkyMqttService extends Service {
 		conOpt.setKeepAliveInterval(keepalive);
 		conOpt.setUserName(username);
 		conOpt.setPassword(password.toCharArray());
-		// : TODO for SSL
-		// boolean ssl = false;
-		// String ssl_key = null;
+		mSocketFactory = new SkySocketFactory(SocketFactory.getDefault(),
+				SkySocketOptions.fromPreferences(mPrefs));
+		if (ssl) {
+			try {
+				conOpt.setSocketFactory(new SkyTlsSocketFactory(
+						getTrustStore(), mSocketFactory));
+			} catch (MqttSecurityException e) {
+				Log.e(TAG, "Cannot set up TLS: " + e.getCause());
+				return;
+			}
+		} else {
+			conOpt.setSocketFactory(mSocketFactory);
+		}
 		// conOpt.setWill(topic, message.getBytes(), qos.intValue(),
 		// retained.booleanValue());
 		
 		
 
-		// Establish an MQTT connection
+		// One client per service start, it is reused for every reconnect
+		// until the service is stopped
+		// a persistent session keeps its in-flight messages in a segment
+		// log, a clean one the default files which it rarely touches
+		mClient = new SkyMqttAndroidClient(this, serverURI, mClientID,
+				cleanSession ? null : new SkySegmentLogPersistence(
+						getFilesDir()), mPrefs.getBoolean(PREF_MANUAL_ACK,
+						false) ? SkyMqttAndroidClient.Ack.MANUAL_ACK
+						: SkyMqttAndroidClient.Ack.AUTO_ACK);
+		mClient.setMaxUnacked(mPrefs.getInt(PREF_MAX_UNACKED,
+				SkyUnackedMessages.DEFAULT_WINDOW));
+		// the handler builds notifications, it runs on the dispatcher's
+		// threads so Paho's callback thread is never held up
+		SkyMqttCallbackHandler handler = new SkyMqttCallbackHandler(this,
+				clientHandle, mClientID, serverURI);
+		handler.setClient(mClient);
+		mCallbackHandler = handler;
+		mDispatcher = SkyMessageDispatcher.fromPreferences(handler, mPrefs,
+				new File(getFilesDir(), "dispatch-" + mClientID));
+		mClient.setCallback(mDispatcher);
+		mClient.getConnectionState().addListener(mStateListener);
+		mKeepAliveTuner = new SkyKeepAliveTuner(mPrefs, keepalive);
+		mClient.setKeepAliveTuner(mKeepAliveTuner);
+		mClient.setBrokerRanker(mBrokerRanker);
+		mClient.setMaxInflight(mPrefs.getInt(PREF_MAX_INFLIGHT,
+				SkyInflightTable.DEFAULT_CAPACITY));
+		mClient.setDuplicateFilter(new SkyDuplicateFilter(mPrefs.getInt(
+				PREF_DEDUP_CAPACITY, SkyDuplicateFilter.DEFAULT_CAPACITY),
+				SkyDuplicateFilter.DEFAULT_LRU_SIZE));
+		// publishes made while offline wait in the outbox, which outlives
+		// the process
+		mClient.setOutbox(SkyOutbox.fromPreferences(new File(getFilesDir(),
+				"outbox-" + mClientID), mPrefs));
+		// the topic set outlives the process, so a resumed session needs
+		// no SUBSCRIBE at all
+		mSubscriptions = new SkySubscriptionManager(mClient, mPrefs);
+		mSubscriptions.subscribe(mTopic, 0);
+		mNetworkFingerprint = SkyNetworkIdentity.fingerprint(this);
+		setStarted(true);
+
+		// Establish an MQTT connection, the subscriptions are sent as soon as
+		// the CONNACK arrives
 		connect();
-		try {
-			Thread.sleep(2000);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		subscribe();
 		// publish();
 	}
 
-	private synchronized void stop() {
+	private void stop() {
 		// Do nothing, if the service is not running.
-		if (mStarted == false) {
+		if (mClient == null) {
 			Log.w(TAG, "Attempt to stop connection not active.");
 			return;
 		}
@@ -293,14 +554,25 @@ public class SkyMqttService extends Service {
 		// stopping the service.
 		cancelReconnect();
 
-		// Destroy the MQTT connection if there is one
+		// Destroy the MQTT connection if there is one, the client is closed
+		// once the disconnect has completed
+		mClient.getConnectionState().removeListener(mStateListener);
 		disconnect();
+		mClient.close();
+		mClient = null;
+		mDispatcher.close();
+		mDispatcher = null;
+		mCallbackHandler = null;
+		mSubscriptions = null;
 	}
 
 	private void disconnect() {
+		if (mClient == null) {
+			return;
+		}
 		String[] actionArgs = new String[1];
 		actionArgs[0] = mTopic;
-		final SkyActionListener callback = new SkyActionListener(mCtx,
+		final SkyActionListener callback = new SkyActionListener(this,
 				SkyActionListener.Action.DISCONNECT, clientHandle, actionArgs);
 
 		try {
@@ -312,22 +584,27 @@ public class SkyMqttService extends Service {
 	}
 
 	//
-	private synchronized void connect() {
+	private void connect() {
 		Log.d(TAG, "Connecting...client: "+mClientID+" server: "+serverURI);
 
+		applyKeepAlive();
+		applyBrokerRanking();
 		try {
 			String[] actionArgs = new String[1];
 			actionArgs[0] = mClientID;
 
-			final SkyActionListener concallback = new SkyActionListener(mCtx,
-					SkyActionListener.Action.CONNECT, clientHandle, actionArgs);
-
-			mClient = new SkyMqttAndroidClient(this, serverURI, mClientID);
-			mClient.setCallback(new SkyMqttCallbackHandler(mCtx, clientHandle,
-					mClientID, serverURI));
+			// pipeline the subscriptions right behind the CONNACK
+			final SkyActionListener concallback = new SkyActionListener(this,
+					SkyActionListener.Action.CONNECT, clientHandle, actionArgs) {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					super.onSuccess(asyncActionToken);
+					mSessionPresent = asyncActionToken.getSessionPresent();
+					enqueue(MSG_SUBSCRIBE);
+				}
+			};
 
-			IMqttToken connectToken = mClient
-					.connect(conOpt, null, concallback);
+			mClient.connect(conOpt, null, concallback);
 
 		} catch (MqttException e) {
 			// Schedule a reconnect, if we failed to connect
@@ -335,36 +612,88 @@ public class SkyMqttService extends Service {
 					"MqttException: "
 							+ (e.getMessage() != null ? e.getMessage() : "NULL"));
 			if (isNetworkAvailable()) {
-				scheduleReconnect(mStartTime);
+				scheduleReconnect(false);
 			}
 		}
-		setStarted(true);
 	}
 
-	//
-	private synchronized void subscribe() {
-		Log.d(TAG, "Subscribe...");
+	// Try the fastest healthy broker first
+	private void applyBrokerRanking() {
+		String[] brokers = mBrokerRanker.rank();
+		conOpt.setServerURIs(brokers);
+		mSocketFactory.setServerURIs(brokers);
+		conOpt.setConnectionTimeout(mBrokerRanker
+				.connectionTimeout(mConnectionTimeout));
+	}
 
+	// The cached TLS context of the configured trust store
+	private SSLSocketFactory getTrustStore() throws MqttSecurityException {
+		String sslKey = mPrefs.getString(PREF_SSL_KEY, null);
+		String password = mPrefs.getString(PREF_SSL_KEY_PASSWORD, null);
+		if (sslKey == null || sslKey.length() == 0) {
+			// the trust anchors of the platform
+			return SkyTlsSocketFactory.getSSLSocketFactory(null, null);
+		}
 		try {
-			// TODO: should move the the connected success
-			int qos = 0;
-			String[] topics = new String[1];
-			topics[0] = mTopic;
-
-			final SkyActionListener subcallback = new SkyActionListener(mCtx,
-					SkyActionListener.Action.SUBSCRIBE, clientHandle, topics);
-			mClient.subscribe(mTopic, qos, null, subcallback);
+			return SkyTlsSocketFactory.getSSLSocketFactory(
+					new FileInputStream(sslKey), password);
+		} catch (FileNotFoundException e) {
+			throw new MqttSecurityException(e);
+		}
+	}
 
-		} catch (MqttException e) {
-			// Schedule a reconnect, if we failed to connect
-			Log.d(TAG,
-					"MqttException: "
-							+ (e.getMessage() != null ? e.getMessage() : "NULL"));
-			if (isNetworkAvailable()) {
-				scheduleReconnect(mStartTime);
+	/**
+	 * Parse the broker list preference
+	 * 
+	 * @param brokers
+	 *            comma separated host[:port] entries or server URIs, may be
+	 *            <code>null</code>
+	 * @param scheme
+	 *            the scheme of entries which do not name one
+	 * @param defaultHost
+	 *            the broker to use if the list is empty
+	 * @param defaultPort
+	 *            the port of entries which do not name one
+	 * @return the server URIs in the configured order
+	 */
+	static String[] parseBrokers(String brokers, String scheme,
+			String defaultHost, String defaultPort) {
+		List<String> uris = new ArrayList<String>();
+		if (brokers != null) {
+			for (String broker : brokers.split(",")) {
+				broker = broker.trim();
+				if (broker.length() == 0) {
+					continue;
+				}
+				if (broker.indexOf("://") < 0) {
+					broker = scheme + "://" + broker;
+				}
+				if (broker.indexOf(':', broker.indexOf("://") + 3) < 0) {
+					broker = broker + ":" + defaultPort;
+				}
+				if (!uris.contains(broker)) {
+					uris.add(broker);
+				}
 			}
 		}
+		if (uris.isEmpty()) {
+			uris.add(scheme + "://" + defaultHost + ":" + defaultPort);
+		}
+		return uris.toArray(new String[uris.size()]);
+	}
 
+	// Use the keepalive learned for the current network
+	private void applyKeepAlive() {
+		conOpt.setKeepAliveInterval(mKeepAliveTuner.begin(SkyNetworkIdentity
+				.current(this)));
+	}
+
+	// Bring the broker's subscriptions up to date after a connect
+	private void subscribe() {
+		Log.d(TAG, "Subscribe... session present: " + mSessionPresent);
+		if (mSubscriptions != null) {
+			mSubscriptions.onConnected(mSessionPresent);
+		}
 	}
 
 	@SuppressWarnings("unused")
@@ -378,7 +707,7 @@ public class SkyMqttService extends Service {
 		args[0] = message;
 		args[1] = topic + ";qos:" + qos + ";retained:" + retained;
 
-		final SkyActionListener pubcallback = new SkyActionListener(mCtx,
+		final SkyActionListener pubcallback = new SkyActionListener(this,
 				SkyActionListener.Action.PUBLISH, clientHandle, args);
 
 		try {
@@ -394,33 +723,24 @@ public class SkyMqttService extends Service {
 	}
 
 	// We schedule a reconnect based on the starttime of the service
-	public void scheduleReconnect(long startTime) {
-		// the last keep-alive interval
-		long interval = mPrefs.getLong(PREF_RETRY, INITIAL_RETRY_INTERVAL);
-
-		// Calculate the elapsed time since the start
-		long now = System.currentTimeMillis();
-		long elapsed = now - startTime;
-
-		// Set an appropriate interval based on the elapsed time since start
-		if (elapsed < interval) {
-			interval = Math.min(interval * 4, MAXIMUM_RETRY_INTERVAL);
-		} else {
-			interval = INITIAL_RETRY_INTERVAL;
+	public void scheduleReconnect(boolean connectionLost) {
+		long interval = mReconnectScheduler.nextDelay(connectionLost);
+		if (interval < 0) {
+			// wait for the network to change
+			return;
 		}
 
 		Log.d(TAG, "Rescheduling connection in " + interval + "ms.");
 
-		// Save the new internval
-		mPrefs.edit().putLong(PREF_RETRY, interval).commit();
-
-		// Schedule a reconnect using the alarm manager.
+		// Schedule a reconnect using the alarm manager, together with the
+		// keepalive pings of the client.
 		Intent i = new Intent();
 		i.setClass(this, SkyMqttService.class);
 		i.setAction(ACTION_RECONNECT);
 		PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
 		AlarmManager alarmMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
-		alarmMgr.set(AlarmManager.RTC_WAKEUP, now + interval, pi);
+		long now = SystemClock.elapsedRealtime();
+		SkyWakeupBatcher.setLate(alarmMgr, now + interval, now, pi);
 	}
 
 	// Remove the scheduled reconnect
@@ -433,8 +753,10 @@ public class SkyMqttService extends Service {
 		alarmMgr.cancel(pi);
 	}
 
-	private synchronized void reconnectIfNecessary() {
-		if (mStarted == true && mClient == null) {
+	private void reconnectIfNecessary() {
+		if (mClient != null
+				&& mClient.getConnectionState().is(State.IDLE,
+						State.BACKING_OFF)) {
 			Log.d(TAG, "Reconnecting...");
 			connect();
 		}
@@ -499,26 +821,58 @@ public class SkyMqttService extends Service {
 			Log.d(TAG, "Internal network status receive.");
 			// we protect against the phone switching off
 			// by requesting a wake lock - we request the minimum possible wake
-			// lock - just enough to keep the CPU running until we've finished
-			PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
-			WakeLock wl = pm
-					.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
-			wl.acquire();
-			Log.d(TAG, "Reconnect for Network recovery.");
-			if (isOnline()) {
+			// lock - just enough to keep the CPU running until the command
+			// thread has handled the change. A burst of broadcasts, as sent
+			// during a Wi-Fi/cellular handover, is debounced into a single
+			// command.
+			SkyMqttMetrics.increment(SkyMqttMetrics.NETWORK_EVENTS);
+			mCommandWakeLock.acquire();
+			enqueueDelayed(MSG_NETWORK_CHANGED, NETWORK_DEBOUNCE_INTERVAL);
+		}
+	}
+
+	// Runs on the command thread
+	private void handleNetworkChange() {
+		if (mClient == null) {
+			return;
+		}
+		String previous = mNetworkFingerprint;
+		String current = isOnline() ? SkyNetworkIdentity.fingerprint(this)
+				: null;
+		mNetworkFingerprint = current;
+
+		if (current == null ? previous == null : current.equals(previous)) {
+			// the default network did not change, keep a healthy
+			// connection and only retry one that is waiting anyway
+			Log.d(TAG, "Network unchanged: " + current);
+			SkyMqttMetrics.increment(SkyMqttMetrics.NETWORK_DUPLICATES);
+			if (current != null) {
+				reconnectIfNecessary();
+			}
+			return;
+		}
+
+		Log.d(TAG, "Network changed: " + previous + " -> " + current);
+		SkyMqttMetrics.increment(SkyMqttMetrics.NETWORK_CHANGES);
+		if (current != null) {
+			// a new network gets a fresh budget of reconnect attempts
+			mReconnectScheduler.onNetworkChanged(SkyNetworkIdentity
+					.current(this));
+			if (mClient.getConnectionState().is(State.CONNECTED)) {
+				// the socket is bound to an address which has gone, drop it;
+				// the fast retry after a lost connection brings it back
+				Log.d(TAG, "Online,drop connection of the old network.");
+				mClient.offline();
+			} else {
 				Log.d(TAG, "Online,reconnect.");
 				// we have an internet connection - have another try at
 				// connecting
-				reconnect();
-				Log.e(TAG, "Online,reconnect done.");
-			} else {
-				disconnect();
-				cancelReconnect();
-				notifyClientsOffline();
-				mClient = null;
+				reconnectIfNecessary();
 			}
-
-			wl.release();
+		} else {
+			disconnect();
+			cancelReconnect();
+			notifyClientsOffline();
 		}
 	}
 
@@ -528,22 +882,27 @@ public class SkyMqttService extends Service {
 	 */
 	private class BackgroundDataPreferenceReceiver extends BroadcastReceiver {
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-			Log.d(TAG, "Reconnect since BroadcastReceiver.");
-			if (cm.getBackgroundDataSetting()) {
-				if (!backgroundDataEnabled) {
-					backgroundDataEnabled = true;
-					// we have the Internet connection - have another try at
-					// connecting
-					reconnect();
-				}
-			} else {
-				backgroundDataEnabled = false;
-				notifyClientsOffline();
+			enqueue(MSG_BACKGROUND_DATA_CHANGED);
+		}
+	}
+
+	// Runs on the command thread
+	@SuppressWarnings("deprecation")
+	private void handleBackgroundDataChange() {
+		ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+		Log.d(TAG, "Reconnect since BroadcastReceiver.");
+		if (cm.getBackgroundDataSetting()) {
+			if (!backgroundDataEnabled) {
+				backgroundDataEnabled = true;
+				// we have the Internet connection - have another try at
+				// connecting
+				reconnect();
 			}
+		} else {
+			backgroundDataEnabled = false;
+			notifyClientsOffline();
 		}
 	}
 
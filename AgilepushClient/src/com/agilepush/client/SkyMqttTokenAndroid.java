@@ -258,17 +258,17 @@ class SkyMqttTokenAndroid implements IMqttToken {
 
 	@Override
 	public MqttWireMessage getResponse() {
-		return delegate.getResponse();
+		return (delegate != null) ? delegate.getResponse() : null;
 	}
 
 	@Override
 	public boolean getSessionPresent() {
-		return delegate.getSessionPresent();
+		return (delegate != null) && delegate.getSessionPresent();
 	}
 
 	@Override
 	public int[] getGrantedQos() {
-		return delegate.getGrantedQos();
+		return (delegate != null) ? delegate.getGrantedQos() : null;
 	}
 
 }
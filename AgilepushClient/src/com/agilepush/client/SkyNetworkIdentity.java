@@ -0,0 +1,103 @@
+package com.agilepush.client;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+
+/**
+ * Names the network the device is attached to, so that settings learned on
+ * one network can be remembered for it, and tells real network changes apart
+ * from repeated connectivity broadcasts
+ */
+final class SkyNetworkIdentity {
+
+	private SkyNetworkIdentity() {
+	}
+
+	/**
+	 * @param context
+	 *            context used to reach the system services
+	 * @return "wifi:&lt;SSID&gt;", "mobile:&lt;MCC+MNC&gt;" or the type name of
+	 *         the active network, <code>null</code> when offline
+	 */
+	static String current(Context context) {
+		ConnectivityManager cm = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm.getActiveNetworkInfo();
+		if (info == null || !info.isConnected()) {
+			return null;
+		}
+		String name = null;
+		switch (info.getType()) {
+		case ConnectivityManager.TYPE_WIFI:
+			WifiManager wm = (WifiManager) context
+					.getSystemService(Context.WIFI_SERVICE);
+			WifiInfo wifiInfo = (wm != null) ? wm.getConnectionInfo() : null;
+			name = "wifi:" + ((wifiInfo != null) ? wifiInfo.getSSID() : "");
+			break;
+		case ConnectivityManager.TYPE_MOBILE:
+			TelephonyManager tm = (TelephonyManager) context
+					.getSystemService(Context.TELEPHONY_SERVICE);
+			String operator = (tm != null) ? tm.getNetworkOperator() : null;
+			name = "mobile:" + ((operator != null) ? operator : "");
+			break;
+		default:
+			name = info.getTypeName();
+			break;
+		}
+		return name;
+	}
+
+	/**
+	 * A connection to the broker survives as long as the default network and
+	 * the local address it is bound to stay the same. The fingerprint
+	 * captures exactly that.
+	 *
+	 * @param context
+	 *            context used to reach the system services
+	 * @return the network identity together with the interface names and
+	 *         addresses in use, <code>null</code> when offline
+	 */
+	static String fingerprint(Context context) {
+		String identity = current(context);
+		if (identity == null) {
+			return null;
+		}
+		List<String> addresses = new ArrayList<String>();
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface
+					.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface ni = interfaces.nextElement();
+				Enumeration<InetAddress> inetAddresses = ni.getInetAddresses();
+				while (inetAddresses.hasMoreElements()) {
+					InetAddress address = inetAddresses.nextElement();
+					if (!address.isLoopbackAddress()
+							&& !address.isLinkLocalAddress()) {
+						addresses.add(ni.getName() + "/"
+								+ address.getHostAddress());
+					}
+				}
+			}
+		} catch (SocketException e) {
+			// fall back to the identity alone
+		}
+		Collections.sort(addresses);
+		StringBuilder fingerprint = new StringBuilder(identity);
+		for (String address : addresses) {
+			fingerprint.append(' ').append(address);
+		}
+		return fingerprint.toString();
+	}
+}
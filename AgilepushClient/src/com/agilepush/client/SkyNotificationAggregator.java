@@ -0,0 +1,319 @@
+package com.agilepush.client;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.skypush.demo.R;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat.Builder;
+
+/**
+ * Folds the notifications of a {@link SkyMqttCallbackHandler} into one
+ * summary notification per group.
+ * <p>
+ * Each group, for example a topic, gets its own notification id, which is
+ * updated in place. Posts to a group are collected for {@link #WINDOW}
+ * milliseconds, so a burst of messages costs one call to the
+ * {@link NotificationManager}, and the calls are further limited by a token
+ * bucket to {@link #RATE} per second. A group that has been quiet for
+ * {@link #RESET_IDLE} milliseconds starts counting from one again.
+ * </p>
+ * <p>
+ * The id of a group is a hash of the client and the group, so it is the
+ * same in every run and for no other client, and a summary left from the
+ * last run is updated in place. A group is forgotten once the user clears
+ * its notification, or once it has been quiet for {@link #RESET_IDLE}
+ * milliseconds, as its count starts from one again then anyway.
+ * </p>
+ * <p>
+ * A message post only keeps a reference to the topic and payload; the
+ * payload is decoded and the text formatted when the notification is
+ * built, at most {@link #RATE} times a second.
+ * </p>
+ */
+class SkyNotificationAggregator {
+
+	/** Time posts are collected before they are shown **/
+	static final long WINDOW = 250;
+	/** Notify calls per second, and the size of a burst **/
+	static final int RATE = 4;
+	/** Quiet time after which a group starts a new summary **/
+	static final long RESET_IDLE = 1000 * 60 * 5;
+
+	/** Group of the connection notifications, never a topic as it holds NUL **/
+	static final String CONNECTION_GROUP = "\u0000connection";
+
+	/** Extra of the delete intent, the id of the cleared notification **/
+	static final String EXTRA_NOTIFICATION_ID = "notificationId";
+
+	/**
+	 * The summary of one group
+	 */
+	static class Group {
+		final int id;
+		int count;
+		long lastPostAt;
+		int title;
+		// the text, or null to format it from the message
+		String text;
+		String topic;
+		byte[] payload;
+		boolean dirty;
+		// sent when the user clears the notification
+		PendingIntent deleteIntent;
+
+		Group(int id) {
+			this.id = id;
+		}
+	}
+
+	private final Context context;
+	private final String clientId;
+	private final PendingIntent contentIntent;
+	private final Intent clearedIntent;
+	// created on first use, see show and postDelayed
+	private NotificationManager manager;
+	// notifications are posted from the main thread
+	private Handler handler;
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	// notification id to group
+	private final Map<Integer, String> owners = new HashMap<Integer, String>();
+
+	// token bucket of notify calls
+	private double tokens = RATE;
+	private long refilledAt = SystemClock.elapsedRealtime();
+	private boolean flushScheduled;
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param context
+	 *            the context the notifications are built with
+	 * @param clientId
+	 *            the client named in message notifications
+	 * @param contentIntent
+	 *            started when the user clicks a notification
+	 * @param clearedIntent
+	 *            the service intent started, with
+	 *            {@link #EXTRA_NOTIFICATION_ID}, when the user clears a
+	 *            notification, to be passed on to {@link #cleared(int)}
+	 */
+	SkyNotificationAggregator(Context context, String clientId,
+			PendingIntent contentIntent, Intent clearedIntent) {
+		this.context = context;
+		this.clientId = clientId;
+		this.contentIntent = contentIntent;
+		this.clearedIntent = clearedIntent;
+	}
+
+	/**
+	 * Add a notification to the summary of its group
+	 *
+	 * @param group
+	 *            the group
+	 * @param title
+	 *            the resource of the notification title
+	 * @param text
+	 *            the text of the notification
+	 */
+	void post(String group, int title, String text) {
+		post(group, title, text, null, null);
+	}
+
+	/**
+	 * Add an arrived message to the summary of its group
+	 *
+	 * @param group
+	 *            the group
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param payload
+	 *            the payload, not copied
+	 */
+	void postMessage(String group, String topic, byte[] payload) {
+		post(group, R.string.notifyTitle, null, topic, payload);
+	}
+
+	private synchronized void post(String group, int title, String text,
+			String topic, byte[] payload) {
+		long now = SystemClock.elapsedRealtime();
+		Group g = groups.get(group);
+		if (g == null) {
+			evictIdle(now);
+			g = new Group(idOf(group));
+			groups.put(group, g);
+			owners.put(g.id, group);
+		}
+		if (now - g.lastPostAt > RESET_IDLE) {
+			g.count = 0;
+		}
+		if (g.dirty) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.NOTIFY_COALESCED);
+		}
+		g.count++;
+		g.lastPostAt = now;
+		g.title = title;
+		g.text = text;
+		g.topic = topic;
+		g.payload = payload;
+		g.dirty = true;
+		schedule(WINDOW);
+	}
+
+	/**
+	 * The user has cleared a notification, its group starts a new summary
+	 *
+	 * @param id
+	 *            the id of the notification
+	 */
+	synchronized void cleared(int id) {
+		String group = owners.get(id);
+		Group g = (group == null) ? null : groups.get(group);
+		// a post waiting to be shown keeps the group
+		if (g != null && !g.dirty) {
+			groups.remove(group);
+			owners.remove(id);
+		}
+	}
+
+	// Stable over runs, a collision with another group takes the next id.
+	// Must hold the lock
+	private int idOf(String group) {
+		int id = (clientId + '\u0000' + group).hashCode();
+		while (owners.containsKey(id)) {
+			id++;
+		}
+		return id;
+	}
+
+	// Forget the groups which would start counting from one again. Must hold
+	// the lock
+	private void evictIdle(long now) {
+		Iterator<Group> it = groups.values().iterator();
+		while (it.hasNext()) {
+			Group g = it.next();
+			if (!g.dirty && now - g.lastPostAt > RESET_IDLE) {
+				it.remove();
+				owners.remove(g.id);
+			}
+		}
+	}
+
+	// Must hold the lock
+	private void schedule(long delay) {
+		if (!flushScheduled) {
+			flushScheduled = true;
+			postDelayed(flush, delay);
+		}
+	}
+
+	/**
+	 * Run a task on the main thread after a delay. Called with the lock held.
+	 *
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay in milliseconds
+	 */
+	void postDelayed(Runnable task, long delay) {
+		if (handler == null) {
+			handler = new Handler(Looper.getMainLooper());
+		}
+		handler.postDelayed(task, delay);
+	}
+
+	/**
+	 * Show the summary of a group, one call to the
+	 * {@link NotificationManager}. Called with the lock held.
+	 *
+	 * @param g
+	 *            the group
+	 */
+	void show(Group g) {
+		if (manager == null) {
+			manager = (NotificationManager) context
+					.getSystemService(Context.NOTIFICATION_SERVICE);
+		}
+		manager.notify(g.id, build(g));
+	}
+
+	/**
+	 * Show the groups which changed, as far as the token bucket allows
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		long now = SystemClock.elapsedRealtime();
+		tokens = Math.min(RATE, tokens + (now - refilledAt) * RATE / 1000.0);
+		refilledAt = now;
+		boolean throttled = false;
+		for (Group g : groups.values()) {
+			if (!g.dirty) {
+				continue;
+			}
+			if (tokens < 1) {
+				throttled = true;
+				continue;
+			}
+			tokens--;
+			g.dirty = false;
+			show(g);
+			SkyMqttMetrics.increment(SkyMqttMetrics.NOTIFY_CALLS);
+		}
+		if (throttled) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.NOTIFY_THROTTLED);
+			// until the bucket holds the next token
+			schedule((long) Math.ceil((1 - tokens) * 1000 / RATE));
+		}
+	}
+
+	private Notification build(Group g) {
+		CharSequence contentTitle = context.getString(g.title);
+		String latest = g.text;
+		if (latest == null) {
+			latest = context.getString(R.string.notification, clientId,
+					decode(g.payload), g.topic);
+		}
+		String text = (g.count == 1) ? latest : context.getString(
+				R.string.notificationSummary, g.count, latest);
+
+		if (g.deleteIntent == null) {
+			Intent cleared = new Intent(clearedIntent);
+			cleared.putExtra(EXTRA_NOTIFICATION_ID, g.id);
+			g.deleteIntent = PendingIntent.getService(context, g.id, cleared,
+					PendingIntent.FLAG_UPDATE_CURRENT);
+		}
+
+		Builder notificationCompat = new Builder(context);
+		notificationCompat.setAutoCancel(true).setContentTitle(contentTitle)
+				.setContentIntent(contentIntent).setDeleteIntent(
+						g.deleteIntent).setContentText(text)
+				.setTicker(contentTitle + " " + latest).setWhen(
+						System.currentTimeMillis()).setNumber(g.count)
+				.setOnlyAlertOnce(true).setSmallIcon(R.drawable.ic_launcher);
+		return notificationCompat.build();
+	}
+
+	private static String decode(byte[] payload) {
+		try {
+			return new String(payload, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every platform has UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package com.agilepush.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Publishes waiting for a connection.
+ * <p>
+ * {@link SkyMqttAndroidClient#publish(String, MqttMessage, Object, org.eclipse.paho.client.mqttv3.IMqttActionListener)}
+ * queues its message here while the client is not connected, and while
+ * earlier messages are still queued, so the broker receives them in order.
+ * The queue is drained once the CONNACK has arrived. Each QoS has its own
+ * capacity and time to live; a full queue drops either its oldest message of
+ * that QoS or the new one, see {@link Policy}. Dropped and expired messages
+ * fail their token.
+ * </p>
+ * <p>
+ * The queue survives the death of the process in an append-only journal of
+ * added and removed messages. Journal writes are collected for
+ * {@link #FLUSH_DELAY} milliseconds and written and synced together, and the
+ * journal is rewritten once it holds more removed than queued messages.
+ * </p>
+ */
+class SkyOutbox {
+
+	private static final String TAG = "SkyOutbox";
+
+	// Preference keys, the QoS is appended to the capacity and ttl keys
+	static final String PREF_CAPACITY = "outboxCapacity";
+	static final String PREF_TTL = "outboxTtl";
+	static final String PREF_POLICY = "outboxPolicy";
+
+	/** Default capacities for QoS 0, 1 and 2 **/
+	static final int[] DEFAULT_CAPACITY = { 100, 1000, 1000 };
+	/** Default times to live for QoS 0, 1 and 2, in seconds, 0 for none **/
+	static final int[] DEFAULT_TTL = { 60 * 5, 60 * 60 * 24, 60 * 60 * 24 };
+	/** Time journal writes are collected before they are synced **/
+	static final long FLUSH_DELAY = 100;
+	/** Removed messages in the journal before it is rewritten **/
+	static final int COMPACT_THRESHOLD = 256;
+
+	// Journal record types
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	/**
+	 * What to do with a message for a QoS whose queue is full
+	 */
+	enum Policy {
+		/** Drop the oldest queued message of the QoS **/
+		DROP_OLDEST,
+		/** Refuse the new message **/
+		DROP_NEWEST
+	}
+
+	/**
+	 * Sends queued messages
+	 */
+	interface Sender {
+		/**
+		 * Send a message
+		 *
+		 * @param entry
+		 *            the oldest queued message
+		 * @return <code>true</code> if the message has been handed over and
+		 *         can be removed, <code>false</code> to stop draining and keep
+		 *         it
+		 */
+		boolean send(Entry entry);
+	}
+
+	/**
+	 * A queued message
+	 */
+	static class Entry {
+		final long seq;
+		final long expiresAt;
+		final String topic;
+		final MqttMessage message;
+		// null for messages restored from the journal
+		final SkyMqttDeliveryTokenAndroid token;
+
+		Entry(long seq, long expiresAt, String topic, MqttMessage message,
+				SkyMqttDeliveryTokenAndroid token) {
+			this.seq = seq;
+			this.expiresAt = expiresAt;
+			this.topic = topic;
+			this.message = message;
+			this.token = token;
+		}
+
+		boolean isExpired(long now) {
+			return expiresAt != 0 && expiresAt <= now;
+		}
+	}
+
+	private final File file;
+	private final int[] capacity;
+	private final long[] ttl;
+	private final Policy policy;
+
+	private final LinkedList<Entry> queue = new LinkedList<Entry>();
+	private final int[] counts = new int[3];
+	private long nextSeq;
+	private int removedInJournal;
+
+	// Journal records not written yet
+	private final List<Entry> pendingAdds = new ArrayList<Entry>();
+	private final List<Long> pendingRemoves = new ArrayList<Long>();
+	private boolean flushScheduled;
+	private boolean drainScheduled;
+
+	// Writes the journal and drains the queue
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * @param file
+	 *            the journal, read back if it exists
+	 * @param capacity
+	 *            the number of messages queued per QoS
+	 * @param ttl
+	 *            the time to live per QoS, in seconds, 0 for none
+	 * @param policy
+	 *            what to do when a queue is full
+	 */
+	SkyOutbox(File file, int[] capacity, int[] ttl, Policy policy) {
+		this.file = file;
+		this.capacity = capacity.clone();
+		this.ttl = new long[ttl.length];
+		for (int i = 0; i < ttl.length; i++) {
+			this.ttl[i] = ttl[i] * 1000L;
+		}
+		this.policy = policy;
+		load();
+	}
+
+	/**
+	 * Create the outbox configured in the preferences
+	 *
+	 * @param file
+	 *            the journal
+	 * @param prefs
+	 *            the service preferences
+	 * @return the outbox
+	 */
+	static SkyOutbox fromPreferences(File file, SharedPreferences prefs) {
+		int[] capacity = new int[3];
+		int[] ttl = new int[3];
+		for (int qos = 0; qos < 3; qos++) {
+			capacity[qos] = prefs.getInt(PREF_CAPACITY + qos,
+					DEFAULT_CAPACITY[qos]);
+			ttl[qos] = prefs.getInt(PREF_TTL + qos, DEFAULT_TTL[qos]);
+		}
+		Policy policy = "dropNewest".equals(prefs.getString(PREF_POLICY, null)) ? Policy.DROP_NEWEST
+				: Policy.DROP_OLDEST;
+		return new SkyOutbox(file, capacity, ttl, policy);
+	}
+
+	/**
+	 * @return <code>true</code> if no message is queued
+	 */
+	synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return the number of queued messages
+	 */
+	synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Queue a message
+	 *
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @param token
+	 *            completed once the message has been delivered, failed if it
+	 *            is dropped or expires
+	 */
+	void add(String topic, MqttMessage message,
+			SkyMqttDeliveryTokenAndroid token) {
+		List<Entry> dropped = new ArrayList<Entry>();
+		boolean refused = false;
+		long now = System.currentTimeMillis();
+		int qos = message.getQos();
+		synchronized (this) {
+			purgeExpired(now, dropped);
+			if (counts[qos] >= capacity[qos]) {
+				Entry oldest = null;
+				if (policy == Policy.DROP_OLDEST) {
+					for (Entry e : queue) {
+						if (e.message.getQos() == qos) {
+							oldest = e;
+							break;
+						}
+					}
+				}
+				if (oldest == null) {
+					refused = true;
+				} else {
+					remove(oldest);
+					dropped.add(oldest);
+				}
+			}
+			if (!refused) {
+				Entry entry = new Entry(nextSeq++, (ttl[qos] == 0) ? 0 : now
+						+ ttl[qos], topic, message, token);
+				queue.add(entry);
+				counts[qos]++;
+				pendingAdds.add(entry);
+				scheduleFlush();
+				SkyMqttMetrics.set(SkyMqttMetrics.OUTBOX_DEPTH, queue.size());
+			}
+		}
+		if (refused) {
+			SkyMqttMetrics.increment(SkyMqttMetrics.OUTBOX_DROPPED);
+			token.notifyFailure(new MqttException(
+					MqttException.REASON_CODE_MAX_INFLIGHT));
+		}
+		fail(dropped, MqttException.REASON_CODE_MAX_INFLIGHT);
+	}
+
+	/**
+	 * Hand the queued messages to a sender, in order, on the thread of the
+	 * outbox
+	 *
+	 * @param sender
+	 *            the sender
+	 */
+	void drain(final Sender sender) {
+		synchronized (this) {
+			if (drainScheduled || queue.isEmpty()) {
+				return;
+			}
+			drainScheduled = true;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SkyOutbox.this) {
+					drainScheduled = false;
+				}
+				drainNow(sender);
+			}
+		});
+	}
+
+	private void drainNow(Sender sender) {
+		List<Entry> expired = new ArrayList<Entry>();
+		int drained = 0;
+		while (true) {
+			Entry entry;
+			synchronized (this) {
+				purgeExpired(System.currentTimeMillis(), expired);
+				entry = queue.peek();
+			}
+			if (entry == null || !sender.send(entry)) {
+				break;
+			}
+			synchronized (this) {
+				remove(entry);
+			}
+			drained++;
+		}
+		if (drained > 0) {
+			Log.d(TAG, "Drained " + drained + " messages");
+			SkyMqttMetrics.add(SkyMqttMetrics.OUTBOX_DRAINED, drained);
+		}
+		fail(expired, MqttException.REASON_CODE_CLIENT_TIMEOUT);
+	}
+
+	/**
+	 * Write what is pending and stop the thread of the outbox
+	 */
+	void close() {
+		executor.shutdown();
+		flush();
+	}
+
+	// Must hold the lock
+	private void remove(Entry entry) {
+		if (queue.remove(entry)) {
+			counts[entry.message.getQos()]--;
+			if (!pendingAdds.remove(entry)) {
+				pendingRemoves.add(entry.seq);
+			}
+			scheduleFlush();
+			SkyMqttMetrics.set(SkyMqttMetrics.OUTBOX_DEPTH, queue.size());
+		}
+	}
+
+	// Must hold the lock
+	private void purgeExpired(long now, List<Entry> expired) {
+		Iterator<Entry> it = queue.iterator();
+		List<Entry> found = new ArrayList<Entry>();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.isExpired(now)) {
+				found.add(e);
+			}
+		}
+		for (Entry e : found) {
+			remove(e);
+			SkyMqttMetrics.increment(SkyMqttMetrics.OUTBOX_EXPIRED);
+		}
+		expired.addAll(found);
+	}
+
+	private static void fail(List<Entry> entries, int reason) {
+		for (Entry e : entries) {
+			if (reason == MqttException.REASON_CODE_MAX_INFLIGHT) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.OUTBOX_DROPPED);
+			}
+			if (e.token != null) {
+				e.token.notifyFailure(new MqttException(reason));
+			}
+		}
+	}
+
+	// Must hold the lock
+	private void scheduleFlush() {
+		if (flushScheduled || executor.isShutdown()) {
+			return;
+		}
+		flushScheduled = true;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the pending journal records and sync them to the disk
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		if (pendingAdds.isEmpty() && pendingRemoves.isEmpty()) {
+			return;
+		}
+		try {
+			if (removedInJournal + pendingRemoves.size() > COMPACT_THRESHOLD
+					&& removedInJournal + pendingRemoves.size() > queue.size()) {
+				compact();
+			} else {
+				FileOutputStream fos = new FileOutputStream(file, true);
+				try {
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(fos));
+					for (Entry e : pendingAdds) {
+						writeAdd(out, e);
+					}
+					for (Long seq : pendingRemoves) {
+						out.writeByte(RECORD_REMOVE);
+						out.writeLong(seq);
+					}
+					out.flush();
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+				removedInJournal += pendingRemoves.size();
+			}
+			SkyMqttMetrics.increment(SkyMqttMetrics.OUTBOX_FLUSHES);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write the outbox journal", e);
+		}
+		pendingAdds.clear();
+		pendingRemoves.clear();
+	}
+
+	// Must hold the lock. Rewrites the journal with the queued messages only.
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos));
+			for (Entry e : queue) {
+				writeAdd(out, e);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+		removedInJournal = 0;
+	}
+
+	private static void writeAdd(DataOutputStream out, Entry e)
+			throws IOException {
+		out.writeByte(RECORD_ADD);
+		out.writeLong(e.seq);
+		out.writeLong(e.expiresAt);
+		out.writeByte(e.message.getQos());
+		out.writeBoolean(e.message.isRetained());
+		out.writeUTF(e.topic);
+		byte[] payload = e.message.getPayload();
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	// Replays the journal, a torn last record is ignored
+	private synchronized void load() {
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					long seq = in.readLong();
+					if (type == RECORD_REMOVE) {
+						for (Iterator<Entry> it = queue.iterator(); it
+								.hasNext();) {
+							if (it.next().seq == seq) {
+								it.remove();
+								break;
+							}
+						}
+						continue;
+					}
+					long expiresAt = in.readLong();
+					int qos = in.readByte();
+					boolean retained = in.readBoolean();
+					String topic = in.readUTF();
+					byte[] payload = new byte[in.readInt()];
+					in.readFully(payload);
+					MqttMessage message = new MqttMessage(payload);
+					message.setQos(qos);
+					message.setRetained(retained);
+					queue.add(new Entry(seq, expiresAt, topic, message, null));
+					nextSeq = Math.max(nextSeq, seq + 1);
+				}
+			} catch (EOFException e) {
+				// end of the journal
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read the outbox journal", e);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Corrupt outbox journal", e);
+		}
+		for (Entry e : queue) {
+			counts[e.message.getQos()]++;
+		}
+		Log.d(TAG, "Restored " + queue.size() + " messages");
+		SkyMqttMetrics.set(SkyMqttMetrics.OUTBOX_DEPTH, queue.size());
+		try {
+			compact();
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot rewrite the outbox journal", e);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.agilepush.client;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+
+/**
+ * Helpers for the preferences of the push service
+ */
+final class SkyPreferences {
+
+	private SkyPreferences() {
+	}
+
+	/**
+	 * Save the changes of an editor without blocking the caller where the
+	 * platform supports it
+	 *
+	 * @param editor
+	 *            the editor holding the changes
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	static void apply(Editor editor) {
+		if (Build.VERSION.SDK_INT >= 9 /** Build.VERSION_CODES.GINGERBREAD **/
+		) {
+			editor.apply();
+		} else {
+			editor.commit();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.agilepush.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * The messages of one
+ * {@link SkyMqttAndroidClient#publishAll(String[], MqttMessage[], SkyMqttAndroidClient.Backpressure, Object, IMqttActionListener)}
+ * call, and the token which completes once all of them have.
+ * <p>
+ * The messages are handed to Paho in order, {@link #next()} being the first
+ * one not sent yet; the sender holds the lock of the batch while it sends.
+ * The token fails with the first failure if any message failed, see
+ * {@link #getFailedCount()}.
+ * </p>
+ */
+class SkyPublishBatch extends SkyMqttTokenAndroid {
+
+	final String[] topics;
+	final MqttMessage[] messages;
+	private int next;
+
+	private final AtomicInteger remaining;
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+
+	/**
+	 * Reports the completion of a message to the batch, for messages which
+	 * have a token of their own, such as the ones queued in the outbox
+	 */
+	final IMqttActionListener messageListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			done(null);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			done(exception);
+		}
+	};
+
+	SkyPublishBatch(SkyMqttAndroidClient client, Object userContext,
+			IMqttActionListener listener, String[] topics,
+			MqttMessage[] messages) {
+		super(client, userContext, listener, topics);
+		this.topics = topics;
+		this.messages = messages;
+		this.remaining = new AtomicInteger(messages.length);
+	}
+
+	/**
+	 * @return <code>true</code> if messages are left to send. Must hold the
+	 *         lock of the batch.
+	 */
+	boolean hasNext() {
+		return next < messages.length;
+	}
+
+	/**
+	 * @return the index of the first message not sent yet. Must hold the lock
+	 *         of the batch.
+	 */
+	int next() {
+		return next;
+	}
+
+	/**
+	 * The message at {@link #next()} has been handed over. Must hold the lock
+	 * of the batch.
+	 */
+	void advance() {
+		next++;
+	}
+
+	/**
+	 * Fail the messages not sent yet. Must hold the lock of the batch.
+	 *
+	 * @param exception
+	 *            the reason
+	 */
+	void failRemaining(MqttException exception) {
+		while (hasNext()) {
+			advance();
+			done(exception);
+		}
+	}
+
+	/**
+	 * A message has completed, completing the batch with the last one
+	 *
+	 * @param exception
+	 *            the failure of the message, <code>null</code> if it was
+	 *            delivered
+	 */
+	void done(Throwable exception) {
+		if (exception != null) {
+			failed.incrementAndGet();
+			firstFailure.compareAndSet(null, exception);
+		}
+		if (remaining.decrementAndGet() == 0) {
+			Throwable failure = firstFailure.get();
+			if (failure == null) {
+				notifyComplete();
+			} else {
+				notifyFailure(failure);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages in the batch
+	 */
+	int size() {
+		return messages.length;
+	}
+
+	/**
+	 * @return the number of messages which have failed so far
+	 */
+	int getFailedCount() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,137 @@
+package com.agilepush.client;
+
+import java.util.Random;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Decides when the next reconnect attempt is made.
+ * <p>
+ * Delays follow the "decorrelated jitter" backoff: every delay is drawn at
+ * random between {@link #BASE_DELAY} and three times the previous delay, and
+ * is capped at {@link #MAX_DELAY}. Devices that lost the broker at the same
+ * moment therefore spread out instead of reconnecting in waves. The first
+ * retry after an established connection was lost is made almost at once.
+ * </p>
+ * <p>
+ * Attempts are counted per network epoch. An epoch starts whenever the device
+ * moves to another network. Once {@link #MAX_ATTEMPTS_PER_EPOCH} attempts
+ * have failed, no more are scheduled until the network changes. The state
+ * is written to the preferences without blocking, so the backoff survives a
+ * restart of the process.
+ * </p>
+ */
+class SkyReconnectScheduler {
+
+	private static final String TAG = "SkyReconnectScheduler";
+
+	// Preference keys
+	private static final String PREF_ATTEMPTS = "retryAttempts";
+	private static final String PREF_EPOCH = "retryEpoch";
+
+	/** Smallest delay of the backoff, in milliseconds **/
+	static final long BASE_DELAY = 1000 * 10;
+	/** Largest delay of the backoff, in milliseconds **/
+	static final long MAX_DELAY = 1000 * 60 * 30;
+	/** Delay of the first retry after a connection was lost **/
+	static final long FAST_RETRY_DELAY = 1000;
+	/** Attempts made on one network before giving up on it **/
+	static final int MAX_ATTEMPTS_PER_EPOCH = 30;
+
+	private final SharedPreferences prefs;
+	private final Random random = new Random();
+
+	private long previousDelay;
+	private int attempts;
+	private String epoch;
+
+	/**
+	 * @param prefs
+	 *            the preferences the backoff state is kept in
+	 */
+	SkyReconnectScheduler(SharedPreferences prefs) {
+		this.prefs = prefs;
+		previousDelay = prefs.getLong(SkyMqttService.PREF_RETRY, BASE_DELAY);
+		attempts = prefs.getInt(PREF_ATTEMPTS, 0);
+		epoch = prefs.getString(PREF_EPOCH, null);
+	}
+
+	/**
+	 * Start a new epoch if the device is on another network than before
+	 *
+	 * @param networkIdentity
+	 *            the current network, see {@link SkyNetworkIdentity}
+	 * @return <code>true</code> if a new epoch was started
+	 */
+	boolean onNetworkChanged(String networkIdentity) {
+		if (networkIdentity == null
+				|| (networkIdentity.equals(epoch) && attempts == 0)) {
+			return false;
+		}
+		if (networkIdentity.equals(epoch)) {
+			// same network again, only the attempt budget is refreshed
+			attempts = 0;
+		} else {
+			Log.d(TAG, "New network epoch " + networkIdentity);
+			epoch = networkIdentity;
+			attempts = 0;
+			previousDelay = BASE_DELAY;
+		}
+		save();
+		return true;
+	}
+
+	/**
+	 * Calculate the delay before the next attempt and count the attempt
+	 *
+	 * @param connectionLost
+	 *            <code>true</code> if an established connection was lost,
+	 *            <code>false</code> if a connect attempt failed
+	 * @return the delay in milliseconds, or -1 if the attempts for this
+	 *         network epoch are used up
+	 */
+	long nextDelay(boolean connectionLost) {
+		if (attempts >= MAX_ATTEMPTS_PER_EPOCH) {
+			Log.d(TAG, "Giving up after " + attempts
+					+ " attempts until the network changes");
+			return -1;
+		}
+		long delay;
+		if (connectionLost && attempts == 0) {
+			delay = FAST_RETRY_DELAY
+					+ (long) (random.nextDouble() * FAST_RETRY_DELAY);
+			previousDelay = BASE_DELAY;
+		} else {
+			long upper = Math.min(MAX_DELAY, previousDelay * 3);
+			delay = BASE_DELAY
+					+ (long) (random.nextDouble() * (upper - BASE_DELAY));
+			previousDelay = delay;
+		}
+		attempts++;
+		SkyMqttMetrics.increment(SkyMqttMetrics.RECONNECT_ATTEMPTS);
+		save();
+		return delay;
+	}
+
+	/**
+	 * A connection has been established, record how many attempts it took
+	 * and reset the backoff
+	 */
+	void onConnected() {
+		SkyMqttMetrics.set(SkyMqttMetrics.RECONNECT_ATTEMPTS_TO_SUCCESS,
+				attempts);
+		if (attempts == 0 && previousDelay == BASE_DELAY) {
+			return;
+		}
+		attempts = 0;
+		previousDelay = BASE_DELAY;
+		save();
+	}
+
+	private void save() {
+		SkyPreferences.apply(prefs.edit()
+				.putLong(SkyMqttService.PREF_RETRY, previousDelay)
+				.putInt(PREF_ATTEMPTS, attempts).putString(PREF_EPOCH, epoch));
+	}
+}
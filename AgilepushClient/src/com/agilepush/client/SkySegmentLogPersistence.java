@@ -0,0 +1,614 @@
+package com.agilepush.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Persistence of the in-flight messages of a client in an append-only log.
+ * <p>
+ * The default file persistence writes one small file per QoS 1 and 2
+ * message and lists its directory on recovery, which is slow on flash
+ * storage. This persistence appends every put and remove as a record to
+ * preallocated, memory-mapped segment files of {@link #SEGMENT_SIZE} bytes
+ * and keeps an index of where the live record of each key is. Recovery reads
+ * the segments once in order; a torn or corrupt record ends its segment.
+ * </p>
+ * <p>
+ * Records reach the page cache at once, so they survive the death of the
+ * process. They are forced to the disk in batches, at most
+ * {@link #SYNC_DELAY} milliseconds after they were written. Once the oldest
+ * segment is mostly dead its live records are copied to the newest segment
+ * in the background and the segment is deleted. Only the oldest segment is
+ * compacted, so the removes in newer segments still cover every older put.
+ * </p>
+ */
+class SkySegmentLogPersistence implements MqttClientPersistence {
+
+	private static final String TAG = "SkySegmentLogPersistence";
+
+	/** Size segments are preallocated with **/
+	static final int SEGMENT_SIZE = 1024 * 1024;
+	/** Time records are collected before they are forced to the disk **/
+	static final long SYNC_DELAY = 100;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String LOCK_FILE = ".lck";
+
+	// Record layout: length and crc of the body, then the body
+	// type, key length, key, for puts header length, header, payload length,
+	// payload
+	private static final int RECORD_PREFIX = 8;
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	/**
+	 * One mapped segment file
+	 */
+	private static class Segment {
+		final long number;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		// end of the records written so far
+		int used;
+		// bytes of the records still in the index
+		int live;
+
+		Segment(long number, File file, int size) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, raf.length());
+		}
+
+		int remaining() {
+			return buffer.capacity() - used;
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot close " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Where the live record of a key is
+	 */
+	private static class Location {
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		Location(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A persisted message read back from a segment
+	 */
+	static class Data implements MqttPersistable {
+		private final byte[] header;
+		private final byte[] payload;
+
+		Data(byte[] header, byte[] payload) {
+			this.header = header;
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return (payload == null) ? 0 : payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+
+	private final File baseDir;
+	private File dir;
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+
+	// oldest first, the last one is written to
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<String, Location> index = new HashMap<String, Location>();
+
+	private final Set<Segment> dirty = new HashSet<Segment>();
+	private boolean syncScheduled;
+	private boolean compactScheduled;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param baseDir
+	 *            the directory the segments of every client are kept in
+	 */
+	SkySegmentLogPersistence(File baseDir) {
+		this.baseDir = baseDir;
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI)
+			throws MqttPersistenceException {
+		if (dir != null) {
+			throw new MqttPersistenceException(
+					MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+		}
+		// the same naming as the default file persistence, in a directory
+		// of its own
+		StringBuffer name = new StringBuffer("segments-");
+		String key = clientId + "-" + serverURI;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '-') {
+				name.append(c);
+			}
+		}
+		File clientDir = new File(baseDir, name.toString());
+		if (!clientDir.isDirectory() && !clientDir.mkdirs()) {
+			throw new MqttPersistenceException(new IOException(
+					"Cannot create " + clientDir));
+		}
+		try {
+			lockFile = new RandomAccessFile(new File(clientDir, LOCK_FILE),
+					"rw");
+			lock = lockFile.getChannel().tryLock();
+			if (lock == null) {
+				lockFile.close();
+				throw new MqttPersistenceException(
+						MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+			dir = clientDir;
+			executor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			recover();
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	@Override
+	public void close() throws MqttPersistenceException {
+		List<Segment> toSync;
+		synchronized (this) {
+			checkOpen();
+			executor.shutdown();
+			toSync = new ArrayList<Segment>(segments);
+		}
+		for (Segment segment : toSync) {
+			segment.buffer.force();
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+			index.clear();
+			dirty.clear();
+			try {
+				lock.release();
+				lockFile.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot release the lock", e);
+			}
+			dir = null;
+		}
+	}
+
+	@Override
+	public synchronized void put(String key, MqttPersistable persistable)
+			throws MqttPersistenceException {
+		checkOpen();
+		byte[] header = copy(persistable.getHeaderBytes(),
+				persistable.getHeaderOffset(), persistable.getHeaderLength());
+		byte[] payload = copy(persistable.getPayloadBytes(),
+				persistable.getPayloadOffset(), persistable.getPayloadLength());
+		byte[] keyBytes = utf8(key);
+		ByteBuffer body = ByteBuffer.allocate(1 + 2 + keyBytes.length + 4
+				+ header.length + 4 + payload.length);
+		body.put(RECORD_PUT).putShort((short) keyBytes.length).put(keyBytes);
+		body.putInt(header.length).put(header);
+		body.putInt(payload.length).put(payload);
+		Location location = append(body.array());
+		forget(index.put(key, location));
+		location.segment.live += location.length;
+		maybeCompact();
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key)
+			throws MqttPersistenceException {
+		checkOpen();
+		Location location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+		ByteBuffer record = location.segment.buffer.duplicate();
+		record.position(location.offset + RECORD_PREFIX + 1);
+		// skip the key
+		int keyLength = record.getShort();
+		record.position(record.position() + keyLength);
+		byte[] header = new byte[record.getInt()];
+		record.get(header);
+		byte[] payload = new byte[record.getInt()];
+		record.get(payload);
+		return new Data(header, payload);
+	}
+
+	@Override
+	public synchronized void remove(String key)
+			throws MqttPersistenceException {
+		checkOpen();
+		Location location = index.remove(key);
+		if (location == null) {
+			return;
+		}
+		byte[] keyBytes = utf8(key);
+		ByteBuffer body = ByteBuffer.allocate(1 + 2 + keyBytes.length);
+		body.put(RECORD_REMOVE).putShort((short) keyBytes.length).put(keyBytes);
+		append(body.array());
+		forget(location);
+		maybeCompact();
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public synchronized Enumeration keys() throws MqttPersistenceException {
+		checkOpen();
+		return Collections.enumeration(new ArrayList<String>(index.keySet()));
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkOpen();
+		for (Segment segment : segments) {
+			segment.close();
+			segment.file.delete();
+		}
+		segments.clear();
+		index.clear();
+		dirty.clear();
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key)
+			throws MqttPersistenceException {
+		checkOpen();
+		return index.containsKey(key);
+	}
+
+	private void checkOpen() throws MqttPersistenceException {
+		if (dir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	private static byte[] copy(byte[] bytes, int offset, int length) {
+		if (bytes == null) {
+			return new byte[0];
+		}
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, offset, copy, 0, length);
+		return copy;
+	}
+
+	private static byte[] utf8(String key) throws MqttPersistenceException {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	// A record of a key which is no longer live
+	private void forget(Location location) {
+		if (location != null) {
+			location.segment.live -= location.length;
+		}
+	}
+
+	/**
+	 * Append a record to the newest segment, starting a new one if it is full
+	 *
+	 * @param body
+	 *            the body of the record
+	 * @return where the record was written
+	 */
+	private Location append(byte[] body) throws MqttPersistenceException {
+		int length = RECORD_PREFIX + body.length;
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		// a record is never split, the zero length after the last record
+		// ends a segment
+		if (segment == null || segment.remaining() < length + 4) {
+			long number = (segment == null) ? 0 : segment.number + 1;
+			try {
+				segment = new Segment(number, segmentFile(number), Math.max(
+						SEGMENT_SIZE, length + 4));
+			} catch (IOException e) {
+				throw new MqttPersistenceException(e);
+			}
+			segments.add(segment);
+			SkyMqttMetrics.set(SkyMqttMetrics.PERSIST_SEGMENTS,
+					segments.size());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer buffer = segment.buffer;
+		int offset = segment.used;
+		buffer.position(offset + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(body);
+		// the length goes last, so a record is only seen once it is whole
+		buffer.putInt(offset, body.length);
+		segment.used += length;
+		scheduleSync(segment);
+		return new Location(segment, offset, length);
+	}
+
+	private File segmentFile(long number) {
+		String digits = Long.toString(number);
+		char[] zeros = new char[Math.max(0, 10 - digits.length())];
+		Arrays.fill(zeros, '0');
+		return new File(dir, SEGMENT_PREFIX + new String(zeros) + digits
+				+ SEGMENT_SUFFIX);
+	}
+
+	private void scheduleSync(Segment segment) {
+		dirty.add(segment);
+		if (syncScheduled || executor.isShutdown()) {
+			return;
+		}
+		syncScheduled = true;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sync();
+			}
+		}, SYNC_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Force the segments written since the last sync, one batch at a time
+	 */
+	private void sync() {
+		List<Segment> toSync;
+		synchronized (this) {
+			syncScheduled = false;
+			toSync = new ArrayList<Segment>(dirty);
+			dirty.clear();
+		}
+		for (Segment segment : toSync) {
+			// a segment deleted meanwhile stays mapped until it is collected
+			segment.buffer.force();
+		}
+		SkyMqttMetrics.increment(SkyMqttMetrics.PERSIST_SYNCS);
+	}
+
+	private void maybeCompact() {
+		if (compactScheduled || executor.isShutdown() || segments.size() < 2) {
+			return;
+		}
+		Segment oldest = segments.getFirst();
+		if (oldest.live * 2 > oldest.used) {
+			return;
+		}
+		compactScheduled = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	/**
+	 * Move the live records of the oldest segments to the newest one and
+	 * delete them
+	 */
+	private synchronized void compact() {
+		compactScheduled = false;
+		try {
+			while (dir != null && segments.size() > 1) {
+				Segment oldest = segments.getFirst();
+				if (oldest.live * 2 > oldest.used) {
+					break;
+				}
+				List<String> keys = new ArrayList<String>();
+				for (Map.Entry<String, Location> e : index.entrySet()) {
+					if (e.getValue().segment == oldest) {
+						keys.add(e.getKey());
+					}
+				}
+				for (String key : keys) {
+					Location from = index.get(key);
+					byte[] body = new byte[from.length - RECORD_PREFIX];
+					ByteBuffer record = oldest.buffer.duplicate();
+					record.position(from.offset + RECORD_PREFIX);
+					record.get(body);
+					Location to = append(body);
+					index.put(key, to);
+					to.segment.live += to.length;
+				}
+				// the copies must be on the disk before the originals go
+				Segment newest = segments.getLast();
+				newest.buffer.force();
+				dirty.remove(newest);
+				segments.removeFirst();
+				oldest.close();
+				if (!oldest.file.delete()) {
+					Log.e(TAG, "Cannot delete " + oldest.file);
+				}
+				Log.d(TAG, "Compacted " + oldest.file.getName() + ", moved "
+						+ keys.size() + " records");
+				SkyMqttMetrics.increment(SkyMqttMetrics.PERSIST_COMPACTIONS);
+				SkyMqttMetrics.set(SkyMqttMetrics.PERSIST_SEGMENTS,
+						segments.size());
+			}
+		} catch (MqttPersistenceException e) {
+			Log.e(TAG, "Compaction failed", e);
+		}
+	}
+
+	/**
+	 * Read the segments back, oldest first, and rebuild the index
+	 */
+	private void recover() throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		File[] files = dir.listFiles();
+		List<File> found = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX)) {
+					found.add(file);
+				}
+			}
+		}
+		// zero padded numbers sort by name
+		Collections.sort(found);
+		for (File file : found) {
+			String name = file.getName();
+			long number;
+			try {
+				number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(number, file, 0);
+			segments.add(segment);
+			replay(segment);
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.PERSIST_SEGMENTS, segments.size());
+		SkyMqttMetrics.set(SkyMqttMetrics.PERSIST_RECOVERY_TIME,
+				SystemClock.elapsedRealtime() - start);
+		Log.d(TAG, "Recovered " + index.size() + " records from "
+				+ segments.size() + " segments");
+	}
+
+	private void replay(Segment segment) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int offset = 0;
+		boolean torn = false;
+		CRC32 crc = new CRC32();
+		while (buffer.capacity() - offset >= RECORD_PREFIX) {
+			int length = buffer.getInt(offset);
+			if (length == 0) {
+				break;
+			}
+			if (length < 0
+					|| length > buffer.capacity() - offset - RECORD_PREFIX) {
+				torn = true;
+				break;
+			}
+			byte[] body = new byte[length];
+			buffer.position(offset + RECORD_PREFIX);
+			buffer.get(body);
+			crc.reset();
+			crc.update(body);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				Log.w(TAG, "Corrupt record in " + segment.file.getName()
+						+ " at " + offset);
+				torn = true;
+				break;
+			}
+			ByteBuffer record = ByteBuffer.wrap(body);
+			byte type = record.get();
+			byte[] keyBytes = new byte[record.getShort()];
+			record.get(keyBytes);
+			String key;
+			try {
+				key = new String(keyBytes, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				break;
+			}
+			Location location = new Location(segment, offset, RECORD_PREFIX
+					+ length);
+			if (type == RECORD_PUT) {
+				forget(index.put(key, location));
+				segment.live += location.length;
+			} else {
+				forget(index.remove(key));
+			}
+			offset += location.length;
+		}
+		segment.used = offset;
+		if (torn) {
+			// clear what follows, so no stale record can be read after the
+			// next append
+			buffer.position(offset);
+			while (buffer.hasRemaining()) {
+				buffer.put((byte) 0);
+			}
+			segment.buffer.force();
+		}
+	}
+}
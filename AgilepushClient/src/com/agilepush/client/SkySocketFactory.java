@@ -0,0 +1,570 @@
+package com.agilepush.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Socket factory which races the connect to a broker across all of its
+ * addresses and across the other brokers.
+ * <p>
+ * Paho connects to one address of one server URI at a time and waits the
+ * whole connect timeout before it moves on. The sockets of this factory
+ * instead start a TCP connect to every candidate, {@link #CONNECT_STAGGER}
+ * milliseconds apart or as soon as the previous attempt has failed. The
+ * first connect that succeeds is used for the MQTT handshake and the others
+ * are closed. Addresses of the requested host come first, alternating
+ * between IPv6 and IPv4, followed by the other brokers in their ranked
+ * order. The brokers must therefore be interchangeable, as they already are
+ * for failover.
+ * </p>
+ * <p>
+ * Every socket gets the TCP options of a {@link SkySocketOptions} profile and
+ * counts the bytes it sends and receives.
+ * </p>
+ */
+class SkySocketFactory extends SocketFactory {
+
+	private static final String TAG = "SkySocketFactory";
+
+	/** Delay between the starts of two connect attempts, in milliseconds **/
+	static final long CONNECT_STAGGER = 250;
+
+	// Runs the connect attempts, threads end when they have been idle for a
+	// minute
+	private static final ExecutorService attempts = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + ".connect");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final SocketFactory delegate;
+	private volatile SkySocketOptions options;
+	private volatile List<InetSocketAddress> alternates = Collections
+			.emptyList();
+	private volatile String connectedServer;
+
+	/**
+	 * @param delegate
+	 *            creates the sockets of the individual attempts
+	 * @param options
+	 *            the TCP options of the sockets
+	 */
+	SkySocketFactory(SocketFactory delegate, SkySocketOptions options) {
+		this.delegate = delegate;
+		this.options = options;
+	}
+
+	/**
+	 * Set the TCP options of the sockets connected from now on
+	 *
+	 * @param options
+	 *            the options
+	 */
+	void setOptions(SkySocketOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Set the brokers that may be raced against the requested one
+	 *
+	 * @param serverURIs
+	 *            the server URIs, best first
+	 */
+	void setServerURIs(String[] serverURIs) {
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		for (String serverURI : serverURIs) {
+			try {
+				URI uri = new URI(serverURI);
+				if (uri.getHost() != null && uri.getPort() > 0) {
+					list.add(InetSocketAddress.createUnresolved(uri.getHost(),
+							uri.getPort()));
+				}
+			} catch (URISyntaxException e) {
+				Log.d(TAG, "Not raced: " + serverURI);
+			}
+		}
+		alternates = list;
+	}
+
+	/**
+	 * @return host:port of the broker the last connect was made to, or
+	 *         <code>null</code> if it failed
+	 */
+	String getConnectedServer() {
+		return connectedServer;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return new RacingSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException,
+			UnknownHostException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost,
+			int localPort) throws IOException, UnknownHostException {
+		return delegate.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException {
+		return delegate.createSocket(address, port, localAddress, localPort);
+	}
+
+	/**
+	 * The candidates for a connect: every address of the requested host, IPv6
+	 * and IPv4 taking turns, then the alternate brokers still unresolved
+	 */
+	private List<InetSocketAddress> candidates(InetSocketAddress target)
+			throws IOException {
+		List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+		String host = target.getHostName();
+		UnknownHostException unknown = null;
+		try {
+			List<InetAddress> v6 = new ArrayList<InetAddress>();
+			List<InetAddress> v4 = new ArrayList<InetAddress>();
+			InetAddress[] addresses = InetAddress.getAllByName(host);
+			for (InetAddress address : addresses) {
+				(address instanceof Inet6Address ? v6 : v4).add(address);
+			}
+			boolean v6First = addresses[0] instanceof Inet6Address;
+			List<InetAddress> first = v6First ? v6 : v4;
+			List<InetAddress> second = v6First ? v4 : v6;
+			for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+				if (i < first.size()) {
+					candidates.add(named(host, first.get(i), target.getPort()));
+				}
+				if (i < second.size()) {
+					candidates.add(named(host, second.get(i), target.getPort()));
+				}
+			}
+		} catch (UnknownHostException e) {
+			unknown = e;
+		}
+		for (InetSocketAddress alternate : alternates) {
+			if (!(alternate.getHostName().equals(host) && alternate.getPort() == target
+					.getPort())) {
+				candidates.add(alternate);
+			}
+		}
+		if (candidates.isEmpty() && unknown != null) {
+			throw unknown;
+		}
+		return candidates;
+	}
+
+	// Keeps the host name with the address, so it is never looked up in
+	// reverse
+	private static InetSocketAddress named(String host, InetAddress address,
+			int port) throws UnknownHostException {
+		return new InetSocketAddress(InetAddress.getByAddress(host,
+				address.getAddress()), port);
+	}
+
+	/**
+	 * One connect raced across several candidates
+	 */
+	private class Race {
+		private final List<Socket> sockets = new ArrayList<Socket>();
+		private final int total;
+		private int failures;
+		private boolean cancelled;
+		private Socket winner;
+		private InetSocketAddress winnerAddress;
+		private IOException failure;
+
+		Race(int total) {
+			this.total = total;
+		}
+
+		// Runs on a connect thread
+		void attempt(InetSocketAddress address, int index, int timeout,
+				SkySocketOptions options) {
+			Socket socket;
+			synchronized (this) {
+				long start = SystemClock.elapsedRealtime() + index
+						* CONNECT_STAGGER;
+				long wait;
+				// start early once every attempt before this one has failed
+				while (winner == null && !cancelled && failures < index
+						&& (wait = start - SystemClock.elapsedRealtime()) > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						cancelled = true;
+					}
+				}
+				if (winner != null || cancelled) {
+					return;
+				}
+			}
+			try {
+				socket = delegate.createSocket();
+			} catch (IOException e) {
+				failed(e);
+				return;
+			}
+			synchronized (this) {
+				if (winner != null || cancelled) {
+					closeQuietly(socket);
+					return;
+				}
+				sockets.add(socket);
+			}
+			SkyMqttMetrics.increment(SkyMqttMetrics.CONNECT_RACE_ATTEMPTS);
+			try {
+				if (address.isUnresolved()) {
+					address = new InetSocketAddress(address.getHostName(),
+							address.getPort());
+				}
+				options.beforeConnect(socket);
+				socket.connect(address, timeout);
+				synchronized (this) {
+					if (winner == null && !cancelled) {
+						winner = socket;
+						winnerAddress = address;
+						SkyMqttMetrics.set(SkyMqttMetrics.CONNECT_RACE_WINNER,
+								index);
+						notifyAll();
+						return;
+					}
+				}
+				closeQuietly(socket);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				failed(e);
+			}
+		}
+
+		private synchronized void failed(IOException e) {
+			failures++;
+			failure = e;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the first successful connect and close the other sockets
+		 */
+		synchronized Socket await(long timeout) throws IOException {
+			long deadline = SystemClock.elapsedRealtime() + timeout;
+			long wait = 0;
+			try {
+				while (winner == null && !cancelled && failures < total
+						&& (timeout == 0 || (wait = deadline
+								- SystemClock.elapsedRealtime()) > 0)) {
+					wait(wait);
+				}
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+			for (Socket socket : sockets) {
+				if (socket != winner) {
+					closeQuietly(socket);
+				}
+			}
+			if (winner == null) {
+				cancelled = true;
+				notifyAll();
+				if (failure != null) {
+					throw failure;
+				}
+				throw new SocketTimeoutException("connect timed out");
+			}
+			return winner;
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+			notifyAll();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * The socket handed to Paho. It races the connect and then delegates to
+	 * the socket that won.
+	 */
+	class RacingSocket extends Socket {
+		private volatile Race race;
+		private volatile Socket socket;
+		private volatile String hostName;
+		private volatile boolean closed;
+		private int soTimeout;
+		private InputStream in;
+		private OutputStream out;
+		private final AtomicLong bytesSent = new AtomicLong();
+		private final AtomicLong bytesReceived = new AtomicLong();
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout)
+				throws IOException {
+			if (closed) {
+				throw new SocketException("Socket is closed");
+			}
+			connectedServer = null;
+			final SkySocketOptions socketOptions = options;
+			final int attemptTimeout = socketOptions.connectTimeout(timeout);
+			List<InetSocketAddress> candidates = candidates((InetSocketAddress) endpoint);
+			Race current = new Race(candidates.size());
+			race = current;
+			for (int i = 0; i < candidates.size(); i++) {
+				final Race r = current;
+				final InetSocketAddress address = candidates.get(i);
+				final int index = i;
+				attempts.execute(new Runnable() {
+					@Override
+					public void run() {
+						r.attempt(address, index, attemptTimeout, socketOptions);
+					}
+				});
+			}
+			Socket winner = current.await(attemptTimeout == 0 ? 0
+					: attemptTimeout + CONNECT_STAGGER
+							* (candidates.size() - 1));
+			race = null;
+			if (closed) {
+				closeQuietly(winner);
+				throw new SocketException("Socket is closed");
+			}
+			hostName = current.winnerAddress.getHostName();
+			connectedServer = hostName + ":" + current.winnerAddress.getPort();
+			Log.d(TAG, "Connected to " + winner.getRemoteSocketAddress());
+			try {
+				socketOptions.afterConnect(winner);
+				winner.setSoTimeout(soTimeout);
+			} catch (SocketException e) {
+				closeQuietly(winner);
+				throw e;
+			}
+			socket = winner;
+		}
+
+		/**
+		 * @return the socket that won the race, for protocols layered over
+		 *         it which need the platform socket itself
+		 */
+		Socket getConnectedSocket() {
+			return socket;
+		}
+
+		/**
+		 * @return the bytes written to this socket
+		 */
+		long getBytesSent() {
+			return bytesSent.get();
+		}
+
+		/**
+		 * @return the bytes read from this socket
+		 */
+		long getBytesReceived() {
+			return bytesReceived.get();
+		}
+
+		/**
+		 * @return the name of the host the connect was made to, which may be
+		 *         another broker than the one requested
+		 */
+		String getHostName() {
+			return hostName;
+		}
+
+		private Socket connected() throws SocketException {
+			Socket s = socket;
+			if (s == null) {
+				throw new SocketException("Socket is not connected");
+			}
+			return s;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = SkyCountingStreams.counting(connected().getInputStream(),
+						bytesReceived);
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = SkyCountingStreams.counting(
+						connected().getOutputStream(), bytesSent);
+			}
+			return out;
+		}
+
+		@Override
+		public synchronized void setSoTimeout(int timeout)
+				throws SocketException {
+			soTimeout = timeout;
+			Socket s = socket;
+			if (s != null) {
+				s.setSoTimeout(timeout);
+			}
+		}
+
+		@Override
+		public synchronized int getSoTimeout() throws SocketException {
+			return soTimeout;
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			connected().setTcpNoDelay(on);
+		}
+
+		@Override
+		public boolean getTcpNoDelay() throws SocketException {
+			return connected().getTcpNoDelay();
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) throws SocketException {
+			connected().setKeepAlive(on);
+		}
+
+		@Override
+		public boolean getKeepAlive() throws SocketException {
+			return connected().getKeepAlive();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			connected().shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			connected().shutdownOutput();
+		}
+
+		@Override
+		public boolean isConnected() {
+			Socket s = socket;
+			return s != null && s.isConnected();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			Socket s = socket;
+			return (s == null) ? null : s.getInetAddress();
+		}
+
+		@Override
+		public int getPort() {
+			Socket s = socket;
+			return (s == null) ? 0 : s.getPort();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			Socket s = socket;
+			return (s == null) ? super.getLocalAddress() : s.getLocalAddress();
+		}
+
+		@Override
+		public int getLocalPort() {
+			Socket s = socket;
+			return (s == null) ? -1 : s.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			Socket s = socket;
+			return (s == null) ? null : s.getRemoteSocketAddress();
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			Socket s = socket;
+			return (s == null) ? null : s.getLocalSocketAddress();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+			Race r = race;
+			if (r != null) {
+				r.cancel();
+			}
+			Socket s = socket;
+			if (s != null) {
+				Log.d(TAG, "Closing " + s.getRemoteSocketAddress() + ", sent "
+						+ bytesSent.get() + " received " + bytesReceived.get()
+						+ " bytes");
+				s.close();
+			}
+			super.close();
+		}
+
+		@Override
+		public String toString() {
+			Socket s = socket;
+			return (s == null) ? "RacingSocket[unconnected]" : s.toString();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.agilepush.client;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * The TCP options of the sockets opened by {@link SkySocketFactory}.
+ * <p>
+ * A profile selects a set of defaults, each of which can be overridden by its
+ * own preference:
+ * <ul>
+ * <li>{@link #PROFILE_DEFAULT}: no Nagle delay, platform buffers, TCP
+ * keepalive, connect attempts limited only by the MQTT connect timeout</li>
+ * <li>{@link #PROFILE_LOW_LATENCY}: no Nagle delay, small buffers so a slow
+ * link does not queue up data, TCP keepalive and a short connect timeout</li>
+ * <li>{@link #PROFILE_LOW_POWER}: Nagle's algorithm coalesces small writes
+ * and no TCP keepalive probes, the MQTT keepalive alone detects dead
+ * connections</li>
+ * </ul>
+ * </p>
+ */
+class SkySocketOptions {
+
+	private static final String TAG = "SkySocketOptions";
+
+	// Preference keys
+	static final String PREF_PROFILE = "socketProfile";
+	static final String PREF_TCP_NODELAY = "tcpNoDelay";
+	static final String PREF_SEND_BUFFER = "sendBufferSize";
+	static final String PREF_RECEIVE_BUFFER = "receiveBufferSize";
+	static final String PREF_TCP_KEEPALIVE = "tcpKeepAlive";
+	static final String PREF_CONNECT_TIMEOUT = "connectTimeout";
+
+	// Profiles
+	static final String PROFILE_DEFAULT = "default";
+	static final String PROFILE_LOW_LATENCY = "lowLatency";
+	static final String PROFILE_LOW_POWER = "lowPower";
+
+	/** Disable Nagle's algorithm **/
+	final boolean tcpNoDelay;
+	/** SO_SNDBUF in bytes, 0 for the platform default **/
+	final int sendBufferSize;
+	/** SO_RCVBUF in bytes, 0 for the platform default **/
+	final int receiveBufferSize;
+	/** Enable SO_KEEPALIVE **/
+	final boolean keepAlive;
+	/** Timeout of one TCP connect attempt in milliseconds, 0 for none **/
+	final int connectTimeout;
+
+	SkySocketOptions(boolean tcpNoDelay, int sendBufferSize,
+			int receiveBufferSize, boolean keepAlive, int connectTimeout) {
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.keepAlive = keepAlive;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Read the options from the preferences
+	 *
+	 * @param prefs
+	 *            the service preferences
+	 * @return the profile named by {@link #PREF_PROFILE} with the overrides
+	 *         applied
+	 */
+	static SkySocketOptions fromPreferences(SharedPreferences prefs) {
+		String profile = prefs.getString(PREF_PROFILE, PROFILE_DEFAULT);
+		SkySocketOptions base;
+		if (PROFILE_LOW_LATENCY.equals(profile)) {
+			base = new SkySocketOptions(true, 8 * 1024, 16 * 1024, true, 5000);
+		} else if (PROFILE_LOW_POWER.equals(profile)) {
+			base = new SkySocketOptions(false, 0, 0, false, 0);
+		} else {
+			base = new SkySocketOptions(true, 0, 0, true, 0);
+		}
+		SkySocketOptions options = new SkySocketOptions(prefs.getBoolean(
+				PREF_TCP_NODELAY, base.tcpNoDelay), prefs.getInt(
+				PREF_SEND_BUFFER, base.sendBufferSize), prefs.getInt(
+				PREF_RECEIVE_BUFFER, base.receiveBufferSize),
+				prefs.getBoolean(PREF_TCP_KEEPALIVE, base.keepAlive),
+				prefs.getInt(PREF_CONNECT_TIMEOUT, base.connectTimeout));
+		Log.d(TAG, profile + ": " + options);
+		return options;
+	}
+
+	/**
+	 * Apply the options which must be set before the connect, the buffer
+	 * sizes decide the TCP window scale
+	 *
+	 * @param socket
+	 *            an unconnected socket
+	 */
+	void beforeConnect(Socket socket) throws SocketException {
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	/**
+	 * Apply the remaining options
+	 *
+	 * @param socket
+	 *            the connected socket
+	 */
+	void afterConnect(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * @param timeout
+	 *            the MQTT connect timeout in milliseconds, 0 for none
+	 * @return the timeout of one TCP connect attempt
+	 */
+	int connectTimeout(int timeout) {
+		if (connectTimeout <= 0) {
+			return timeout;
+		}
+		return (timeout <= 0) ? connectTimeout : Math.min(timeout,
+				connectTimeout);
+	}
+
+	@Override
+	public String toString() {
+		return "tcpNoDelay=" + tcpNoDelay + " sndbuf=" + sendBufferSize
+				+ " rcvbuf=" + receiveBufferSize + " keepAlive=" + keepAlive
+				+ " connectTimeout=" + connectTimeout;
+	}
+}
@@ -0,0 +1,303 @@
+package com.agilepush.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the broker's subscriptions of a {@link SkyMqttAndroidClient} in line
+ * with the topics the service wants.
+ * <p>
+ * The wanted topics and their QoS are stored in the service preferences,
+ * together with the topics the broker has granted. Changes are sent as
+ * deltas: only the topics which are new or changed their QoS are subscribed
+ * to, and only the topics no longer wanted are unsubscribed from, in packets
+ * of up to {@link #MAX_BATCH} topics.
+ * </p>
+ * <p>
+ * After a connect the broker's CONNACK tells whether it kept the session.
+ * If it did, the granted subscriptions are still in place and only the
+ * deltas are sent, usually nothing. Otherwise every wanted topic is
+ * subscribed to again.
+ * </p>
+ */
+class SkySubscriptionManager {
+
+	private static final String TAG = "SkySubscriptionManager";
+
+	// Preference keys
+	static final String PREF_WANTED = "subscriptions.wanted";
+	static final String PREF_GRANTED = "subscriptions.granted";
+
+	/** Most topics sent in one SUBSCRIBE or UNSUBSCRIBE **/
+	static final int MAX_BATCH = 32;
+
+	// SUBACK return code of a refused topic
+	private static final int FAILURE = 0x80;
+
+	private final SkyMqttAndroidClient client;
+	private final SharedPreferences prefs;
+
+	// topic to QoS, sorted so the packets are the same every time
+	private final Map<String, Integer> wanted;
+	private final Map<String, Integer> granted;
+	// sent and not answered yet, topic to QoS or -1 for an unsubscribe
+	private final Map<String, Integer> pending = new TreeMap<String, Integer>();
+	// refused by the broker, not tried again before the next connect
+	private final Set<String> refused = new HashSet<String>();
+	private boolean connected;
+	// elapsed realtime of the connect, 0 once the first SUBACK is timed
+	private long connectedAt;
+
+	/**
+	 * @param client
+	 *            the client the subscriptions are made on
+	 * @param prefs
+	 *            the preferences the topics are stored in
+	 */
+	SkySubscriptionManager(SkyMqttAndroidClient client, SharedPreferences prefs) {
+		this.client = client;
+		this.prefs = prefs;
+		this.wanted = decode(prefs.getString(PREF_WANTED, ""));
+		this.granted = decode(prefs.getString(PREF_GRANTED, ""));
+	}
+
+	/**
+	 * Want a topic, subscribing to it now if connected
+	 *
+	 * @param topic
+	 *            the topic filter
+	 * @param qos
+	 *            the maximum QoS
+	 */
+	synchronized void subscribe(String topic, int qos) {
+		Integer previous = wanted.put(topic, qos);
+		if (previous == null || previous != qos || refused.remove(topic)) {
+			save();
+			sync();
+		}
+	}
+
+	/**
+	 * No longer want a topic, unsubscribing from it now if connected
+	 *
+	 * @param topic
+	 *            the topic filter
+	 */
+	synchronized void unsubscribe(String topic) {
+		if (wanted.remove(topic) != null) {
+			save();
+			sync();
+		}
+	}
+
+	/**
+	 * The client has connected, bring the broker's subscriptions up to date
+	 *
+	 * @param sessionPresent
+	 *            whether the broker kept the session of the last connection
+	 */
+	synchronized void onConnected(boolean sessionPresent) {
+		connected = true;
+		connectedAt = SystemClock.elapsedRealtime();
+		// answers to packets of the last connection will not come
+		pending.clear();
+		refused.clear();
+		if (sessionPresent) {
+			SkyMqttMetrics.add(SkyMqttMetrics.SUBSCRIBE_RESUMED,
+					granted.size());
+		} else if (!granted.isEmpty()) {
+			granted.clear();
+			save();
+		}
+		sync();
+	}
+
+	/**
+	 * The client has lost its connection, changes wait for the next connect
+	 */
+	synchronized void onDisconnected() {
+		connected = false;
+	}
+
+	/**
+	 * Send the deltas between the wanted and the granted topics which are
+	 * not in flight already
+	 */
+	private void sync() {
+		if (!connected) {
+			return;
+		}
+		List<String> subscribe = new ArrayList<String>();
+		List<String> unsubscribe = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : wanted.entrySet()) {
+			String topic = entry.getKey();
+			int qos = entry.getValue();
+			Integer sent = pending.get(topic);
+			if (!Integer.valueOf(qos).equals(granted.get(topic))
+					&& (sent == null || sent != qos) && !refused.contains(topic)) {
+				subscribe.add(topic);
+			}
+		}
+		for (String topic : granted.keySet()) {
+			Integer sent = pending.get(topic);
+			if (!wanted.containsKey(topic) && (sent == null || sent != -1)) {
+				unsubscribe.add(topic);
+			}
+		}
+		for (int i = 0; i < subscribe.size(); i += MAX_BATCH) {
+			sendSubscribe(subscribe.subList(i,
+					Math.min(i + MAX_BATCH, subscribe.size())));
+		}
+		for (int i = 0; i < unsubscribe.size(); i += MAX_BATCH) {
+			sendUnsubscribe(unsubscribe.subList(i,
+					Math.min(i + MAX_BATCH, unsubscribe.size())));
+		}
+	}
+
+	private void sendSubscribe(List<String> batch) {
+		final String[] topics = batch.toArray(new String[batch.size()]);
+		final int[] qos = new int[topics.length];
+		for (int i = 0; i < topics.length; i++) {
+			qos[i] = wanted.get(topics[i]);
+			pending.put(topics[i], qos[i]);
+		}
+		Log.d(TAG, "subscribing to " + topics.length + " topics");
+		try {
+			client.subscribe(topics, qos, null, new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					subscribed(topics, qos, asyncActionToken.getGrantedQos());
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken,
+						Throwable exception) {
+					Log.e(TAG, "subscribe failed", exception);
+					failed(topics);
+				}
+			});
+			SkyMqttMetrics.increment(SkyMqttMetrics.SUBSCRIBE_PACKETS);
+		} catch (MqttException e) {
+			Log.e(TAG, "subscribe failed", e);
+			failed(topics);
+		}
+	}
+
+	private void sendUnsubscribe(List<String> batch) {
+		final String[] topics = batch.toArray(new String[batch.size()]);
+		for (String topic : topics) {
+			pending.put(topic, -1);
+		}
+		Log.d(TAG, "unsubscribing from " + topics.length + " topics");
+		try {
+			client.unsubscribe(topics, null, new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					unsubscribed(topics);
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken,
+						Throwable exception) {
+					Log.e(TAG, "unsubscribe failed", exception);
+					failed(topics);
+				}
+			});
+			SkyMqttMetrics.increment(SkyMqttMetrics.UNSUBSCRIBE_PACKETS);
+		} catch (MqttException e) {
+			Log.e(TAG, "unsubscribe failed", e);
+			failed(topics);
+		}
+	}
+
+	private synchronized void subscribed(String[] topics, int[] qos,
+			int[] grantedQos) {
+		if (connectedAt != 0) {
+			SkyMqttMetrics.set(SkyMqttMetrics.TIME_TO_SUBACK,
+					SystemClock.elapsedRealtime() - connectedAt);
+			connectedAt = 0;
+		}
+		for (int i = 0; i < topics.length; i++) {
+			pending.remove(topics[i]);
+			int code = (grantedQos != null && i < grantedQos.length) ? grantedQos[i]
+					: qos[i];
+			if (code == FAILURE) {
+				Log.e(TAG, "broker refused " + topics[i]);
+				granted.remove(topics[i]);
+				refused.add(topics[i]);
+			} else {
+				// the wanted QoS is kept, the broker may grant less
+				granted.put(topics[i], qos[i]);
+			}
+		}
+		save();
+		// catch up with changes made while the packet was in flight
+		sync();
+	}
+
+	private synchronized void unsubscribed(String[] topics) {
+		for (String topic : topics) {
+			pending.remove(topic);
+			granted.remove(topic);
+		}
+		save();
+		sync();
+	}
+
+	// Retried at the next change or connect
+	private synchronized void failed(String[] topics) {
+		for (String topic : topics) {
+			pending.remove(topic);
+		}
+	}
+
+	private void save() {
+		SkyPreferences.apply(prefs.edit()
+				.putString(PREF_WANTED, encode(wanted))
+				.putString(PREF_GRANTED, encode(granted)));
+	}
+
+	/**
+	 * Topics as QoS, length, ':' and topic, one after the other, so a topic
+	 * may hold any character
+	 */
+	static String encode(Map<String, Integer> topics) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+			sb.append(entry.getValue()).append(entry.getKey().length())
+					.append(':').append(entry.getKey());
+		}
+		return sb.toString();
+	}
+
+	static Map<String, Integer> decode(String encoded) {
+		Map<String, Integer> topics = new TreeMap<String, Integer>();
+		int i = 0;
+		try {
+			while (i < encoded.length()) {
+				int qos = encoded.charAt(i) - '0';
+				int colon = encoded.indexOf(':', i + 1);
+				int length = Integer.parseInt(encoded.substring(i + 1, colon));
+				topics.put(encoded.substring(colon + 1, colon + 1 + length),
+						qos);
+				i = colon + 1 + length;
+			}
+		} catch (RuntimeException e) {
+			// a damaged entry ends the list, the rest is subscribed again
+			Log.e(TAG, "Cannot read the subscriptions at " + i, e);
+		}
+		return topics;
+	}
+}
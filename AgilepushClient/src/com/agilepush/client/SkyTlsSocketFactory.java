@@ -0,0 +1,572 @@
+package com.agilepush.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * TLS socket factory for <code>ssl://</code> brokers.
+ * <p>
+ * The {@link SSLContext} of a trust store is built once per process and
+ * kept, so its client session cache lets reconnects resume the previous TLS
+ * session instead of running a full handshake. The sockets handed to Paho
+ * connect through a transport factory, normally the racing
+ * {@link SkySocketFactory}, and then layer TLS over the connection with the
+ * name of the host that was actually reached. The host name is what enables
+ * SNI and the lookup of a cached session. TLS is layered over the platform
+ * socket itself, whose file descriptor the TLS implementation uses.
+ * </p>
+ */
+class SkyTlsSocketFactory extends SSLSocketFactory {
+
+	private static final String TAG = "SkyTlsSocketFactory";
+
+	/** Sessions kept per context for resumption **/
+	static final int SESSION_CACHE_SIZE = 16;
+	/** Lifetime of a cached session, in seconds **/
+	static final int SESSION_TIMEOUT = 60 * 60 * 24;
+
+	// One socket factory per trust store and password, for the life of the
+	// process
+	private static final Map<String, SSLSocketFactory> contexts = new HashMap<String, SSLSocketFactory>();
+
+	private final SSLSocketFactory tls;
+	private final SocketFactory transport;
+
+	/**
+	 * @param tls
+	 *            the factory of the cached context, see
+	 *            {@link #getSSLSocketFactory(InputStream, String)}
+	 * @param transport
+	 *            opens the TCP connection TLS is layered over
+	 */
+	SkyTlsSocketFactory(SSLSocketFactory tls, SocketFactory transport) {
+		this.tls = tls;
+		this.transport = transport;
+	}
+
+	/**
+	 * @return the factory the TCP connections are opened with
+	 */
+	SocketFactory getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Get the socket factory of a trust store, building its context only the
+	 * first time the trust store is seen
+	 *
+	 * @param keyStore
+	 *            a BKS trust store, or <code>null</code> for the trust
+	 *            anchors of the platform
+	 * @param password
+	 *            the password of the trust store, may be <code>null</code>
+	 * @return the socket factory of the cached context
+	 * @throws MqttSecurityException
+	 *             if the trust store cannot be read or the context cannot be
+	 *             built
+	 */
+	static SSLSocketFactory getSSLSocketFactory(InputStream keyStore,
+			String password) throws MqttSecurityException {
+		try {
+			byte[] store = (keyStore == null) ? null : readFully(keyStore);
+			String key = digest(store, password);
+			synchronized (contexts) {
+				SSLSocketFactory factory = contexts.get(key);
+				if (factory == null) {
+					factory = createContext(store, password).getSocketFactory();
+					contexts.put(key, factory);
+				}
+				return factory;
+			}
+		} catch (IOException e) {
+			throw new MqttSecurityException(e);
+		} catch (GeneralSecurityException e) {
+			throw new MqttSecurityException(e);
+		}
+	}
+
+	private static SSLContext createContext(byte[] store, String password)
+			throws IOException, GeneralSecurityException {
+		Log.d(TAG, "Creating TLS context");
+		TrustManagerFactory tmf = null;
+		if (store != null) {
+			KeyStore ts = KeyStore.getInstance("BKS");
+			ts.load(new ByteArrayInputStream(store),
+					(password == null) ? null : password.toCharArray());
+			tmf = TrustManagerFactory.getInstance("X509");
+			tmf.init(ts);
+		}
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(null, (tmf == null) ? null : tmf.getTrustManagers(), null);
+		SSLSessionContext sessions = ctx.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT);
+		}
+		return ctx;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		try {
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static String digest(byte[] store, String password)
+			throws GeneralSecurityException {
+		if (store == null) {
+			return "default";
+		}
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		sha1.update(store);
+		if (password != null) {
+			sha1.update(password.getBytes());
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha1.digest()) {
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		}
+		return hex.toString();
+	}
+
+	// Session tickets are only reachable through the platform socket
+	private static void enableSessionTickets(SSLSocket socket) {
+		try {
+			Method method = socket.getClass().getMethod(
+					"setUseSessionTickets", boolean.class);
+			method.invoke(socket, true);
+		} catch (Exception e) {
+			// not supported, session IDs are still resumed
+		}
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return tls.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return tls.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return new LayeredSocket();
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port,
+			boolean autoClose) throws IOException {
+		return tls.createSocket(s, host, port, autoClose);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException,
+			UnknownHostException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost,
+			int localPort) throws IOException, UnknownHostException {
+		return tls.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket socket = createSocket();
+		socket.connect(new InetSocketAddress(host, port));
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException {
+		return tls.createSocket(address, port, localAddress, localPort);
+	}
+
+	/**
+	 * The socket handed to Paho. It opens the connection through the
+	 * transport factory and then delegates to the TLS socket layered over it.
+	 * Settings made before the connect are applied to that socket.
+	 */
+	private class LayeredSocket extends SSLSocket {
+		private volatile SSLSocket socket;
+		private volatile Socket plain;
+		private volatile boolean closed;
+		// the broker the certificate must name
+		private volatile String host;
+		private int soTimeout;
+		private String[] cipherSuites;
+		private String[] protocols;
+		private InputStream in;
+		private OutputStream out;
+		private final AtomicLong bytesSent = new AtomicLong();
+		private final AtomicLong bytesReceived = new AtomicLong();
+
+		@Override
+		public void connect(SocketAddress endpoint) throws IOException {
+			connect(endpoint, 0);
+		}
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout)
+				throws IOException {
+			InetSocketAddress address = (InetSocketAddress) endpoint;
+			Socket s = transport.createSocket();
+			synchronized (this) {
+				if (closed) {
+					throw new SocketException("Socket is closed");
+				}
+				plain = s;
+			}
+			s.connect(address, timeout);
+			String host = address.getHostName();
+			Socket transportSocket = s;
+			if (s instanceof SkySocketFactory.RacingSocket) {
+				host = ((SkySocketFactory.RacingSocket) s).getHostName();
+				transportSocket = ((SkySocketFactory.RacingSocket) s)
+						.getConnectedSocket();
+			}
+			SSLSocket layered = (SSLSocket) tls.createSocket(transportSocket,
+					host, s.getPort(), true);
+			this.host = host;
+			enableSessionTickets(layered);
+			synchronized (this) {
+				if (cipherSuites != null) {
+					layered.setEnabledCipherSuites(cipherSuites);
+				}
+				if (protocols != null) {
+					layered.setEnabledProtocols(protocols);
+				}
+				layered.setSoTimeout(soTimeout);
+				socket = layered;
+				if (closed) {
+					layered.close();
+					throw new SocketException("Socket is closed");
+				}
+			}
+		}
+
+		private SSLSocket connected() throws SocketException {
+			SSLSocket s = socket;
+			if (s == null) {
+				throw new SocketException("Socket is not connected");
+			}
+			return s;
+		}
+
+		@Override
+		public void startHandshake() throws IOException {
+			SSLSocket s = connected();
+			long start = System.currentTimeMillis();
+			long elapsed = SystemClock.elapsedRealtime();
+			s.startHandshake();
+			SkyMqttMetrics.increment(SkyMqttMetrics.TLS_HANDSHAKES);
+			SkyMqttMetrics.set(SkyMqttMetrics.TLS_HANDSHAKE_TIME,
+					SystemClock.elapsedRealtime() - elapsed);
+			SSLSession session = s.getSession();
+			// SSLSocket checks the chain but not the name, so any trusted
+			// certificate would do for any broker
+			if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host,
+					session)) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.TLS_HOSTNAME_MISMATCHES);
+				close();
+				throw new SSLPeerUnverifiedException(
+						"Certificate does not match " + host);
+			}
+			// a resumed session was created by an earlier handshake
+			if (session != null && session.getCreationTime() < start) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.TLS_RESUMED);
+			}
+		}
+
+		@Override
+		public SSLSession getSession() {
+			SSLSocket s = socket;
+			return (s == null) ? null : s.getSession();
+		}
+
+		@Override
+		public synchronized String[] getEnabledCipherSuites() {
+			SSLSocket s = socket;
+			if (s != null) {
+				return s.getEnabledCipherSuites();
+			}
+			return (cipherSuites != null) ? cipherSuites : tls
+					.getDefaultCipherSuites();
+		}
+
+		@Override
+		public synchronized void setEnabledCipherSuites(String[] suites) {
+			cipherSuites = suites;
+			SSLSocket s = socket;
+			if (s != null) {
+				s.setEnabledCipherSuites(suites);
+			}
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return tls.getSupportedCipherSuites();
+		}
+
+		@Override
+		public synchronized String[] getEnabledProtocols() {
+			SSLSocket s = socket;
+			if (s != null) {
+				return s.getEnabledProtocols();
+			}
+			return protocols;
+		}
+
+		@Override
+		public synchronized void setEnabledProtocols(String[] protocols) {
+			this.protocols = protocols;
+			SSLSocket s = socket;
+			if (s != null) {
+				s.setEnabledProtocols(protocols);
+			}
+		}
+
+		@Override
+		public String[] getSupportedProtocols() {
+			SSLSocket s = socket;
+			return (s == null) ? protocols : s.getSupportedProtocols();
+		}
+
+		@Override
+		public void addHandshakeCompletedListener(
+				HandshakeCompletedListener listener) {
+			try {
+				connected().addHandshakeCompletedListener(listener);
+			} catch (SocketException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+
+		@Override
+		public void removeHandshakeCompletedListener(
+				HandshakeCompletedListener listener) {
+			SSLSocket s = socket;
+			if (s != null) {
+				s.removeHandshakeCompletedListener(listener);
+			}
+		}
+
+		@Override
+		public void setUseClientMode(boolean mode) {
+			if (!mode) {
+				throw new IllegalArgumentException("client mode only");
+			}
+		}
+
+		@Override
+		public boolean getUseClientMode() {
+			return true;
+		}
+
+		@Override
+		public void setNeedClientAuth(boolean need) {
+		}
+
+		@Override
+		public boolean getNeedClientAuth() {
+			return false;
+		}
+
+		@Override
+		public void setWantClientAuth(boolean want) {
+		}
+
+		@Override
+		public boolean getWantClientAuth() {
+			return false;
+		}
+
+		@Override
+		public void setEnableSessionCreation(boolean flag) {
+		}
+
+		@Override
+		public boolean getEnableSessionCreation() {
+			return true;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = SkyCountingStreams.counting(connected().getInputStream(),
+						bytesReceived);
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = SkyCountingStreams.counting(
+						connected().getOutputStream(), bytesSent);
+			}
+			return out;
+		}
+
+		@Override
+		public synchronized void setSoTimeout(int timeout)
+				throws SocketException {
+			soTimeout = timeout;
+			SSLSocket s = socket;
+			if (s != null) {
+				s.setSoTimeout(timeout);
+			}
+		}
+
+		@Override
+		public synchronized int getSoTimeout() throws SocketException {
+			return soTimeout;
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			connected().setTcpNoDelay(on);
+		}
+
+		@Override
+		public boolean getTcpNoDelay() throws SocketException {
+			return connected().getTcpNoDelay();
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) throws SocketException {
+			connected().setKeepAlive(on);
+		}
+
+		@Override
+		public boolean getKeepAlive() throws SocketException {
+			return connected().getKeepAlive();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			connected().shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			connected().shutdownOutput();
+		}
+
+		@Override
+		public boolean isConnected() {
+			SSLSocket s = socket;
+			return s != null && s.isConnected();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			SSLSocket s = socket;
+			return (s == null) ? null : s.getInetAddress();
+		}
+
+		@Override
+		public int getPort() {
+			SSLSocket s = socket;
+			return (s == null) ? 0 : s.getPort();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			SSLSocket s = socket;
+			return (s == null) ? super.getLocalAddress() : s.getLocalAddress();
+		}
+
+		@Override
+		public int getLocalPort() {
+			SSLSocket s = socket;
+			return (s == null) ? -1 : s.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			SSLSocket s = socket;
+			return (s == null) ? null : s.getRemoteSocketAddress();
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			SSLSocket s = socket;
+			return (s == null) ? null : s.getLocalSocketAddress();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+			Socket s = socket;
+			if (s == null) {
+				s = plain;
+			} else {
+				Log.d(TAG, "Closing " + s.getRemoteSocketAddress() + ", sent "
+						+ bytesSent.get() + " received " + bytesReceived.get()
+						+ " bytes");
+			}
+			if (s != null) {
+				s.close();
+			}
+			super.close();
+		}
+
+		@Override
+		public String toString() {
+			SSLSocket s = socket;
+			return (s == null) ? "LayeredSocket[unconnected]" : s.toString();
+		}
+	}
+}
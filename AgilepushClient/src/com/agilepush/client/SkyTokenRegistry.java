@@ -0,0 +1,165 @@
+package com.agilepush.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The tokens of the operations a {@link SkyMqttAndroidClient} has in flight.
+ * <p>
+ * Each token is registered under a numeric handle and removed when its
+ * operation completes. Tokens whose operation never completes, for example
+ * publishes lost with the connection, would otherwise stay forever. Every
+ * token therefore carries a deadline, and a sweep that runs at most every
+ * {@link #SWEEP_INTERVAL} milliseconds, piggybacked on
+ * {@link #register(IMqttToken)}, fails the expired tokens with
+ * {@link MqttException#REASON_CODE_CLIENT_TIMEOUT} and evicts them, then
+ * tells the {@link EvictionListener} so it can free what the operation held.
+ * </p>
+ */
+class SkyTokenRegistry {
+
+	/**
+	 * Told about every token the sweep evicts
+	 */
+	interface EvictionListener {
+		void evicted(long handle, IMqttToken token);
+	}
+
+	private static final String TAG = "SkyTokenRegistry";
+
+	/** Time an operation may take before its token is evicted **/
+	static final long DEFAULT_TIMEOUT = 1000 * 60 * 10;
+	/** Deadline of tokens which are never evicted **/
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+	/** Smallest time between two sweeps **/
+	static final long SWEEP_INTERVAL = 1000 * 30;
+
+	private static class Entry {
+		final IMqttToken token;
+		final long deadline;
+
+		Entry(IMqttToken token, long deadline) {
+			this.token = token;
+			this.deadline = deadline;
+		}
+	}
+
+	private final ConcurrentHashMap<Long, Entry> tokens = new ConcurrentHashMap<Long, Entry>();
+	private final AtomicLong nextHandle = new AtomicLong();
+	private final AtomicLong nextSweep = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private volatile EvictionListener evictionListener;
+
+	/**
+	 * @param evictionListener
+	 *            told about every evicted token, may be <code>null</code>
+	 */
+	void setEvictionListener(EvictionListener evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Register a token which is evicted after {@link #DEFAULT_TIMEOUT}
+	 *
+	 * @param token
+	 *            the token of an operation
+	 * @return the handle of the token
+	 */
+	long register(IMqttToken token) {
+		return register(token, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Register a token
+	 *
+	 * @param token
+	 *            the token of an operation
+	 * @param timeout
+	 *            milliseconds after which the token is evicted, or
+	 *            {@link #NO_DEADLINE}
+	 * @return the handle of the token
+	 */
+	long register(IMqttToken token, long timeout) {
+		long now = SystemClock.elapsedRealtime();
+		long handle = nextHandle.getAndIncrement();
+		tokens.put(handle, new Entry(token,
+				(timeout == NO_DEADLINE) ? NO_DEADLINE : now + timeout));
+		SkyMqttMetrics.set(SkyMqttMetrics.TOKENS_LIVE, tokens.size());
+
+		long sweepAt = nextSweep.get();
+		if (now >= sweepAt && nextSweep.compareAndSet(sweepAt, now
+				+ SWEEP_INTERVAL)) {
+			sweep(now);
+		}
+		return handle;
+	}
+
+	/**
+	 * Remove a token whose operation has completed
+	 *
+	 * @param handle
+	 *            the handle of the token
+	 * @return the token, or <code>null</code> if it has already been removed
+	 *         or evicted
+	 */
+	IMqttToken remove(long handle) {
+		Entry entry = tokens.remove(handle);
+		if (entry == null) {
+			return null;
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.TOKENS_LIVE, tokens.size());
+		return entry.token;
+	}
+
+	/**
+	 * @return the number of tokens registered
+	 */
+	int size() {
+		return tokens.size();
+	}
+
+	/**
+	 * @return the number of tokens evicted since the registry was created
+	 */
+	long evicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * Fail and evict the tokens whose deadline has passed
+	 *
+	 * @param now
+	 *            the current elapsed realtime
+	 */
+	void sweep(long now) {
+		Iterator<Map.Entry<Long, Entry>> it = tokens.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Entry> e = it.next();
+			Entry entry = e.getValue();
+			// remove(key, value) so a token completed meanwhile is not failed
+			if (entry.deadline <= now && tokens.remove(e.getKey(), entry)) {
+				evicted.incrementAndGet();
+				SkyMqttMetrics.increment(SkyMqttMetrics.TOKENS_EVICTED);
+				Log.d(TAG, "Evicting token " + e.getKey());
+				if (entry.token instanceof SkyMqttTokenAndroid) {
+					((SkyMqttTokenAndroid) entry.token)
+							.notifyFailure(new MqttException(
+									MqttException.REASON_CODE_CLIENT_TIMEOUT));
+				}
+				EvictionListener listener = evictionListener;
+				if (listener != null) {
+					listener.evicted(e.getKey(), entry.token);
+				}
+			}
+		}
+		SkyMqttMetrics.set(SkyMqttMetrics.TOKENS_LIVE, tokens.size());
+	}
+}
@@ -0,0 +1,315 @@
+package com.agilepush.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Values registered under MQTT topic filters, matched against topics.
+ * <p>
+ * The filters are kept as a tree of their levels. A topic is matched by
+ * walking its levels down the tree, following at each node the child of the
+ * same name, the <code>+</code> child and the <code>#</code> child, so the
+ * time taken depends on the depth of the topic and not on the number of
+ * filters. As in MQTT, <code>a/#</code> also matches <code>a</code>, and
+ * wildcards at the first level do not match topics starting with
+ * <code>$</code>.
+ * </p>
+ * <p>
+ * The levels of the last {@link #LEVEL_CACHE_SIZE} topics are cached, as a
+ * device mostly receives on a few topics. Matching takes a read lock, so it
+ * can run on several threads while filters are added and removed.
+ * </p>
+ *
+ * @param <T>
+ *            the type of the values
+ */
+class SkyTopicTrie<T> {
+
+	/** Topics whose levels are cached **/
+	static final int LEVEL_CACHE_SIZE = 64;
+
+	/**
+	 * Receives the values matching a topic
+	 */
+	interface Visitor<T> {
+		void visit(T value);
+	}
+
+	private static class Node<T> {
+		final Map<String, Node<T>> children = new HashMap<String, Node<T>>();
+		Node<T> plus;
+		Node<T> hash;
+		final List<T> values = new ArrayList<T>(1);
+
+		boolean isEmpty() {
+			return children.isEmpty() && plus == null && hash == null
+					&& values.isEmpty();
+		}
+	}
+
+	private final Node<T> root = new Node<T>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private int size;
+
+	private final Map<String, String[]> levelCache = new LinkedHashMap<String, String[]>(
+			LEVEL_CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+			return size() > LEVEL_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Register a value under a filter
+	 *
+	 * @param filter
+	 *            the topic filter, may hold <code>+</code> and <code>#</code>
+	 * @param value
+	 *            the value
+	 * @throws IllegalArgumentException
+	 *             if the filter is not valid
+	 */
+	void add(String filter, T value) {
+		String[] levels = split(filter);
+		validate(filter, levels);
+		lock.writeLock().lock();
+		try {
+			Node<T> node = root;
+			for (String level : levels) {
+				Node<T> next = child(node, level);
+				if (next == null) {
+					next = new Node<T>();
+					if ("+".equals(level)) {
+						node.plus = next;
+					} else if ("#".equals(level)) {
+						node.hash = next;
+					} else {
+						node.children.put(level, next);
+					}
+				}
+				node = next;
+			}
+			node.values.add(value);
+			size++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a value from a filter
+	 *
+	 * @param filter
+	 *            the topic filter
+	 * @param value
+	 *            the value
+	 * @return <code>false</code> if the value was not registered under the
+	 *         filter
+	 */
+	boolean remove(String filter, T value) {
+		lock.writeLock().lock();
+		try {
+			return remove(root, split(filter), 0, value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove all the values of a filter
+	 *
+	 * @param filter
+	 *            the topic filter
+	 * @return the number of values removed
+	 */
+	int removeAll(String filter) {
+		lock.writeLock().lock();
+		try {
+			String[] levels = split(filter);
+			int removed = 0;
+			while (removeOne(root, levels, 0)) {
+				removed++;
+			}
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of values registered
+	 */
+	int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Hand every value whose filter matches a topic to a visitor. A value
+	 * registered under several matching filters is visited once for each.
+	 *
+	 * @param topic
+	 *            the topic, without wildcards
+	 * @param visitor
+	 *            receives the values, under the read lock so it must not add
+	 *            or remove values
+	 * @return the number of values visited
+	 */
+	int match(String topic, Visitor<? super T> visitor) {
+		String[] levels = levels(topic);
+		lock.readLock().lock();
+		try {
+			if (size == 0) {
+				return 0;
+			}
+			boolean system = topic.length() > 0 && topic.charAt(0) == '$';
+			return match(root, levels, 0, system, visitor);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int match(Node<T> node, String[] levels, int depth,
+			boolean system, Visitor<? super T> visitor) {
+		int count = 0;
+		// no wildcard at the first level for $ topics
+		boolean wildcards = !(system && depth == 0);
+		if (wildcards && node.hash != null) {
+			// also matches the parent level
+			count += visit(node.hash, visitor);
+		}
+		if (depth == levels.length) {
+			return count + visit(node, visitor);
+		}
+		Node<T> next = node.children.get(levels[depth]);
+		if (next != null) {
+			count += match(next, levels, depth + 1, system, visitor);
+		}
+		if (wildcards && node.plus != null) {
+			count += match(node.plus, levels, depth + 1, system, visitor);
+		}
+		return count;
+	}
+
+	private int visit(Node<T> node, Visitor<? super T> visitor) {
+		List<T> values = node.values;
+		for (int i = 0; i < values.size(); i++) {
+			visitor.visit(values.get(i));
+		}
+		return values.size();
+	}
+
+	private boolean remove(Node<T> node, String[] levels, int depth, T value) {
+		if (depth == levels.length) {
+			if (node.values.remove(value)) {
+				size--;
+				return true;
+			}
+			return false;
+		}
+		Node<T> next = child(node, levels[depth]);
+		if (next == null || !remove(next, levels, depth + 1, value)) {
+			return false;
+		}
+		prune(node, levels[depth], next);
+		return true;
+	}
+
+	private boolean removeOne(Node<T> node, String[] levels, int depth) {
+		if (depth == levels.length) {
+			if (node.values.isEmpty()) {
+				return false;
+			}
+			node.values.remove(node.values.size() - 1);
+			size--;
+			return true;
+		}
+		Node<T> next = child(node, levels[depth]);
+		if (next == null || !removeOne(next, levels, depth + 1)) {
+			return false;
+		}
+		prune(node, levels[depth], next);
+		return true;
+	}
+
+	// Drop a child left without values or children of its own
+	private void prune(Node<T> node, String level, Node<T> child) {
+		if (!child.isEmpty()) {
+			return;
+		}
+		if ("+".equals(level)) {
+			node.plus = null;
+		} else if ("#".equals(level)) {
+			node.hash = null;
+		} else {
+			node.children.remove(level);
+		}
+	}
+
+	private Node<T> child(Node<T> node, String level) {
+		if ("+".equals(level)) {
+			return node.plus;
+		}
+		if ("#".equals(level)) {
+			return node.hash;
+		}
+		return node.children.get(level);
+	}
+
+	private String[] levels(String topic) {
+		synchronized (levelCache) {
+			String[] levels = levelCache.get(topic);
+			if (levels == null) {
+				levels = split(topic);
+				levelCache.put(topic, levels);
+			}
+			return levels;
+		}
+	}
+
+	/**
+	 * Split a topic or filter at each <code>/</code>, keeping empty levels
+	 */
+	static String[] split(String topic) {
+		int count = 1;
+		for (int i = 0; i < topic.length(); i++) {
+			if (topic.charAt(i) == '/') {
+				count++;
+			}
+		}
+		String[] levels = new String[count];
+		int start = 0;
+		for (int i = 0; i < count - 1; i++) {
+			int end = topic.indexOf('/', start);
+			levels[i] = topic.substring(start, end);
+			start = end + 1;
+		}
+		levels[count - 1] = topic.substring(start);
+		return levels;
+	}
+
+	private static void validate(String filter, String[] levels) {
+		for (int i = 0; i < levels.length; i++) {
+			String level = levels[i];
+			if ("#".equals(level) && i != levels.length - 1) {
+				throw new IllegalArgumentException("# not last in " + filter);
+			}
+			if (level.length() > 1
+					&& (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+				throw new IllegalArgumentException("wildcard within a level in "
+						+ filter);
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.agilepush.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The messages of a {@link SkyMqttAndroidClient} in
+ * {@link SkyMqttAndroidClient.Ack#MANUAL_ACK} mode which the application has
+ * not acknowledged yet.
+ * <p>
+ * Paho acknowledges a message to the broker as soon as the callback returns,
+ * so a message is written to a {@link SkySegmentLogPersistence} of its own
+ * before it is handed to the application and removed once the application
+ * acknowledges it. Messages still there when the client starts again are
+ * delivered again, in their original order.
+ * </p>
+ * <p>
+ * At most a window of messages may be unacknowledged. A message beyond that
+ * holds up Paho's callback thread until the application acknowledges one,
+ * so Paho stops reading from the broker instead of flooding a slow consumer.
+ * The wait is bounded by {@link #WAIT_TIMEOUT}, well below the shortest
+ * keepalive, and ends early on {@link #abortWaits()}, since Paho joins the
+ * callback thread when it shuts the connection down. A message which does
+ * not get into the window is refused to Paho, which drops the connection
+ * without acknowledging it, and the broker sends it again on the next
+ * session.
+ * </p>
+ */
+class SkyUnackedMessages {
+
+	private static final String TAG = "SkyUnackedMessages";
+
+	/** Messages which may be unacknowledged by default **/
+	static final int DEFAULT_WINDOW = 100;
+
+	/** Longest time in ms a message waits for room in the window **/
+	static final long WAIT_TIMEOUT = 10 * 1000;
+
+	private final SkySegmentLogPersistence store;
+	// guards free and aborts
+	private final Object windowLock = new Object();
+	// room left in the window, negative if it has shrunk since the last run
+	private int free;
+	// bumped to send the waiting callback thread away
+	private int aborts;
+	private final AtomicLong nextId = new AtomicLong();
+	// elapsed realtime each message was handed over at
+	private final ConcurrentHashMap<String, Long> deliveredAt = new ConcurrentHashMap<String, Long>();
+	private final List<SkyArrivedMessage> restored = new ArrayList<SkyArrivedMessage>();
+
+	/**
+	 * Open the store and read back the messages left unacknowledged
+	 *
+	 * @param dir
+	 *            the directory of the store
+	 * @param clientId
+	 *            the client
+	 * @param serverURI
+	 *            the server of the client
+	 * @param window
+	 *            the number of messages which may be unacknowledged
+	 * @throws MqttPersistenceException
+	 *             if the store cannot be opened
+	 */
+	SkyUnackedMessages(File dir, String clientId, String serverURI, int window)
+			throws MqttPersistenceException {
+		store = new SkySegmentLogPersistence(dir);
+		store.open("unacked-" + clientId, serverURI);
+		Enumeration<?> keys = store.keys();
+		while (keys.hasMoreElements()) {
+			String id = (String) keys.nextElement();
+			try {
+				restored.add(decode(id, store.get(id)));
+				nextId.set(Math.max(nextId.get(), Long.parseLong(id) + 1));
+			} catch (IOException e) {
+				Log.e(TAG, "Dropping unreadable message " + id, e);
+				store.remove(id);
+			} catch (NumberFormatException e) {
+				store.remove(id);
+			}
+		}
+		Collections.sort(restored, new Comparator<SkyArrivedMessage>() {
+			@Override
+			public int compare(SkyArrivedMessage a, SkyArrivedMessage b) {
+				long x = Long.parseLong(a.getMessageId());
+				long y = Long.parseLong(b.getMessageId());
+				return (x < y) ? -1 : ((x == y) ? 0 : 1);
+			}
+		});
+		long now = SystemClock.elapsedRealtime();
+		for (SkyArrivedMessage message : restored) {
+			deliveredAt.put(message.getMessageId(), now);
+		}
+		free = window - restored.size();
+		SkyMqttMetrics.set(SkyMqttMetrics.ACK_OUTSTANDING, restored.size());
+		Log.d(TAG, restored.size() + " unacknowledged messages restored");
+	}
+
+	/**
+	 * Take the messages left unacknowledged by the last run, to deliver them
+	 * again. Only returns them once.
+	 *
+	 * @return the messages, oldest first
+	 */
+	synchronized List<SkyArrivedMessage> takeRestored() {
+		List<SkyArrivedMessage> messages = new ArrayList<SkyArrivedMessage>(
+				restored);
+		restored.clear();
+		return messages;
+	}
+
+	/**
+	 * Store an arrived message, waiting while the window is full. Called on
+	 * Paho's callback thread.
+	 *
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @return the message with the id to acknowledge it with
+	 * @throws MqttException
+	 *             if the window stayed full for {@link #WAIT_TIMEOUT}, the
+	 *             wait was aborted or the message cannot be stored
+	 */
+	SkyArrivedMessage add(String topic, MqttMessage message)
+			throws MqttException {
+		enterWindow();
+		SkyArrivedMessage arrived = new SkyArrivedMessage(Long.toString(nextId
+				.getAndIncrement()), topic, message);
+		try {
+			store.put(arrived.getMessageId(), encode(arrived));
+		} catch (MqttPersistenceException e) {
+			leaveWindow();
+			throw e;
+		}
+		deliveredAt.put(arrived.getMessageId(), SystemClock.elapsedRealtime());
+		SkyMqttMetrics.set(SkyMqttMetrics.ACK_OUTSTANDING, deliveredAt.size());
+		return arrived;
+	}
+
+	/**
+	 * Forget an acknowledged message and open the window by one
+	 *
+	 * @param messageId
+	 *            the id of the message
+	 * @return <code>false</code> if the message is not known, for example
+	 *         acknowledged before
+	 */
+	boolean acknowledge(String messageId) {
+		Long since = deliveredAt.remove(messageId);
+		if (since == null) {
+			return false;
+		}
+		try {
+			store.remove(messageId);
+		} catch (MqttPersistenceException e) {
+			Log.e(TAG, "Cannot remove message " + messageId, e);
+		}
+		leaveWindow();
+		SkyMqttMetrics.set(SkyMqttMetrics.ACK_LATENCY,
+				SystemClock.elapsedRealtime() - since);
+		SkyMqttMetrics.set(SkyMqttMetrics.ACK_OUTSTANDING, deliveredAt.size());
+		return true;
+	}
+
+	/**
+	 * Open the window by one for a message the application will not get in
+	 * this run, for example dropped on the way to it. The message stays
+	 * stored, so it is delivered again after a restart.
+	 *
+	 * @param messageId
+	 *            the id of the message
+	 * @return <code>false</code> if the message is not known, for example
+	 *         acknowledged before
+	 */
+	boolean release(String messageId) {
+		if (deliveredAt.remove(messageId) == null) {
+			return false;
+		}
+		leaveWindow();
+		SkyMqttMetrics.increment(SkyMqttMetrics.ACK_RELEASED);
+		SkyMqttMetrics.set(SkyMqttMetrics.ACK_OUTSTANDING, deliveredAt.size());
+		return true;
+	}
+
+	/**
+	 * Send a callback thread waiting for room in the window away, its message
+	 * is refused. Called when the connection goes down, so Paho can stop the
+	 * thread. Messages added later wait as before.
+	 */
+	void abortWaits() {
+		synchronized (windowLock) {
+			aborts++;
+			windowLock.notifyAll();
+		}
+	}
+
+	void close() {
+		abortWaits();
+		try {
+			store.close();
+		} catch (MqttPersistenceException e) {
+			Log.e(TAG, "Cannot close the store", e);
+		}
+	}
+
+	private void enterWindow() throws MqttException {
+		synchronized (windowLock) {
+			if (free <= 0) {
+				SkyMqttMetrics.increment(SkyMqttMetrics.ACK_WAITS);
+				int aborted = aborts;
+				long deadline = SystemClock.elapsedRealtime() + WAIT_TIMEOUT;
+				while (free <= 0) {
+					long left = deadline - SystemClock.elapsedRealtime();
+					if (left <= 0 || aborts != aborted) {
+						SkyMqttMetrics.increment(SkyMqttMetrics.ACK_REFUSED);
+						throw new MqttException(
+								MqttException.REASON_CODE_CLIENT_TIMEOUT);
+					}
+					try {
+						windowLock.wait(left);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new MqttException(e);
+					}
+				}
+			}
+			free--;
+		}
+	}
+
+	private void leaveWindow() {
+		synchronized (windowLock) {
+			free++;
+			windowLock.notify();
+		}
+	}
+
+	private static MqttPersistable encode(SkyArrivedMessage message)
+			throws MqttPersistenceException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(message.getTopic());
+			out.writeByte(message.getQos());
+			out.writeBoolean(message.isRetained());
+			out.writeBoolean(message.isDuplicate());
+			out.flush();
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+		return new SkySegmentLogPersistence.Data(bytes.toByteArray(),
+				message.getPayload());
+	}
+
+	private static SkyArrivedMessage decode(String id, MqttPersistable data)
+			throws IOException, MqttPersistenceException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				data.getHeaderBytes(), data.getHeaderOffset(),
+				data.getHeaderLength()));
+		String topic = in.readUTF();
+		byte[] payload = new byte[data.getPayloadLength()];
+		System.arraycopy(data.getPayloadBytes(), data.getPayloadOffset(),
+				payload, 0, payload.length);
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(in.readByte());
+		message.setRetained(in.readBoolean());
+		in.readBoolean();
+		// delivered before, so it is a duplicate now
+		return new SkyArrivedMessage(id, topic, message, true);
+	}
+}
@@ -0,0 +1,138 @@
+package com.agilepush.client;
+
+import java.lang.reflect.Method;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Lines up the alarms of the push client so that keepalive pings and
+ * reconnects wake the device up together rather than one after another.
+ * <p>
+ * All trigger times are on the {@link AlarmManager#ELAPSED_REALTIME_WAKEUP}
+ * clock and are moved forward onto a common grid of {@link #BATCH_INTERVAL}
+ * milliseconds, never back: a ping that fires before Paho's keepalive is
+ * due sends nothing and costs a second wakeup when it is. Work which may
+ * only be a little late (pings) moves to the next grid line if that is
+ * within its slack, work which may be late (reconnects) always does.
+ * </p>
+ */
+final class SkyWakeupBatcher {
+
+	private static final String TAG = "SkyWakeupBatcher";
+
+	/** Spacing of the wakeup grid **/
+	static final long BATCH_INTERVAL = 1000 * 15;
+
+	private SkyWakeupBatcher() {
+	}
+
+	/**
+	 * @param triggerAt
+	 *            the earliest elapsed realtime the work may run at
+	 * @param slack
+	 *            how much later than <code>triggerAt</code> it may run
+	 * @return the grid line at or after <code>triggerAt</code> if it is
+	 *         within the slack, otherwise <code>triggerAt</code> itself
+	 */
+	static long alignWithin(long triggerAt, long slack) {
+		long aligned = alignLate(triggerAt);
+		return (aligned - triggerAt <= slack) ? aligned : triggerAt;
+	}
+
+	/**
+	 * @param triggerAt
+	 *            the earliest elapsed realtime the work may run at
+	 * @return the grid line at or after <code>triggerAt</code>
+	 */
+	static long alignLate(long triggerAt) {
+		long remainder = triggerAt % BATCH_INTERVAL;
+		return (remainder == 0) ? triggerAt : triggerAt + BATCH_INTERVAL
+				- remainder;
+	}
+
+	/**
+	 * Set an alarm for work which must run no earlier than
+	 * <code>triggerAt</code> and at most <code>slack</code> later. What is
+	 * left of the slack after the alignment is the window within which the
+	 * platform may batch the alarm with others.
+	 *
+	 * @param alarmMgr
+	 *            the alarm manager
+	 * @param triggerAt
+	 *            the earliest elapsed realtime for the alarm
+	 * @param slack
+	 *            how late the alarm may be, in milliseconds
+	 * @param operation
+	 *            the intent to fire
+	 */
+	static void setWithin(AlarmManager alarmMgr, long triggerAt, long slack,
+			PendingIntent operation) {
+		long aligned = alignWithin(triggerAt, slack);
+		set(alarmMgr, aligned, slack - (aligned - triggerAt), operation);
+	}
+
+	/**
+	 * Set an alarm for work which must run no earlier than
+	 * <code>triggerAt</code>. Alarms due in less than one
+	 * {@link #BATCH_INTERVAL} are not moved, the grid would stretch them too
+	 * much.
+	 *
+	 * @param alarmMgr
+	 *            the alarm manager
+	 * @param triggerAt
+	 *            the earliest elapsed realtime for the alarm
+	 * @param now
+	 *            the current elapsed realtime
+	 * @param operation
+	 *            the intent to fire
+	 */
+	static void setLate(AlarmManager alarmMgr, long triggerAt, long now,
+			PendingIntent operation) {
+		if (triggerAt - now < BATCH_INTERVAL) {
+			set(alarmMgr, triggerAt, 0, operation);
+		} else {
+			set(alarmMgr, alignLate(triggerAt), BATCH_INTERVAL, operation);
+		}
+	}
+
+	private static void set(AlarmManager alarmMgr, long triggerAt,
+			long window, PendingIntent operation) {
+		if (Build.VERSION.SDK_INT >= 19 /** Build.VERSION_CODES.KITKAT **/
+		) {
+			// from KitKat on set() is inexact with an unbounded window, bound
+			// it so that pings are never later than their slack
+			Method setWindow = setWindowMethod();
+			if (setWindow != null) {
+				try {
+					setWindow.invoke(alarmMgr,
+							AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt,
+							window, operation);
+					return;
+				} catch (Exception e) {
+					Log.e(TAG, "setWindow failed", e);
+				}
+			}
+		}
+		alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, operation);
+	}
+
+	private static Method setWindow;
+	private static boolean setWindowLooked;
+
+	// AlarmManager.setWindow is API 19, the project builds against API 17
+	private static synchronized Method setWindowMethod() {
+		if (!setWindowLooked) {
+			setWindowLooked = true;
+			try {
+				setWindow = AlarmManager.class.getMethod("setWindow",
+						int.class, long.class, long.class, PendingIntent.class);
+			} catch (NoSuchMethodException e) {
+				Log.e(TAG, "No AlarmManager.setWindow", e);
+			}
+		}
+		return setWindow;
+	}
+}
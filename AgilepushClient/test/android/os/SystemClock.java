@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Stands in for the platform clock in tests run on the JVM, where the one in
+ * android.jar only throws. Must come before android.jar on the classpath.
+ */
+public final class SystemClock {
+
+	private SystemClock() {
+	}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public static long uptimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+}
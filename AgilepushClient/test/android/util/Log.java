@@ -0,0 +1,61 @@
+package android.util;
+
+/**
+ * Stands in for the platform logger in tests run on the JVM, where the one in
+ * android.jar only throws. Must come before android.jar on the classpath.
+ */
+public final class Log {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private Log() {
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return level >= WARN;
+	}
+
+	public static int v(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+
+	private static int println(int level, String tag, String msg, Throwable tr) {
+		System.err.println(((level == ERROR) ? "E/" : "W/") + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,39 @@
+package com.agilepush.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Assume;
+
+/**
+ * Counts the bytes the current thread allocates, with the allocation counter
+ * of the HotSpot and OpenJDK management beans. Tests using it are skipped on
+ * virtual machines without one.
+ */
+final class Allocations {
+
+	private Allocations() {
+	}
+
+	/**
+	 * @param task
+	 *            the work, run once to warm up and once measured
+	 * @param runs
+	 *            the number of times the work repeats, to divide by
+	 * @return the bytes allocated per run
+	 */
+	static double perRun(Runnable task, int runs) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+		// the first run is interpreted and JIT compiled
+		task.run();
+		long before = threads.getThreadAllocatedBytes(thread);
+		task.run();
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		return (double) allocated / runs;
+	}
+}
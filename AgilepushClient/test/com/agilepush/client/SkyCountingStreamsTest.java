@@ -0,0 +1,41 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SkyCountingStreamsTest {
+
+	@Test
+	public void countsTheBytesRead() throws IOException {
+		AtomicLong counter = new AtomicLong();
+		InputStream in = SkyCountingStreams.counting(new ByteArrayInputStream(
+				new byte[] { 1, 2, 3, 4, 5 }), counter);
+		assertEquals(1, in.read());
+		byte[] buffer = new byte[8];
+		assertEquals(4, in.read(buffer, 0, buffer.length));
+		assertEquals(-1, in.read());
+		assertEquals(-1, in.read(buffer, 0, buffer.length));
+		assertEquals(5, counter.get());
+	}
+
+	@Test
+	public void countsTheBytesWrittenAndPassesThemOn() throws IOException {
+		AtomicLong counter = new AtomicLong();
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		OutputStream out = SkyCountingStreams.counting(sink, counter);
+		out.write(7);
+		out.write(new byte[] { 0, 8, 9, 0 }, 1, 2);
+		out.flush();
+		assertArrayEquals(new byte[] { 7, 8, 9 }, sink.toByteArray());
+		assertEquals(3, counter.get());
+	}
+}
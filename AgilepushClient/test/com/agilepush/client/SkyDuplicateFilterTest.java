@@ -0,0 +1,113 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
+import org.junit.Test;
+
+public class SkyDuplicateFilterTest {
+
+	private final SkyDuplicateFilter filter = new SkyDuplicateFilter(
+			SkyDuplicateFilter.DEFAULT_CAPACITY,
+			SkyDuplicateFilter.DEFAULT_LRU_SIZE);
+
+	@Test
+	public void dropsAFlaggedRedelivery() {
+		assertFalse(filter.isDuplicate("t", received(1, "a", false)));
+		assertTrue(filter.isDuplicate("t", received(1, "a", true)));
+		assertEquals(0.5, filter.hitRate(), 0);
+	}
+
+	@Test
+	public void deliversEqualMessagesUnderOtherIds() {
+		// the same content sent twice on purpose is two messages
+		assertFalse(filter.isDuplicate("t", received(1, "ping", false)));
+		assertFalse(filter.isDuplicate("t", received(2, "ping", false)));
+		assertFalse(filter.isDuplicate("t", received(3, "ping", true)));
+	}
+
+	@Test
+	public void deliversARepeatWithoutTheFlag() {
+		assertFalse(filter.isDuplicate("t", received(1, "a", false)));
+		assertFalse(filter.isDuplicate("t", received(1, "a", false)));
+	}
+
+	@Test
+	public void deliversANewMessageUnderAReusedId() {
+		assertFalse(filter.isDuplicate("t", received(1, "a", false)));
+		// the first delivery of b was lost, so it comes flagged
+		assertFalse(filter.isDuplicate("t", received(1, "b", true)));
+		assertFalse(filter.isDuplicate("u", received(1, "a", true)));
+	}
+
+	@Test
+	public void neverChecksQos0() {
+		MqttReceivedMessage message = received(1, "a", true);
+		message.setQos(0);
+		assertFalse(filter.isDuplicate("t", message));
+		assertFalse(filter.isDuplicate("t", message));
+	}
+
+	@Test
+	public void passesMessagesWithoutAPacketId() {
+		MqttMessage message = new MqttMessage("a".getBytes());
+		message.setQos(1);
+		assertFalse(filter.isDuplicate("t", message));
+		assertFalse(filter.isDuplicate("t", message));
+	}
+
+	@Test
+	public void deliversAMessageFoundOnlyByABloomFilter() {
+		SkyDuplicateFilter small = new SkyDuplicateFilter(64, 1);
+		assertFalse(small.isDuplicate("t", received(1, "a", false)));
+		// pushes a out of the exact set, it stays in the bloom filter
+		assertFalse(small.isDuplicate("t", received(2, "b", false)));
+		assertFalse(small.isDuplicate("t", received(1, "a", true)));
+		assertTrue(small.bloomHitRate() > 0);
+		assertEquals(0, small.hitRate(), 0);
+	}
+
+	@Test
+	public void forgetsTheOldestOfTheExactSet() {
+		SkyDuplicateFilter small = new SkyDuplicateFilter(64, 4);
+		for (int id = 1; id <= 4; id++) {
+			assertFalse(small.isDuplicate("t", received(id, "m", false)));
+		}
+		assertTrue(small.isDuplicate("t", received(1, "m", true)));
+		assertFalse(small.isDuplicate("t", received(5, "m", false)));
+		// 1 is gone from the ring, 2 to 5 are kept
+		assertFalse(small.isDuplicate("t", received(1, "m", true)));
+		assertTrue(small.isDuplicate("t", received(5, "m", true)));
+	}
+
+	@Test
+	public void allocatesNothingPerMessage() {
+		final MqttReceivedMessage[] messages = new MqttReceivedMessage[1024];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = received(i + 1, "payload " + i, (i & 1) == 0);
+		}
+		final int runs = 100000;
+		double bytes = Allocations.perRun(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < runs; i++) {
+					filter.isDuplicate("t", messages[i & 1023]);
+				}
+			}
+		}, runs);
+		assertTrue(bytes + " bytes per message", bytes < 1);
+	}
+
+	private static MqttReceivedMessage received(int id, String payload,
+			boolean duplicate) {
+		MqttReceivedMessage message = new MqttReceivedMessage();
+		message.setPayload(payload.getBytes());
+		message.setQos(1);
+		message.setMessageId(id);
+		message.setDuplicate(duplicate);
+		return message;
+	}
+}
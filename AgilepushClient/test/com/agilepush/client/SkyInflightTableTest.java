@@ -0,0 +1,73 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+public class SkyInflightTableTest {
+
+	private final MqttMessage message = new MqttMessage(new byte[] { 1 });
+
+	@Test
+	public void refusesPublishesBeyondTheCapacity() {
+		SkyInflightTable table = new SkyInflightTable(2);
+		assertNotNull(table.tryAcquire("a", message, null, 1));
+		assertNotNull(table.tryAcquire("a", message, null, 2));
+		assertNull(table.tryAcquire("a", message, null, 3));
+		assertEquals(2, table.depth());
+	}
+
+	@Test
+	public void completingFreesTheSlotOnce() {
+		SkyInflightTable table = new SkyInflightTable(1);
+		SkyInflightTable.Record record = table.tryAcquire("a", message, null,
+				1);
+		assertTrue(table.complete(record));
+		// the listener and deliveryComplete both complete a publish
+		assertFalse(table.complete(record));
+		assertEquals(0, table.depth());
+		assertNotNull(table.tryAcquire("a", message, null, 2));
+		assertNull(table.tryAcquire("a", message, null, 3));
+	}
+
+	@Test
+	public void findsRecordsByMessageIdUntilCompleted() {
+		SkyInflightTable table = new SkyInflightTable(4);
+		SkyInflightTable.Record record = table.tryAcquire("a", message, null,
+				7);
+		table.sent(record, 42);
+		assertSame(record, table.get(42));
+		assertEquals(42, record.getMessageId());
+		table.complete(record);
+		assertNull(table.get(42));
+	}
+
+	@Test
+	public void forgetsTheIdOfARecordCompletedBeforeItWasSent() {
+		SkyInflightTable table = new SkyInflightTable(4);
+		SkyInflightTable.Record record = table.tryAcquire("a", message, null,
+				7);
+		table.complete(record);
+		table.sent(record, 42);
+		assertNull(table.get(42));
+	}
+
+	@Test
+	public void listsTheLiveRecordsForFailingThem() {
+		SkyInflightTable table = new SkyInflightTable(4);
+		SkyInflightTable.Record first = table.tryAcquire("a", message, null, 1);
+		SkyInflightTable.Record second = table.tryAcquire("b", message, null,
+				2);
+		table.complete(first);
+		assertEquals(1, table.records().size());
+		assertSame(second, table.records().get(0));
+		assertSame(second, table.getByHandle(2));
+		assertNull(table.getByHandle(1));
+	}
+}
@@ -0,0 +1,245 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.SharedPreferences;
+
+public class SkyKeepAliveTunerTest {
+
+	private static final String NETWORK = "wifi:home";
+	private static final String FINGERPRINT = "wifi:home wlan0/10.0.0.2";
+
+	private Preferences prefs;
+	private SkyKeepAliveTuner tuner;
+
+	@Before
+	public void setUp() {
+		prefs = new Preferences();
+		tuner = new SkyKeepAliveTuner(prefs, 60);
+	}
+
+	@Test
+	public void probesConfirmsAndFallsBack() {
+		assertEquals(120, tuner.begin(NETWORK));
+		answerPings(SkyKeepAliveTuner.CONFIRM_PINGS);
+
+		// no failure known yet, so the probe doubles
+		assertEquals(240, tuner.begin(NETWORK));
+		failPing();
+
+		// half way between the confirmed interval and the failed probe
+		assertEquals(180, tuner.begin(NETWORK));
+		answerPings(SkyKeepAliveTuner.CONFIRM_PINGS);
+		assertEquals(210, tuner.begin(NETWORK));
+		failPing();
+
+		// close enough, stays at the confirmed interval
+		assertEquals(180, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void aFailedProbeIsNotConfirmedByLaterPings() {
+		assertEquals(120, tuner.begin(NETWORK));
+		answerPings(1);
+		failPing();
+		answerPings(SkyKeepAliveTuner.CONFIRM_PINGS);
+		// still 60s confirmed, probing below the failed 120s
+		assertEquals(90, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void halvesAConfirmedIntervalWhichFails() {
+		tuner.begin(NETWORK);
+		answerPings(SkyKeepAliveTuner.CONFIRM_PINGS);
+		assertEquals(240, tuner.begin(NETWORK));
+		failPing();
+		assertEquals(180, tuner.begin(NETWORK));
+		failPing();
+		assertEquals(150, tuner.begin(NETWORK));
+		failPing();
+		assertEquals(120, tuner.begin(NETWORK));
+		failPing();
+		// the confirmed 120s failed: halved, probing up to it again
+		assertEquals(90, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void countsAResetWhileAPingWaits() {
+		tuner.begin(NETWORK);
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onConnectionLost(
+				new MqttException(MqttException.REASON_CODE_CONNECTION_LOST),
+				FINGERPRINT);
+		assertEquals(90, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void ignoresALossWithNoPingWaiting() {
+		tuner.begin(NETWORK);
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onPingSuccess();
+		tuner.onConnectionLost(
+				new MqttException(MqttException.REASON_CODE_CONNECTION_LOST),
+				FINGERPRINT);
+		tuner.onConnectionLost(timeout(), FINGERPRINT);
+		assertEquals(120, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void ignoresALossAfterTheNetworkChanged() {
+		tuner.begin(NETWORK);
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onConnectionLost(timeout(), "mobile:26201 rmnet0/10.1.2.3");
+		assertEquals(120, tuner.begin(NETWORK));
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onConnectionLost(timeout(), null);
+		assertEquals(120, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void ignoresOtherLosses() {
+		tuner.begin(NETWORK);
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onConnectionLost(new MqttException(
+				MqttException.REASON_CODE_BROKER_UNAVAILABLE), FINGERPRINT);
+		assertEquals(120, tuner.begin(NETWORK));
+	}
+
+	@Test
+	public void usesTheBaseIntervalOffline() {
+		assertEquals(60, tuner.begin(null));
+		answerPings(SkyKeepAliveTuner.CONFIRM_PINGS);
+		tuner.onPingSent(null);
+		tuner.onConnectionLost(timeout(), null);
+		assertEquals(60, tuner.begin(null));
+		assertEquals(120, tuner.begin(NETWORK));
+	}
+
+	private void answerPings(int pings) {
+		for (int i = 0; i < pings; i++) {
+			tuner.onPingSent(FINGERPRINT);
+			tuner.onPingSuccess();
+		}
+	}
+
+	private void failPing() {
+		tuner.onPingSent(FINGERPRINT);
+		tuner.onConnectionLost(timeout(), FINGERPRINT);
+	}
+
+	private static MqttException timeout() {
+		return new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+	}
+
+	// Preferences in memory, edits apply at once
+	private static class Preferences implements SharedPreferences {
+
+		final Map<String, Object> values = new HashMap<String, Object>();
+
+		public Map<String, ?> getAll() {
+			return values;
+		}
+
+		public String getString(String key, String defValue) {
+			return values.containsKey(key) ? (String) values.get(key)
+					: defValue;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			return values.containsKey(key) ? (Set<String>) values.get(key)
+					: defValues;
+		}
+
+		public int getInt(String key, int defValue) {
+			return values.containsKey(key) ? (Integer) values.get(key)
+					: defValue;
+		}
+
+		public long getLong(String key, long defValue) {
+			return values.containsKey(key) ? (Long) values.get(key) : defValue;
+		}
+
+		public float getFloat(String key, float defValue) {
+			return values.containsKey(key) ? (Float) values.get(key)
+					: defValue;
+		}
+
+		public boolean getBoolean(String key, boolean defValue) {
+			return values.containsKey(key) ? (Boolean) values.get(key)
+					: defValue;
+		}
+
+		public boolean contains(String key) {
+			return values.containsKey(key);
+		}
+
+		public Editor edit() {
+			return new Editor() {
+
+				public Editor putString(String key, String value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor putStringSet(String key, Set<String> value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor putInt(String key, int value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor putLong(String key, long value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor putFloat(String key, float value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor putBoolean(String key, boolean value) {
+					values.put(key, value);
+					return this;
+				}
+
+				public Editor remove(String key) {
+					values.remove(key);
+					return this;
+				}
+
+				public Editor clear() {
+					values.clear();
+					return this;
+				}
+
+				public boolean commit() {
+					return true;
+				}
+
+				public void apply() {
+				}
+			};
+		}
+
+		public void registerOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+
+		public void unregisterOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+	}
+}
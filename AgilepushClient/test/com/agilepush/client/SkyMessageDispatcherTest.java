@@ -0,0 +1,272 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkyMessageDispatcherTest {
+
+	/**
+	 * Records the payloads it gets, optionally held up until released
+	 */
+	private static class Recorder implements MqttCallback {
+		final List<String> payloads = Collections
+				.synchronizedList(new ArrayList<String>());
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release;
+		private CountDownLatch expected;
+
+		Recorder(boolean hold) {
+			this.release = new CountDownLatch(hold ? 1 : 0);
+		}
+
+		void expect(int count) {
+			expected = new CountDownLatch(count);
+		}
+
+		void await() throws InterruptedException {
+			assertTrue("delivered " + payloads,
+					expected.await(5, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message)
+				throws Exception {
+			entered.countDown();
+			release.await();
+			payloads.add(new String(message.getPayload()));
+			if (expected != null) {
+				expected.countDown();
+			}
+		}
+
+		@Override
+		public void connectionLost(Throwable cause) {
+		}
+
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+		}
+	}
+
+	private File spillFile;
+	private final List<SkyMessageDispatcher> opened = new ArrayList<SkyMessageDispatcher>();
+
+	@Before
+	public void setUp() throws IOException {
+		spillFile = File.createTempFile("dispatch", null);
+		spillFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		for (SkyMessageDispatcher dispatcher : opened) {
+			dispatcher.close();
+		}
+		File[] files = spillFile.getParentFile().listFiles();
+		for (File file : files) {
+			if (file.getName().startsWith(spillFile.getName())) {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void spillsBeyondTheCapacityAndKeepsTheOrder() throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		target.expect(4);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		dispatcher.messageArrived("t", message("1"));
+		dispatcher.messageArrived("t", message("2"));
+		dispatcher.messageArrived("t", message("3"));
+		target.release.countDown();
+		target.await();
+		assertEquals("[0, 1, 2, 3]", target.payloads.toString());
+	}
+
+	@Test
+	public void spilledMessagesAreOnTheDiskWhenMessageArrivedReturns()
+			throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		dispatcher.messageArrived("t", message("1"));
+		File lane = new File(spillFile.getPath() + ".0");
+		assertEquals(0, lane.length());
+		// Paho acknowledges it once this returns
+		dispatcher.messageArrived("t", message("2"));
+		assertTrue(lane.length() > 0);
+	}
+
+	@Test
+	public void syncsSpilledMessagesInBatches() throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		long syncs = SkyMqttMetrics.get(SkyMqttMetrics.DISPATCH_SYNCS);
+		for (int i = 1; i <= 100; i++) {
+			dispatcher.messageArrived("t", message(Integer.toString(i)));
+		}
+		Thread.sleep(SkyMessageDispatcher.SYNC_DELAY * 5);
+		long batches = SkyMqttMetrics.get(SkyMqttMetrics.DISPATCH_SYNCS)
+				- syncs;
+		assertTrue("synced " + batches + " times", batches >= 1
+				&& batches <= 5);
+	}
+
+	@Test
+	public void neverSyncsForQos0() throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		target.expect(11);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		long syncs = SkyMqttMetrics.get(SkyMqttMetrics.DISPATCH_SYNCS);
+		for (int i = 1; i <= 10; i++) {
+			MqttMessage message = message(Integer.toString(i));
+			message.setQos(0);
+			dispatcher.messageArrived("t", message);
+		}
+		Thread.sleep(SkyMessageDispatcher.SYNC_DELAY * 3);
+		assertEquals(syncs, SkyMqttMetrics.get(SkyMqttMetrics.DISPATCH_SYNCS));
+		target.release.countDown();
+		target.await();
+		assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10]",
+				target.payloads.toString());
+	}
+
+	@Test
+	public void handsQueuedAndLateMessagesToTheNextStart() throws Exception {
+		Recorder held = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(held, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(held.entered.await(5, TimeUnit.SECONDS));
+		dispatcher.messageArrived("t", message("1"));
+		dispatcher.messageArrived("t", message("2"));
+		dispatcher.close();
+		// arriving while the client shuts down
+		dispatcher.messageArrived("t", message("3"));
+
+		Recorder next = new Recorder(false);
+		next.expect(3);
+		open(next, 1, SkyMessageDispatcher.Overflow.SPILL);
+		next.await();
+		assertEquals("[1, 2, 3]", next.payloads.toString());
+	}
+
+	@Test
+	public void queuesTrackedMessagesInsteadOfSpillingThem() throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		target.expect(4);
+		dispatcher.messageArrived("t", tracked("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i <= 3; i++) {
+			dispatcher.messageArrived("t", tracked(Integer.toString(i)));
+		}
+		assertEquals(0, new File(spillFile.getPath() + ".0").length());
+		target.release.countDown();
+		target.await();
+		assertEquals("[0, 1, 2, 3]", target.payloads.toString());
+	}
+
+	@Test
+	public void leavesTrackedMessagesToTheirStoreOnClose() throws Exception {
+		Recorder held = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(held, 1,
+				SkyMessageDispatcher.Overflow.SPILL);
+		dispatcher.messageArrived("t", tracked("0"));
+		assertTrue(held.entered.await(5, TimeUnit.SECONDS));
+		dispatcher.messageArrived("t", tracked("1"));
+		dispatcher.messageArrived("t", message("2"));
+		dispatcher.close();
+		dispatcher.messageArrived("t", tracked("3"));
+
+		// only the untracked one comes back, the store delivers the others
+		Recorder next = new Recorder(false);
+		next.expect(1);
+		open(next, 1, SkyMessageDispatcher.Overflow.SPILL);
+		next.await();
+		Thread.sleep(100);
+		assertEquals("[2]", next.payloads.toString());
+	}
+
+	@Test
+	public void keepsTheOrderOfEachKeyOverTheLanes() throws Exception {
+		Recorder target = new Recorder(false);
+		SkyMessageDispatcher dispatcher = new SkyMessageDispatcher(target,
+				1000, 4, SkyMessageDispatcher.Overflow.BLOCK, spillFile);
+		opened.add(dispatcher);
+		target.expect(400);
+		for (int i = 0; i < 100; i++) {
+			for (int key = 0; key < 4; key++) {
+				dispatcher.messageArrived("t/" + key, message(key + ":" + i));
+			}
+		}
+		target.await();
+		int[] next = new int[4];
+		for (String payload : new ArrayList<String>(target.payloads)) {
+			int key = payload.charAt(0) - '0';
+			assertEquals(payload, next[key]++,
+					Integer.parseInt(payload.substring(2)));
+		}
+	}
+
+	@Test
+	public void dropsTheOldestOfAFullLane() throws Exception {
+		Recorder target = new Recorder(true);
+		SkyMessageDispatcher dispatcher = open(target, 2,
+				SkyMessageDispatcher.Overflow.DROP_OLDEST);
+		target.expect(3);
+		dispatcher.messageArrived("t", message("0"));
+		assertTrue(target.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i <= 4; i++) {
+			dispatcher.messageArrived("t", message(Integer.toString(i)));
+		}
+		target.release.countDown();
+		target.await();
+		assertEquals("[0, 3, 4]", target.payloads.toString());
+	}
+
+	private SkyMessageDispatcher open(MqttCallback target, int capacity,
+			SkyMessageDispatcher.Overflow overflow) {
+		SkyMessageDispatcher dispatcher = new SkyMessageDispatcher(target,
+				capacity, 1, overflow, spillFile);
+		opened.add(dispatcher);
+		return dispatcher;
+	}
+
+	private static SkyArrivedMessage tracked(String payload) {
+		return new SkyArrivedMessage(payload, "t", message(payload));
+	}
+
+	private static MqttMessage message(String payload) {
+		MqttMessage message = new MqttMessage(payload.getBytes());
+		message.setQos(1);
+		return message;
+	}
+}
@@ -0,0 +1,132 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.os.SystemClock;
+
+public class SkyNotificationAggregatorTest {
+
+	/**
+	 * Records what would be shown, runs the flushes on a thread of its own
+	 */
+	private static class Recorder extends SkyNotificationAggregator {
+		final ScheduledExecutorService main = Executors
+				.newSingleThreadScheduledExecutor();
+		final List<long[]> shown = Collections
+				.synchronizedList(new ArrayList<long[]>());
+
+		Recorder() {
+			super(null, "client", null, null);
+		}
+
+		@Override
+		void postDelayed(Runnable task, long delay) {
+			main.schedule(task, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		void show(Group g) {
+			// time, id and count of each notify call
+			shown.add(new long[] { SystemClock.elapsedRealtime(), g.id,
+					g.count });
+		}
+
+		void awaitShown(int calls) throws InterruptedException {
+			long deadline = SystemClock.elapsedRealtime() + 5000;
+			while (shown.size() < calls
+					&& SystemClock.elapsedRealtime() < deadline) {
+				Thread.sleep(10);
+			}
+			// and nothing more
+			Thread.sleep(SkyNotificationAggregator.WINDOW * 2);
+		}
+	}
+
+	private final Recorder aggregator = new Recorder();
+
+	@After
+	public void tearDown() {
+		aggregator.main.shutdownNow();
+	}
+
+	@Test
+	public void aBurstOnOneTopicCostsOneNotifyCall() throws Exception {
+		long calls = SkyMqttMetrics.get(SkyMqttMetrics.NOTIFY_CALLS);
+		for (int i = 0; i < 500; i++) {
+			aggregator.postMessage("t", "t", new byte[] { (byte) i });
+		}
+		aggregator.awaitShown(1);
+		assertEquals(1, SkyMqttMetrics.get(SkyMqttMetrics.NOTIFY_CALLS)
+				- calls);
+		assertEquals(500, aggregator.shown.get(0)[2]);
+	}
+
+	@Test
+	public void aBurstOverManyTopicsIsRateLimited() throws Exception {
+		int topics = 2 * SkyNotificationAggregator.RATE;
+		long calls = SkyMqttMetrics.get(SkyMqttMetrics.NOTIFY_CALLS);
+		for (int i = 0; i < 25; i++) {
+			for (int topic = 0; topic < topics; topic++) {
+				aggregator.postMessage("t/" + topic, "t/" + topic,
+						new byte[] { (byte) i });
+			}
+		}
+		aggregator.awaitShown(topics);
+		assertEquals(topics, SkyMqttMetrics.get(SkyMqttMetrics.NOTIFY_CALLS)
+				- calls);
+		List<long[]> shown = aggregator.shown;
+		for (long[] call : shown) {
+			assertEquals(25, call[2]);
+		}
+		// a full bucket at once, then one call per 1000 / RATE ms
+		long first = shown.get(0)[0];
+		for (int i = SkyNotificationAggregator.RATE; i < topics; i++) {
+			long earliest = (i - SkyNotificationAggregator.RATE + 1) * 1000L
+					/ SkyNotificationAggregator.RATE;
+			long at = shown.get(i)[0] - first;
+			assertTrue("call " + i + " after " + at + "ms", at >= earliest - 10);
+		}
+	}
+
+	@Test
+	public void allocatesNothingPerMessageOfAKnownGroup() {
+		final byte[] payload = "payload".getBytes();
+		aggregator.postMessage("t", "t", payload);
+		final int runs = 100000;
+		double bytes = Allocations.perRun(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < runs; i++) {
+					aggregator.postMessage("t", "t", payload);
+				}
+			}
+		}, runs);
+		assertTrue(bytes + " bytes per message", bytes < 1);
+	}
+
+	@Test
+	public void updatesEachGroupInPlace() throws Exception {
+		aggregator.postMessage("a", "a", new byte[1]);
+		aggregator.postMessage("b", "b", new byte[1]);
+		aggregator.awaitShown(2);
+		aggregator.postMessage("a", "a", new byte[1]);
+		aggregator.awaitShown(3);
+		List<long[]> shown = aggregator.shown;
+		assertEquals(3, shown.size());
+		long a = shown.get(2)[1];
+		assertTrue(a == shown.get(0)[1] || a == shown.get(1)[1]);
+		assertTrue(shown.get(0)[1] != shown.get(1)[1]);
+		assertEquals(2, shown.get(2)[2]);
+	}
+}
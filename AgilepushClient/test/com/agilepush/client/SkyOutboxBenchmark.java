@@ -0,0 +1,166 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * How fast the outbox drains into a connection. Not part of the tests, run it
+ * with <code>test/run-tests.sh com.agilepush.client.SkyOutboxBenchmark</code>.
+ * <p>
+ * The broker stand-in is a socket on loopback which reads the PUBLISH packets
+ * the sender writes and counts them.
+ * </p>
+ */
+public class SkyOutboxBenchmark {
+
+	private static final int MESSAGES = 1000;
+	private static final int ROUNDS = 5;
+	private static final int[] CAPACITY = { MESSAGES, MESSAGES, MESSAGES };
+	private static final int[] NO_TTL = { 0, 0, 0 };
+
+	private File file;
+	private ServerSocket server;
+	private final AtomicInteger received = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("outbox", null);
+		file.delete();
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread broker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "broker");
+		broker.setDaemon(true);
+		broker.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		file.delete();
+	}
+
+	@Test
+	public void drain() throws Exception {
+		SkyOutbox box = new SkyOutbox(file, CAPACITY, NO_TTL,
+				SkyOutbox.Policy.DROP_OLDEST);
+		Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+		socket.setTcpNoDelay(true);
+		final DataOutputStream out = new DataOutputStream(
+				socket.getOutputStream());
+		try {
+			// the first round warms up
+			for (int round = 0; round <= ROUNDS; round++) {
+				for (int i = 0; i < MESSAGES; i++) {
+					add(box, "devices/" + (i % 10) + "/receipt", i);
+				}
+				assertEquals(MESSAGES, box.size());
+				final CountDownLatch sent = new CountDownLatch(MESSAGES);
+				int before = received.get();
+				long start = System.nanoTime();
+				box.drain(new SkyOutbox.Sender() {
+					@Override
+					public boolean send(SkyOutbox.Entry entry) {
+						try {
+							write(out, entry);
+						} catch (IOException e) {
+							return false;
+						}
+						sent.countDown();
+						return true;
+					}
+				});
+				assertTrue(sent.await(30, TimeUnit.SECONDS));
+				while (received.get() - before < MESSAGES) {
+					Thread.sleep(1);
+				}
+				long micros = (System.nanoTime() - start) / 1000;
+				for (int i = 0; i < 500 && !box.isEmpty(); i++) {
+					Thread.sleep(10);
+				}
+				assertEquals(0, box.size());
+				if (round > 0) {
+					System.out.println("SkyOutboxBenchmark: drained "
+							+ MESSAGES + " messages in " + micros / 1000
+							+ "ms, " + MESSAGES * 1000000L / micros + "/s");
+				}
+			}
+		} finally {
+			socket.close();
+			box.close();
+		}
+	}
+
+	private void add(SkyOutbox box, String topic, int i) {
+		MqttMessage message = new MqttMessage(("receipt " + i).getBytes());
+		message.setQos(1);
+		box.add(topic, message, new SkyMqttDeliveryTokenAndroid(null, null,
+				new IMqttActionListener() {
+					@Override
+					public void onSuccess(IMqttToken asyncActionToken) {
+					}
+
+					@Override
+					public void onFailure(IMqttToken asyncActionToken,
+							Throwable exception) {
+					}
+				}, message));
+	}
+
+	// A QoS 1 PUBLISH, packet id 1, lengths below 128
+	private static void write(DataOutputStream out, SkyOutbox.Entry entry)
+			throws IOException {
+		byte[] topic = entry.topic.getBytes("UTF-8");
+		byte[] payload = entry.message.getPayload();
+		out.writeByte(0x32);
+		out.writeByte(2 + topic.length + 2 + payload.length);
+		out.writeShort(topic.length);
+		out.write(topic);
+		out.writeShort(1);
+		out.write(payload);
+	}
+
+	// Reads PUBLISH packets and counts them
+	private void serve() {
+		while (!server.isClosed()) {
+			try {
+				Socket client = server.accept();
+				try {
+					InputStream in = client.getInputStream();
+					DataInputStream data = new DataInputStream(in);
+					byte[] body = new byte[128];
+					while (in.read() != -1) {
+						data.readFully(body, 0, in.read());
+						received.incrementAndGet();
+					}
+				} finally {
+					client.close();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkyOutboxTest {
+
+	private static final int[] CAPACITY = { 10, 10, 10 };
+	private static final int[] NO_TTL = { 0, 0, 0 };
+
+	private File file;
+	private final List<SkyOutbox> opened = new ArrayList<SkyOutbox>();
+	// reason codes of the failed tokens
+	private final List<Integer> failures = Collections
+			.synchronizedList(new ArrayList<Integer>());
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("outbox", null);
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		for (SkyOutbox box : opened) {
+			box.close();
+		}
+		file.delete();
+	}
+
+	@Test
+	public void drainsInOrder() throws InterruptedException {
+		SkyOutbox box = open(CAPACITY, SkyOutbox.Policy.DROP_OLDEST);
+		add(box, "a", 1);
+		add(box, "b", 0);
+		add(box, "c", 2);
+		assertEquals(3, box.size());
+		assertEquals("[a, b, c]", drain(box, 3).toString());
+		assertTrue(box.isEmpty());
+	}
+
+	@Test
+	public void keepsTheMessageTheSenderRefuses() throws InterruptedException {
+		SkyOutbox box = open(CAPACITY, SkyOutbox.Policy.DROP_OLDEST);
+		add(box, "a", 1);
+		add(box, "b", 1);
+		final CountDownLatch tried = new CountDownLatch(1);
+		box.drain(new SkyOutbox.Sender() {
+			@Override
+			public boolean send(SkyOutbox.Entry entry) {
+				tried.countDown();
+				return false;
+			}
+		});
+		assertTrue(tried.await(5, TimeUnit.SECONDS));
+		assertEquals("[a, b]", drain(box, 2).toString());
+	}
+
+	@Test
+	public void restoresTheQueueFromTheJournal() throws InterruptedException {
+		SkyOutbox box = open(CAPACITY, SkyOutbox.Policy.DROP_OLDEST);
+		add(box, "a", 1);
+		add(box, "b", 2);
+		add(box, "c", 1);
+		assertEquals("[a]", drain(box, 1).toString());
+		box.close();
+
+		SkyOutbox restored = open(CAPACITY, SkyOutbox.Policy.DROP_OLDEST);
+		assertEquals(2, restored.size());
+		final List<SkyOutbox.Entry> entries = new ArrayList<SkyOutbox.Entry>();
+		final CountDownLatch drained = new CountDownLatch(2);
+		restored.drain(new SkyOutbox.Sender() {
+			@Override
+			public boolean send(SkyOutbox.Entry entry) {
+				entries.add(entry);
+				drained.countDown();
+				return true;
+			}
+		});
+		assertTrue(drained.await(5, TimeUnit.SECONDS));
+		assertEquals("b", entries.get(0).topic);
+		assertEquals(2, entries.get(0).message.getQos());
+		assertEquals("c", new String(entries.get(1).message.getPayload()));
+		// the tokens did not outlive the process
+		assertNull(entries.get(0).token);
+	}
+
+	@Test
+	public void dropsTheOldestMessageOfAFullQos() throws InterruptedException {
+		SkyOutbox box = open(new int[] { 10, 2, 10 },
+				SkyOutbox.Policy.DROP_OLDEST);
+		add(box, "a", 1);
+		add(box, "b", 0);
+		add(box, "c", 1);
+		add(box, "d", 1);
+		assertEquals(Collections.singletonList(Integer
+				.valueOf(MqttException.REASON_CODE_MAX_INFLIGHT)), failures);
+		assertEquals("[b, c, d]", drain(box, 3).toString());
+	}
+
+	@Test
+	public void refusesTheNewestMessageOfAFullQos() throws InterruptedException {
+		SkyOutbox box = open(new int[] { 10, 2, 10 },
+				SkyOutbox.Policy.DROP_NEWEST);
+		add(box, "a", 1);
+		add(box, "b", 1);
+		add(box, "c", 1);
+		assertEquals(1, failures.size());
+		assertEquals("[a, b]", drain(box, 2).toString());
+	}
+
+	private SkyOutbox open(int[] capacity, SkyOutbox.Policy policy) {
+		SkyOutbox box = new SkyOutbox(file, capacity, NO_TTL, policy);
+		opened.add(box);
+		return box;
+	}
+
+	private void add(SkyOutbox box, String topic, int qos) {
+		MqttMessage message = new MqttMessage(topic.getBytes());
+		message.setQos(qos);
+		box.add(topic, message, new SkyMqttDeliveryTokenAndroid(null, null,
+				new IMqttActionListener() {
+					@Override
+					public void onSuccess(IMqttToken asyncActionToken) {
+					}
+
+					@Override
+					public void onFailure(IMqttToken asyncActionToken,
+							Throwable exception) {
+						failures.add(((MqttException) exception)
+								.getReasonCode());
+					}
+				}, message));
+	}
+
+	// The topics of the first count messages drained
+	private List<String> drain(SkyOutbox box, int count)
+			throws InterruptedException {
+		int left = box.size() - count;
+		final List<String> topics = Collections
+				.synchronizedList(new ArrayList<String>());
+		final CountDownLatch drained = new CountDownLatch(count);
+		box.drain(new SkyOutbox.Sender() {
+			@Override
+			public boolean send(SkyOutbox.Entry entry) {
+				if (drained.getCount() == 0) {
+					return false;
+				}
+				topics.add(entry.topic);
+				drained.countDown();
+				return true;
+			}
+		});
+		assertTrue(drained.await(5, TimeUnit.SECONDS));
+		// the entry is removed after send returns
+		for (int i = 0; i < 500 && box.size() > left; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(left, box.size());
+		return topics;
+	}
+}
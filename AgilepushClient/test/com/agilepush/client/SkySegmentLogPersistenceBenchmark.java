@@ -0,0 +1,130 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Put, remove and recovery times of the segment log next to Paho's file
+ * persistence. Not part of the tests, run it with
+ * <code>test/run-tests.sh com.agilepush.client.SkySegmentLogPersistenceBenchmark</code>.
+ * <p>
+ * The records are what Paho keeps of a QoS 1 publish in flight, a 2 byte
+ * fixed header and a 100 byte variable header and payload. Recovery is
+ * opening the store again and listing its keys, as Paho does on connect.
+ * </p>
+ */
+public class SkySegmentLogPersistenceBenchmark {
+
+	private static final String CLIENT = "client";
+	private static final String SERVER = "tcp://localhost:1883";
+	private static final int RECORDS = 500;
+
+	/**
+	 * Opens one of the stores
+	 */
+	private interface Store {
+		MqttClientPersistence open() throws MqttPersistenceException;
+	}
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("persistence", null);
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void putRemoveAndRecover() throws MqttPersistenceException {
+		final File segments = new File(dir, "segments");
+		final File files = new File(dir, "files");
+		System.out.println("SkySegmentLogPersistenceBenchmark: " + RECORDS
+				+ " records, put / remove half / recover in ms");
+		Store segmentLog = new Store() {
+			@Override
+			public MqttClientPersistence open()
+					throws MqttPersistenceException {
+				return new SkySegmentLogPersistence(segments);
+			}
+		};
+		Store pahoFiles = new Store() {
+			@Override
+			public MqttClientPersistence open()
+					throws MqttPersistenceException {
+				return new MqttDefaultFilePersistence(files.getPath());
+			}
+		};
+		// the first round warms up
+		for (int round = 0; round < 2; round++) {
+			measure(round > 0 ? "segment log" : null, segmentLog);
+			measure(round > 0 ? "Paho files " : null, pahoFiles);
+		}
+	}
+
+	// Prints the times unless name is null
+	private void measure(String name, Store store)
+			throws MqttPersistenceException {
+		byte[] header = { 0x32, 100 };
+		byte[] payload = new byte[100];
+		MqttClientPersistence persistence = store.open();
+		persistence.open(CLIENT, SERVER);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < RECORDS; i++) {
+			persistence.put("s-" + i,
+					new SkySegmentLogPersistence.Data(header, payload));
+		}
+		long put = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < RECORDS; i += 2) {
+			persistence.remove("s-" + i);
+		}
+		long remove = System.nanoTime() - start;
+		persistence.close();
+
+		start = System.nanoTime();
+		persistence = store.open();
+		persistence.open(CLIENT, SERVER);
+		int keys = 0;
+		for (Enumeration<?> e = persistence.keys(); e.hasMoreElements(); e
+				.nextElement()) {
+			keys++;
+		}
+		long recover = System.nanoTime() - start;
+		assertEquals(RECORDS / 2, keys);
+		persistence.clear();
+		persistence.close();
+
+		if (name != null) {
+			System.out.println("  " + name + "  " + put / 1000000 + " / "
+					+ remove / 1000000 + " / " + recover / 1000000);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,219 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkySegmentLogPersistenceTest {
+
+	private static final String CLIENT = "client";
+	private static final String SERVER = "tcp://localhost:1883";
+
+	private File dir;
+	private SkySegmentLogPersistence log;
+
+	@Before
+	public void setUp() throws IOException, MqttPersistenceException {
+		dir = File.createTempFile("segments", null);
+		dir.delete();
+		dir.mkdirs();
+		log = open();
+	}
+
+	@After
+	public void tearDown() throws MqttPersistenceException {
+		if (log != null) {
+			log.close();
+		}
+		delete(dir);
+	}
+
+	@Test
+	public void readsBackWhatWasPut() throws MqttPersistenceException {
+		log.put("s-1", data("header", "payload"));
+		MqttPersistable read = log.get("s-1");
+		assertArrayEquals("header".getBytes(), bytes(read.getHeaderBytes(),
+				read.getHeaderOffset(), read.getHeaderLength()));
+		assertArrayEquals("payload".getBytes(), bytes(read.getPayloadBytes(),
+				read.getPayloadOffset(), read.getPayloadLength()));
+		assertNull(log.get("s-2"));
+	}
+
+	@Test
+	public void keepsTheLastPutOfAKey() throws MqttPersistenceException {
+		log.put("s-1", data("h", "first"));
+		log.put("s-1", data("h", "second"));
+		assertEquals("second", payload(log.get("s-1")));
+		assertEquals(Collections.singletonList("s-1"), keys());
+	}
+
+	@Test
+	public void recoversPutsAndRemovesAfterReopening()
+			throws MqttPersistenceException {
+		log.put("s-1", data("h", "one"));
+		log.put("s-2", data("h", "two"));
+		log.put("s-3", data("h", "three"));
+		log.remove("s-2");
+		reopen();
+		assertEquals(2, keys().size());
+		assertEquals("one", payload(log.get("s-1")));
+		assertFalse(log.containsKey("s-2"));
+		assertEquals("three", payload(log.get("s-3")));
+	}
+
+	@Test
+	public void spansSeveralSegments() throws MqttPersistenceException {
+		byte[] big = new byte[SkySegmentLogPersistence.SEGMENT_SIZE / 3];
+		for (int i = 0; i < 5; i++) {
+			big[0] = (byte) i;
+			log.put("s-" + i, new SkySegmentLogPersistence.Data(new byte[0],
+					big.clone()));
+		}
+		reopen();
+		assertEquals(5, keys().size());
+		for (int i = 0; i < 5; i++) {
+			MqttPersistable read = log.get("s-" + i);
+			assertEquals(big.length, read.getPayloadLength());
+			assertEquals(i, read.getPayloadBytes()[read.getPayloadOffset()]);
+		}
+	}
+
+	@Test
+	public void dropsACorruptRecordAndKeepsTheOnesBefore()
+			throws MqttPersistenceException, IOException {
+		log.put("s-1", data("h", "intact"));
+		log.put("s-2", data("h", "damaged"));
+		log.close();
+		log = null;
+		flipFirst("damaged".getBytes());
+		log = open();
+		assertEquals("intact", payload(log.get("s-1")));
+		assertFalse(log.containsKey("s-2"));
+	}
+
+	@Test
+	public void clearForgetsEverything() throws MqttPersistenceException {
+		log.put("s-1", data("h", "one"));
+		log.clear();
+		assertTrue(keys().isEmpty());
+		reopen();
+		assertTrue(keys().isEmpty());
+	}
+
+	@Test
+	public void refusesASecondOpen() throws MqttPersistenceException {
+		try {
+			log.open(CLIENT, SERVER);
+			fail("opened twice");
+		} catch (MqttPersistenceException e) {
+			assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE,
+					e.getReasonCode());
+		}
+	}
+
+	private SkySegmentLogPersistence open() throws MqttPersistenceException {
+		SkySegmentLogPersistence opened = new SkySegmentLogPersistence(dir);
+		opened.open(CLIENT, SERVER);
+		return opened;
+	}
+
+	private void reopen() throws MqttPersistenceException {
+		log.close();
+		log = null;
+		log = open();
+	}
+
+	private List<String> keys() throws MqttPersistenceException {
+		List<String> keys = new ArrayList<String>();
+		Enumeration<?> e = log.keys();
+		while (e.hasMoreElements()) {
+			keys.add((String) e.nextElement());
+		}
+		return keys;
+	}
+
+	private static SkySegmentLogPersistence.Data data(String header,
+			String payload) {
+		return new SkySegmentLogPersistence.Data(header.getBytes(),
+				payload.getBytes());
+	}
+
+	private static String payload(MqttPersistable data)
+			throws MqttPersistenceException {
+		return new String(data.getPayloadBytes(), data.getPayloadOffset(),
+				data.getPayloadLength());
+	}
+
+	private static byte[] bytes(byte[] array, int offset, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(array, offset, copy, 0, length);
+		return copy;
+	}
+
+	// Flip a byte of the first occurrence of a pattern in the segments
+	private void flipFirst(byte[] pattern) throws IOException {
+		for (File file : files(dir)) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				byte[] content = new byte[(int) raf.length()];
+				raf.readFully(content);
+				for (int i = 0; i + pattern.length <= content.length; i++) {
+					int j = 0;
+					while (j < pattern.length && content[i + j] == pattern[j]) {
+						j++;
+					}
+					if (j == pattern.length) {
+						raf.seek(i);
+						raf.write(content[i] ^ 0xff);
+						return;
+					}
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		fail("pattern not found");
+	}
+
+	private static List<File> files(File dir) {
+		List<File> files = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					files.addAll(files(child));
+				} else {
+					files.add(child);
+				}
+			}
+		}
+		return files;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
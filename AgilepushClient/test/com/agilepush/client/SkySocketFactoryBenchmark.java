@@ -0,0 +1,136 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import javax.net.SocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trip latency over loopback with and without TCP_NODELAY. Not part of
+ * the tests, run it with
+ * <code>test/run-tests.sh com.agilepush.client.SkySocketFactoryBenchmark</code>.
+ * <p>
+ * Each round trip is what a client does when it acknowledges a message and
+ * publishes a receipt: a 4 byte PUBACK and a 64 byte PUBLISH, written one
+ * after the other, then it waits for the broker's PUBACK. With Nagle's
+ * algorithm the PUBLISH waits for the ACK of the PUBACK, which the broker
+ * delays.
+ * </p>
+ */
+public class SkySocketFactoryBenchmark {
+
+	private static final int ROUND_TRIPS = 50;
+	private static final int PUBLISH_SIZE = 64;
+
+	private ServerSocket server;
+	private Thread broker;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		broker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "broker");
+		broker.setDaemon(true);
+		broker.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		long[] nagle = measure(false);
+		long[] noDelay = measure(true);
+		System.out.println("SkySocketFactoryBenchmark: " + ROUND_TRIPS
+				+ " round trips, median / p90 in us");
+		System.out.println("  Nagle        " + median(nagle) + " / "
+				+ p90(nagle));
+		System.out.println("  TCP_NODELAY  " + median(noDelay) + " / "
+				+ p90(noDelay));
+	}
+
+	// Round trip times in microseconds, sorted
+	private long[] measure(boolean tcpNoDelay) throws IOException {
+		SkySocketFactory factory = new SkySocketFactory(
+				SocketFactory.getDefault(), new SkySocketOptions(tcpNoDelay,
+						0, 0, false, 5000));
+		Socket socket = factory.createSocket("127.0.0.1",
+				server.getLocalPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] puback = { 0x40, 0x02, 0x00, 0x01 };
+			byte[] publish = new byte[PUBLISH_SIZE];
+			publish[0] = 0x32;
+			publish[1] = PUBLISH_SIZE - 2;
+			byte[] reply = new byte[4];
+			long[] times = new long[ROUND_TRIPS];
+			for (int i = -5; i < ROUND_TRIPS; i++) {
+				long start = System.nanoTime();
+				out.write(puback);
+				out.write(publish);
+				in.readFully(reply);
+				if (i >= 0) {
+					times[i] = (System.nanoTime() - start) / 1000;
+				}
+				assertEquals(0x40, reply[0]);
+			}
+			Arrays.sort(times);
+			return times;
+		} finally {
+			socket.close();
+		}
+	}
+
+	// Reads packets and answers every PUBLISH with a PUBACK
+	private void serve() {
+		while (!server.isClosed()) {
+			try {
+				Socket client = server.accept();
+				try {
+					InputStream in = client.getInputStream();
+					OutputStream out = client.getOutputStream();
+					byte[] body = new byte[256];
+					int type;
+					while ((type = in.read()) != -1) {
+						int length = in.read();
+						new DataInputStream(in).readFully(body, 0, length);
+						if ((type & 0xf0) == 0x30) {
+							out.write(new byte[] { 0x40, 0x02, 0x00, 0x01 });
+						}
+					}
+				} finally {
+					client.close();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private static long median(long[] sorted) {
+		return sorted[sorted.length / 2];
+	}
+
+	private static long p90(long[] sorted) {
+		return sorted[sorted.length * 9 / 10];
+	}
+}
@@ -0,0 +1,52 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class SkySubscriptionManagerTest {
+
+	@Test
+	public void encodesAndDecodesTopicsOfAnyCharacter() {
+		Map<String, Integer> topics = new TreeMap<String, Integer>();
+		topics.put("a/b", 1);
+		topics.put("12:34", 2);
+		topics.put("", 0);
+		topics.put("caf\u00e9/#", 1);
+		String encoded = SkySubscriptionManager.encode(topics);
+		assertEquals(topics, SkySubscriptionManager.decode(encoded));
+	}
+
+	@Test
+	public void encodesQosLengthAndTopic() {
+		Map<String, Integer> topics = new TreeMap<String, Integer>();
+		topics.put("a/b", 1);
+		topics.put("c", 2);
+		assertEquals("13:a/b21:c", SkySubscriptionManager.encode(topics));
+	}
+
+	@Test
+	public void decodesNothingToNoTopics() {
+		assertTrue(SkySubscriptionManager.decode("").isEmpty());
+	}
+
+	@Test
+	public void keepsTheTopicsBeforeADamagedEntry() {
+		Map<String, Integer> topics = SkySubscriptionManager
+				.decode("13:a/b2x:c");
+		assertEquals(1, topics.size());
+		assertEquals(Integer.valueOf(1), topics.get("a/b"));
+	}
+
+	@Test
+	public void keepsTheTopicsBeforeATruncatedEntry() {
+		Map<String, Integer> topics = SkySubscriptionManager
+				.decode("13:a/b29:cut");
+		assertEquals(1, topics.size());
+		assertEquals(Integer.valueOf(1), topics.get("a/b"));
+	}
+}
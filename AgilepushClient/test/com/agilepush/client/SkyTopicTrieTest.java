@@ -0,0 +1,107 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SkyTopicTrieTest {
+
+	private final SkyTopicTrie<String> trie = new SkyTopicTrie<String>();
+
+	@Test
+	public void matchesExactFilters() {
+		trie.add("a/b", "ab");
+		trie.add("a", "a");
+		assertEquals("[ab]", match("a/b").toString());
+		assertEquals("[a]", match("a").toString());
+		assertTrue(match("a/b/c").isEmpty());
+		assertTrue(match("b").isEmpty());
+	}
+
+	@Test
+	public void matchesOneLevelWithPlus() {
+		trie.add("a/+/c", "x");
+		assertEquals("[x]", match("a/b/c").toString());
+		assertEquals("[x]", match("a//c").toString());
+		assertTrue(match("a/b/d").isEmpty());
+		assertTrue(match("a/b/b/c").isEmpty());
+	}
+
+	@Test
+	public void matchesTheRestAndTheParentWithHash() {
+		trie.add("a/#", "x");
+		assertEquals("[x]", match("a").toString());
+		assertEquals("[x]", match("a/b").toString());
+		assertEquals("[x]", match("a/b/c").toString());
+		assertTrue(match("b/a").isEmpty());
+	}
+
+	@Test
+	public void visitsEveryMatchingFilter() {
+		trie.add("a/b", "exact");
+		trie.add("a/+", "plus");
+		trie.add("#", "all");
+		trie.add("a/b", "second");
+		List<String> matched = match("a/b");
+		Collections.sort(matched);
+		assertEquals("[all, exact, plus, second]", matched.toString());
+	}
+
+	@Test
+	public void keepsWildcardsAtTheFirstLevelOffSystemTopics() {
+		trie.add("#", "all");
+		trie.add("+/b", "plus");
+		trie.add("$SYS/#", "sys");
+		assertEquals("[sys]", match("$SYS/b").toString());
+		assertEquals(2, match("a/b").size());
+	}
+
+	@Test
+	public void removesValuesAndPrunesTheTree() {
+		trie.add("a/b/c", "x");
+		trie.add("a/b/c", "y");
+		assertTrue(trie.remove("a/b/c", "x"));
+		assertFalse(trie.remove("a/b/c", "x"));
+		assertFalse(trie.remove("a/b", "y"));
+		assertEquals("[y]", match("a/b/c").toString());
+		assertEquals(1, trie.removeAll("a/b/c"));
+		assertEquals(0, trie.size());
+		assertTrue(match("a/b/c").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesHashBeforeTheLastLevel() {
+		trie.add("a/#/b", "x");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesWildcardsWithinALevel() {
+		trie.add("a/b+", "x");
+	}
+
+	@Test
+	public void splitsKeepingEmptyLevels() {
+		assertArrayEquals(new String[] { "", "a", "", "b", "" },
+				SkyTopicTrie.split("/a//b/"));
+		assertArrayEquals(new String[] { "" }, SkyTopicTrie.split(""));
+	}
+
+	private List<String> match(String topic) {
+		final List<String> matched = new ArrayList<String>();
+		int count = trie.match(topic, new SkyTopicTrie.Visitor<String>() {
+			@Override
+			public void visit(String value) {
+				matched.add(value);
+			}
+		});
+		assertEquals(matched.size(), count);
+		return matched;
+	}
+}
@@ -0,0 +1,146 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SkyUnackedMessagesTest {
+
+	private static final String CLIENT = "client";
+	private static final String SERVER = "tcp://localhost:1883";
+
+	private File dir;
+	private SkyUnackedMessages unacked;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("unacked", null);
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		if (unacked != null) {
+			unacked.close();
+		}
+		delete(dir);
+	}
+
+	@Test
+	public void deliversTheUnacknowledgedAgainAfterARestart()
+			throws MqttException {
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 10);
+		SkyArrivedMessage first = unacked.add("a", message("1"));
+		SkyArrivedMessage second = unacked.add("b", message("2"));
+		SkyArrivedMessage third = unacked.add("c", message("3"));
+		assertTrue(unacked.acknowledge(second.getMessageId()));
+		assertFalse(unacked.acknowledge(second.getMessageId()));
+		assertTrue(unacked.release(third.getMessageId()));
+		unacked.close();
+
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 10);
+		List<SkyArrivedMessage> restored = unacked.takeRestored();
+		assertEquals(2, restored.size());
+		assertEquals(first.getMessageId(), restored.get(0).getMessageId());
+		assertEquals("a", restored.get(0).getTopic());
+		assertEquals("1", new String(restored.get(0).getPayload()));
+		assertTrue(restored.get(0).isDuplicate());
+		assertEquals("c", restored.get(1).getTopic());
+		assertTrue(unacked.takeRestored().isEmpty());
+	}
+
+	@Test
+	public void anAcknowledgementLetsAWaitingMessageIn() throws Exception {
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 1);
+		SkyArrivedMessage first = unacked.add("a", message("1"));
+		Adder adder = new Adder();
+		adder.start();
+		Thread.sleep(100);
+		assertTrue(adder.isAlive());
+		unacked.acknowledge(first.getMessageId());
+		adder.join(SkyUnackedMessages.WAIT_TIMEOUT / 2);
+		assertFalse(adder.isAlive());
+		assertNull(adder.failure);
+		assertEquals("b", adder.added.getTopic());
+	}
+
+	@Test
+	public void anAbortRefusesTheWaitingMessage() throws Exception {
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 1);
+		unacked.add("a", message("1"));
+		Adder adder = new Adder();
+		adder.start();
+		Thread.sleep(100);
+		assertTrue(adder.isAlive());
+		unacked.abortWaits();
+		adder.join(SkyUnackedMessages.WAIT_TIMEOUT / 2);
+		assertFalse(adder.isAlive());
+		assertNull(adder.added);
+		assertEquals(MqttException.REASON_CODE_CLIENT_TIMEOUT,
+				adder.failure.getReasonCode());
+	}
+
+	@Test
+	public void aRestartWithFewerPlacesWaitsForTheRestored() throws Exception {
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 3);
+		unacked.add("a", message("1"));
+		unacked.add("b", message("2"));
+		unacked.close();
+
+		unacked = new SkyUnackedMessages(dir, CLIENT, SERVER, 1);
+		List<SkyArrivedMessage> restored = unacked.takeRestored();
+		unacked.acknowledge(restored.get(0).getMessageId());
+		Adder adder = new Adder();
+		adder.start();
+		Thread.sleep(100);
+		assertTrue(adder.isAlive());
+		unacked.acknowledge(restored.get(1).getMessageId());
+		adder.join(SkyUnackedMessages.WAIT_TIMEOUT / 2);
+		assertFalse(adder.isAlive());
+		assertEquals("b", adder.added.getTopic());
+	}
+
+	// Adds a message on topic b, as Paho's callback thread would
+	private class Adder extends Thread {
+
+		volatile SkyArrivedMessage added;
+		volatile MqttException failure;
+
+		@Override
+		public void run() {
+			try {
+				added = unacked.add("b", message("2"));
+			} catch (MqttException e) {
+				failure = e;
+			}
+		}
+	}
+
+	private static MqttMessage message(String payload) {
+		MqttMessage message = new MqttMessage(payload.getBytes());
+		message.setQos(1);
+		return message;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
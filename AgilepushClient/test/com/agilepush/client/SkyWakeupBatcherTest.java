@@ -0,0 +1,40 @@
+package com.agilepush.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SkyWakeupBatcherTest {
+
+	private static final long GRID = SkyWakeupBatcher.BATCH_INTERVAL;
+
+	@Test
+	public void alignsLateToTheNextGridLine() {
+		assertEquals(2 * GRID, SkyWakeupBatcher.alignLate(GRID + 1));
+		assertEquals(2 * GRID, SkyWakeupBatcher.alignLate(2 * GRID - 1));
+		assertEquals(GRID, SkyWakeupBatcher.alignLate(GRID));
+	}
+
+	@Test
+	public void neverAlignsAPingBeforeItIsDue() {
+		for (long due = 10 * GRID; due < 11 * GRID; due += 997) {
+			assertTrue(SkyWakeupBatcher.alignWithin(due, GRID) >= due);
+			assertTrue(SkyWakeupBatcher.alignWithin(due, 0) >= due);
+		}
+	}
+
+	@Test
+	public void alignsAPingToTheNextGridLineWithinItsSlack() {
+		long due = 10 * GRID - 1000;
+		assertEquals(10 * GRID, SkyWakeupBatcher.alignWithin(due, 1000));
+		assertEquals(10 * GRID, SkyWakeupBatcher.alignWithin(due, 5000));
+	}
+
+	@Test
+	public void keepsAPingWhoseNextGridLineIsBeyondItsSlack() {
+		long due = 10 * GRID + 1000;
+		assertEquals(due, SkyWakeupBatcher.alignWithin(due, 5000));
+		assertEquals(due, SkyWakeupBatcher.alignWithin(due, 0));
+	}
+}
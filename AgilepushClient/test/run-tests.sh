@@ -0,0 +1,64 @@
+#!/bin/sh
+#
+# Compile and run the JUnit tests of the client on the JVM.
+#
+#   test/run-tests.sh [test class ...]
+#
+# Without arguments every *Test class under test/ is run; name classes,
+# e.g. com.agilepush.client.SkyOutboxBenchmark, to run others.
+#
+# JUNIT_JAR must point to a JUnit 4 jar (HAMCREST_JAR too for JUnit 4.11
+# and later). android.jar is taken from ANDROID_JAR, or from the target
+# platform of project.properties under ANDROID_HOME.
+#
+# The classes of test/ come first on the classpath and android.jar last:
+# its android.util.Log and android.os.SystemClock only throw, and the
+# stand-ins in test/ must shadow them.
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+if [ -z "$JUNIT_JAR" ]; then
+	echo "JUNIT_JAR is not set" >&2
+	exit 1
+fi
+if [ -z "$ANDROID_JAR" ]; then
+	target=$(sed -n 's/^target=//p' project.properties)
+	ANDROID_JAR="$ANDROID_HOME/platforms/$target/android.jar"
+fi
+if [ ! -f "$ANDROID_JAR" ]; then
+	echo "android.jar not found at $ANDROID_JAR, set ANDROID_JAR" >&2
+	exit 1
+fi
+
+out=bin/test-classes
+rm -rf "$out"
+mkdir -p "$out"
+
+libs=$(find libs -name '*.jar' | tr '\n' ':')
+cp="$out:$libs$JUNIT_JAR${HAMCREST_JAR:+:$HAMCREST_JAR}:$ANDROID_JAR"
+
+# The notification code needs R; take the one Eclipse generated, or
+# generate it with aapt
+gen=gen
+if [ ! -d "$gen" ]; then
+	gen=bin/test-gen
+	mkdir -p "$gen"
+	if [ -z "$AAPT" ]; then
+		AAPT=$(ls "$ANDROID_HOME"/build-tools/*/aapt \
+			"$ANDROID_HOME"/platform-tools/aapt 2>/dev/null | tail -n 1)
+	fi
+	"$AAPT" package -f -m -J "$gen" -M AndroidManifest.xml -S res \
+		-I "$ANDROID_JAR"
+fi
+
+# Sources of src/ are compiled as the tests reach them
+javac -nowarn -encoding UTF-8 -d "$out" \
+	-cp "$cp" -sourcepath "test:src:$gen" $(find test -name '*.java')
+
+if [ $# -eq 0 ]; then
+	set -- $(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g')
+fi
+
+java -cp "$cp" org.junit.runner.JUnitCore "$@"